@@ -0,0 +1,127 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+
+/**
+ * The models and documents the benchmarks work on. They mirror the Car and
+ * Driver models of the test application, so that the numbers reflect
+ * documents of a realistic shape rather than empty ones.
+ */
+public class BenchmarkData {
+
+	private static final String[] NAMES = { "Toyota", "Ford", "Holden", "Mazda", "Subaru", "Volkswagen" };
+	private static final String[] COLOURS = { "white", "black", "red", "blue", "silver" };
+
+	/**
+	 * The benchmarks do not run inside Play, so the _id field and its
+	 * accessors are written out as the MongoEnhancer would add them.
+	 */
+	@MongoEntity
+	public static class Car extends MongoModel {
+
+		private ObjectId _id;
+
+		public String name;
+		public String colour;
+		public int topSpeed;
+
+		public Driver driver;
+
+		public Car(){
+
+		}
+
+		@Override
+		public ObjectId get_id(){
+			return _id;
+		}
+
+		@Override
+		public void set_id(ObjectId _id){
+			this._id = _id;
+		}
+
+	}
+
+	public static class Driver {
+
+		public String name;
+		public Date dob;
+
+		public Driver(){
+
+		}
+
+	}
+
+	/**
+	 * Creates a saved car, with an _id and a driver.
+	 *
+	 * @param i - the number of the car, which varies its values
+	 * @return - the car
+	 */
+	public static Car car(int i){
+
+		Car car = new Car();
+		car.set_id(new ObjectId());
+		car.name = NAMES[i % NAMES.length] + " " + i;
+		car.colour = COLOURS[i % COLOURS.length];
+		car.topSpeed = 120 + i % 100;
+
+		car.driver = new Driver();
+		car.driver.name = "Driver " + i;
+		car.driver.dob = new Date(315532800000L + i * 86400000L);
+
+		return car;
+
+	}
+
+	/**
+	 * Creates a number of cars.
+	 *
+	 * @param count - the number of cars
+	 * @return - the cars
+	 */
+	public static List<Car> cars(int count){
+
+		List<Car> cars = new ArrayList<Car>(count);
+		for (int i = 0; i < count; i++){
+			cars.add(car(i));
+		}
+
+		return cars;
+
+	}
+
+	/**
+	 * Encodes cars to BSON, as they would come from the server.
+	 *
+	 * @param cars - the cars
+	 * @param codec - the codec of Car
+	 * @return - one byte array per car
+	 */
+	public static List<byte[]> encode(List<Car> cars, Codec<Car> codec){
+
+		List<byte[]> documents = new ArrayList<byte[]>(cars.size());
+
+		for (Car car : cars){
+			BasicOutputBuffer buffer = new BasicOutputBuffer();
+			BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+			codec.encode(writer, car, EncoderContext.builder().isEncodingCollectibleDocument(true).build());
+			writer.close();
+			documents.add(buffer.toByteArray());
+		}
+
+		return documents;
+
+	}
+
+}
@@ -0,0 +1,101 @@
+package play.modules.mongodb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import play.modules.mongodb.BenchmarkData.Car;
+
+/**
+ * Measures the MongoEntityCodec without a server: decoding a page of cars
+ * from BSON, as FindCursor.fetch() does with a reply, and building the
+ * document and the update written by save().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CodecBenchmark {
+
+	private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+	private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().isEncodingCollectibleDocument(true).build();
+
+	@Param({ "1", "100" })
+	public int pageSize;
+
+	private Codec<Car> codec;
+	private List<byte[]> page;
+	private Car changed;
+	private BsonDocument current;
+
+	@Setup
+	public void setup(){
+
+		codec = MongoDB.codecRegistry().get(Car.class);
+		page = BenchmarkData.encode(BenchmarkData.cars(pageSize), codec);
+
+		// a car read from the database, then given a new driver name
+		changed = decode(page.get(0));
+		changed.driver.name = "Another driver";
+		current = encode(changed);
+
+	}
+
+	@Benchmark
+	public List<Car> decodePage(){
+
+		List<Car> cars = new ArrayList<Car>(page.size());
+		for (byte[] document : page){
+			cars.add(decode(document));
+		}
+
+		return cars;
+
+	}
+
+	@Benchmark
+	public BsonDocument encodeForSave(){
+		return encode(changed);
+	}
+
+	@Benchmark
+	public BsonDocument changesForSave(){
+		return MongoSnapshot.changes(changed, current);
+	}
+
+	private Car decode(byte[] document){
+
+		BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(document));
+		try {
+			return codec.decode(reader, DECODER_CONTEXT);
+		} finally {
+			reader.close();
+		}
+
+	}
+
+	private BsonDocument encode(Car car){
+
+		BsonDocument document = new BsonDocument();
+		codec.encode(new BsonDocumentWriter(document), car, ENCODER_CONTEXT);
+
+		return document;
+
+	}
+
+}
@@ -0,0 +1,44 @@
+package play.modules.mongodb;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import play.modules.mongodb.BenchmarkData.Car;
+
+/**
+ * Measures the Jackson conversions of MongoMapper, which the codec falls
+ * back to for values it does not map itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MapperBenchmark {
+
+	private Car car;
+	private Map<String, Object> map;
+
+	@Setup
+	public void setup(){
+		car = BenchmarkData.car(1);
+		map = MongoMapper.convertValue(car, Map.class);
+	}
+
+	@Benchmark
+	public Map<String, Object> modelToMap(){
+		return MongoMapper.convertValue(car, Map.class);
+	}
+
+	@Benchmark
+	public Car mapToModel(){
+		return MongoMapper.convertValue(map, Car.class);
+	}
+
+}
@@ -0,0 +1,59 @@
+package play.modules.mongodb;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Measures the building of filters and orderings from query strings. Both
+ * are compiled once, so this is the cost paid on every find().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class QueryBenchmark {
+
+	@Param({ "byName", "byNameAndColour", "byTopSpeedGreaterThanAndColourIn" })
+	public String query;
+
+	@Param({ "byName", "byNameAnd-TopSpeed" })
+	public String order;
+
+	private Object[] values;
+
+	@Setup
+	public void setup(){
+		switch (query){
+		case "byName":
+			values = new Object[]{ "Toyota" };
+			break;
+		case "byNameAndColour":
+			values = new Object[]{ "Toyota", "white" };
+			break;
+		default:
+			values = new Object[]{ 150, Arrays.asList("white", "red", "blue") };
+			break;
+		}
+	}
+
+	@Benchmark
+	public BasicDBObject createQuery(){
+		return MongoDB.createQueryDbObject(query, values, BenchmarkData.Car.class);
+	}
+
+	@Benchmark
+	public BasicDBObject createOrder(){
+		return MongoDB.createOrderDbObject(order);
+	}
+
+}
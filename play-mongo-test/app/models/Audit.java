@@ -0,0 +1,27 @@
+package models;
+
+import java.util.Date;
+
+import play.modules.mongo.MongoEntity;
+import play.modules.mongo.MongoModel;
+import play.modules.mongo.MongoWriteBatched;
+
+@MongoEntity
+@MongoWriteBatched(maxSize=50, maxDelay=20)
+public class Audit extends MongoModel {
+	
+	public String user;
+	public String action;
+	public Date at;
+
+	public Audit(){
+		
+	}
+
+	public Audit(String user, String action) {
+		this.user = user;
+		this.action = action;
+		this.at = new Date();
+	}
+
+}
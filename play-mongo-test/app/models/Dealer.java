@@ -0,0 +1,28 @@
+package models;
+
+import play.modules.mongo.MongoCached;
+import play.modules.mongo.MongoCompoundIndex;
+import play.modules.mongo.MongoEntity;
+import play.modules.mongo.MongoIndexed;
+import play.modules.mongo.MongoModel;
+import play.modules.mongo.MongoQueryCached;
+
+@MongoEntity
+@MongoCached(maxSize=100, ttl="1min")
+@MongoQueryCached(ttl="30s", maxSize="1MB")
+@MongoCompoundIndex("onCityAndName")
+public class Dealer extends MongoModel {
+	@MongoIndexed(unique=true)
+	public String name;
+	public String city;
+	
+	public Dealer(){
+		
+	}
+	
+	public Dealer(String name, String city) {
+		this.name = name;
+		this.city = city;
+	}
+	
+}
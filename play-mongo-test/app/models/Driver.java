@@ -6,6 +6,7 @@ public class Driver {
 	
 	public String name;
 	public Date dob;
+	public boolean checkedIn;
 
 	public Driver(){
 		
@@ -0,0 +1,21 @@
+package models;
+
+import play.modules.mongo.MongoEntity;
+import play.modules.mongo.MongoModel;
+
+@MongoEntity(capped="1MB", cappedMax=1000)
+public class Event extends MongoModel {
+	
+	public String type;
+	public String message;
+
+	public Event(){
+		
+	}
+
+	public Event(String type, String message) {
+		this.type = type;
+		this.message = message;
+	}
+
+}
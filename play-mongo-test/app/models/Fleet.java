@@ -0,0 +1,27 @@
+package models;
+
+import java.util.List;
+
+import play.modules.mongo.MongoEntity;
+import play.modules.mongo.MongoModel;
+import play.modules.mongo.MongoReference;
+
+@MongoEntity
+public class Fleet extends MongoModel {
+	public String name;
+	
+	@MongoReference
+	public Dealer dealer;
+	
+	@MongoReference
+	public List<Car> cars;
+	
+	public Fleet(){
+		
+	}
+	
+	public Fleet(String name) {
+		this.name = name;
+	}
+	
+}
@@ -0,0 +1,25 @@
+package models;
+
+import java.util.Date;
+
+import play.modules.mongo.MongoCountCached;
+import play.modules.mongo.MongoEntity;
+import play.modules.mongo.MongoModel;
+
+@MongoEntity
+@MongoCountCached(ttl="1h")
+public class PageView extends MongoModel {
+	
+	public String page;
+	public Date at;
+
+	public PageView(){
+		
+	}
+
+	public PageView(String page) {
+		this.page = page;
+		this.at = new Date();
+	}
+
+}
@@ -0,0 +1,21 @@
+package models;
+
+import play.modules.mongo.MongoEntity;
+import play.modules.mongo.MongoModel;
+
+@MongoEntity(connection="telemetry", readPreference="secondaryPreferred", writeConcern="MAJORITY")
+public class Reading extends MongoModel {
+	
+	public String sensor;
+	public double value;
+
+	public Reading(){
+		
+	}
+
+	public Reading(String sensor, double value) {
+		this.sensor = sensor;
+		this.value = value;
+	}
+
+}
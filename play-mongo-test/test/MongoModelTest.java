@@ -1,16 +1,66 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
+import models.Audit;
 import models.Car;
+import models.Dealer;
 import models.Driver;
+import models.Event;
+import models.Fleet;
+import models.PageView;
+import models.Reading;
 
+import org.bson.ByteBuf;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 
+import play.modules.mongodb.FindCursor;
+import play.modules.mongodb.MongoBatchResult;
+import play.modules.mongodb.MongoCache;
+import play.modules.mongodb.MongoFixtures;
+import play.modules.mongodb.MongoConnection;
+import play.modules.mongodb.MongoCountCache;
+import play.modules.mongodb.MongoDB;
+import play.modules.mongodb.MongoIndexes;
+import play.modules.mongodb.MongoIterator;
+import play.modules.mongodb.MongoMetrics;
+import play.modules.mongodb.MongoParallelScan;
+import play.modules.mongodb.MongoPlugin;
+import play.modules.mongodb.MongoQueryAdvisor;
+import play.modules.mongodb.MongoQueryCache;
+import play.modules.mongodb.MongoTail;
+import play.modules.mongodb.MongoWriteBatch;
 import play.test.UnitTest;
 
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+
 public class MongoModelTest extends UnitTest {
 
 	@Before
@@ -29,6 +79,61 @@ public class MongoModelTest extends UnitTest {
     	assertEquals(before+1, Car.count());
     }
     
+    @Test
+    public void saveAll(){
+    	List<Car> cars = new ArrayList<Car>();
+    	for (int i = 1; i <= 250; i++){
+    		cars.add(new Car("Toyota v"+i, "white", 150+i));
+    	}
+    	
+    	List<MongoBatchResult> results = Car.saveAll(cars, 100, true);
+    	assertEquals(3, results.size());
+    	assertEquals(100, results.get(0).insertedCount);
+    	assertEquals(50, results.get(2).insertedCount);
+    	assertEquals(250, Car.count());
+    	for (Car car : cars){
+    		assertNotNull(car.get_id());
+    	}
+    	
+    	// existing models are replaced
+    	for (Car car : cars){
+    		car.colour = "red";
+    	}
+    	results = Car.saveAll(cars);
+    	assertEquals(1, results.size());
+    	assertEquals(250, results.get(0).matchedCount);
+    	assertFalse(results.get(0).hasErrors());
+    	assertEquals(250, Car.count("byColour", "red"));
+    }
+    
+    @Test
+    public void saveAllOrdered(){
+    	// the unique name index is built when the application starts, deleteAll() keeps it
+    	MongoIndexes.await();
+    	Dealer.deleteAll();
+    	Dealer sydney = new Dealer("Toyota Centre", "Sydney").save();
+    	sydney.city = "Perth";
+    	
+    	// the models are written in the order given, up to the first error
+    	Dealer melbourne = new Dealer("City Toyota", "Melbourne");
+    	Dealer duplicate = new Dealer("Toyota Centre", "Hobart");
+    	MongoBatchResult result = Dealer.saveAll(Arrays.asList(melbourne, duplicate, sydney), 10, true).get(0);
+    	assertEquals(1, result.insertedCount);
+    	assertEquals(Arrays.asList(duplicate), result.failedModels);
+    	assertEquals(Arrays.asList(sydney), result.skippedModels);
+    	assertNotNull(melbourne.get_id());
+    	assertNull(duplicate.get_id());
+    	assertEquals("Sydney", Dealer.<Dealer>findById(sydney.get_id()).city);
+    	
+    	// unordered, everything possible is written
+    	duplicate.name = "Hobart Toyota";
+    	result = Dealer.saveAll(Arrays.asList(duplicate, sydney), 10, false).get(0);
+    	assertFalse(result.hasErrors());
+    	assertEquals(1, result.insertedCount);
+    	assertEquals(1, result.matchedCount);
+    	assertEquals(3, Dealer.count());
+    }
+    
     @Test
     public void find(){
     	
@@ -60,6 +165,70 @@ public class MongoModelTest extends UnitTest {
     	assertEquals("Toyota v1", c.name);
     }
     
+    @Test
+    public void keysetPaging(){
+    	
+    	for (int i = 1; i <= 100; i++){
+    		new Car("Toyota v"+i, i % 2 == 0 ? "white" : "red", 150 + i % 10).save();
+    	}
+    	
+    	// walk the cars by top speed, 20 at a time, without skipping
+    	List<Car> page = Car.find().order("byTopSpeed").fetch(20);
+    	int seen = page.size();
+    	
+    	while (page.size() == 20){
+    		Car last = page.get(page.size() - 1);
+    		page = Car.find().order("byTopSpeed").after(last).fetch(20);
+    		if (!page.isEmpty()){
+    			assertTrue(page.get(0).topSpeed >= last.topSpeed);
+    		}
+    		seen += page.size();
+    	}
+    	assertEquals(100, seen);
+    	
+    	// the same with a page token, combined with a query string
+    	FindCursor cursor = Car.find("byColour", "white").order("by-TopSpeed");
+    	List<Car> firstPage = cursor.fetch(30);
+    	String token = cursor.pageToken(firstPage.get(29));
+    	
+    	List<Car> secondPage = Car.find("byColour", "white").order("by-TopSpeed").after(token).fetch(30);
+    	assertEquals(20, secondPage.size());
+    	assertTrue(secondPage.get(0).topSpeed <= firstPage.get(29).topSpeed);
+    }
+    
+    @Test
+    public void streaming(){
+    	
+    	for (int i = 1; i <= 100; i++){
+    		new Car("Toyota v"+i,"white",150+i).save();
+    	}
+    	
+    	// iterate without loading every car in memory
+    	int count = 0;
+    	Iterable<Car> cars = Car.find().batchSize(10).iterable();
+    	for (Car car : cars){
+    		count++;
+    	}
+    	assertEquals(100, count);
+    	
+    	// stop early and release the cursor
+    	MongoIterator<Car> iterator = Car.find().iterator();
+    	assertEquals("Toyota v1", iterator.next().name);
+    	iterator.close();
+    	assertFalse(iterator.hasNext());
+    	
+    	final List<String> names = new ArrayList<String>();
+    	Car.find().order("byName").forEach((Car car) -> names.add(car.name));
+    	assertEquals(100, names.size());
+    	
+    	Stream<Car> stream = Car.find().stream();
+    	try {
+    		assertEquals(50, stream.filter(car -> car.topSpeed > 200).count());
+    	} finally {
+    		stream.close();
+    	}
+    }
+    
     @Test
     public void query(){
     	new Car("Toyota", "white", 150).save();
@@ -75,6 +244,61 @@ public class MongoModelTest extends UnitTest {
     	assertEquals(2, whiteToyotas.size());
     }
     
+    @Test
+    public void queryOperators(){
+    	new Car("Toyota", "white", 150).save();
+    	new Car("Toyota", "red", 170).save();
+    	new Car("Toyota", "green", 190).save();
+    	new Car("Holden", "blue", 210).save();
+    	
+    	assertEquals(2, Car.find("byTopSpeedGreaterThan", 170).fetch().size());
+    	assertEquals(3, Car.find("byTopSpeedGreaterThanEquals", 170).fetch().size());
+    	assertEquals(1, Car.find("byTopSpeedLessThan", 170).fetch().size());
+    	assertEquals(2, Car.find("byTopSpeedBetween", 170, 190).fetch().size());
+    	assertEquals(3, Car.find("byColourNotEqual", "red").fetch().size());
+    	assertEquals(2, Car.find("byColourIn", Arrays.asList("red", "blue")).fetch().size());
+    	assertEquals(2, Car.find("byColourNotIn", Arrays.asList("red", "blue")).fetch().size());
+    	assertEquals(4, Car.find("byDriverIsNull").fetch().size());
+    	
+    	// And binds tighter than Or
+    	assertEquals(2, Car.find("byNameAndColourOrTopSpeedGreaterThan", "Toyota", "white", 200).fetch().size());
+    	assertEquals(2, Car.count("byColourOrColour", "white", "green"));
+    	
+    	// a mapped field whose name ends like an operator is an equality
+    	Car holden = Car.find("byName", "Holden").first();
+    	holden.driver = new Driver("Andrew", new Date());
+    	holden.driver.checkedIn = true;
+    	holden.save();
+    	assertEquals(1, Car.find("byDriver.checkedIn", true).fetch().size());
+    	assertEquals(1, Car.count("byDriver.checkedInIn", Arrays.asList(true)));
+    	assertEquals(3, Car.find("byDriver.checkedInIsNull").fetch().size());
+    	
+    	// without a model class, the names are equalities as they always were
+    	assertEquals(true, MongoDB.createQueryDbObject("byLoggedIn", new Object[]{ true }).get("loggedIn"));
+    	assertEquals("Andrew", MongoDB.createQueryDbObject("byDriver.nameIn", new Object[]{ "Andrew" }).get("driver.nameIn"));
+    }
+    
+    @Test
+    public void async() throws Exception {
+    	Car car = new Car("Toyota", "white", 150);
+    	car.<Car>saveAsync().get();
+    	assertNotNull(car.get_id());
+    	new Car("Holden", "blue", 150).saveAsync().get();
+    	
+    	assertEquals(Long.valueOf(2), Car.countAsync().get());
+    	assertEquals(Long.valueOf(1), Car.countAsync("byName", "Toyota").get());
+    	
+    	List<Car> cars = Car.findAsync().order("byName").<Car>fetch().get();
+    	assertEquals("Holden", cars.get(0).name);
+    	
+    	Car toyota = Car.findAsync("byName", "Toyota").<Car>first().get();
+    	assertEquals(car.get_id(), toyota.get_id());
+    	
+    	assertEquals(Long.valueOf(1), toyota.deleteAsync().get());
+    	assertEquals(Long.valueOf(1), Car.deleteAsync("byName", "Holden").get());
+    	assertEquals(0, Car.count());
+    }
+    
     @Test
     public void ordering(){
     	new Car("AToyota", "white", 150).save();
@@ -148,6 +372,511 @@ public class MongoModelTest extends UnitTest {
     	assertEquals("02/02/1973", df.format(andrewCar.driver.dob));
     }
 
+    @Test
+    public void entityCache(){
+    	Dealer.deleteAll();
+    	Dealer dealer = new Dealer("Toyota Centre", "Dublin").save();
+    	
+    	MongoCache cache = MongoCache.of(Dealer.getCollectionName(), Dealer.class);
+    	cache.resetStatistics();
+    	
+    	// the first lookup reads the database, the second one the cache
+    	Dealer found = Dealer.findById(dealer.get_id());
+    	Dealer again = Dealer.findById(dealer.get_id().toString());
+    	assertEquals(1, cache.getMisses());
+    	assertEquals(1, cache.getHits());
+    	assertNotSame(found, again);
+    	
+    	// saving invalidates the cached copy
+    	again.city = "Cork";
+    	again.save();
+    	Dealer moved = Dealer.find("by_id", dealer.get_id()).first();
+    	assertEquals("Cork", moved.city);
+    	
+    	dealer.delete();
+    	assertNull(Dealer.findById(dealer.get_id()));
+    }
+    
+    @Test
+    public void queryCache(){
+    	Dealer.deleteAll();
+    	new Dealer("Toyota Centre", "Dublin").save();
+    	new Dealer("Ford Centre", "Dublin").save();
+    	
+    	MongoQueryCache cache = MongoQueryCache.of(Dealer.getCollectionName(), Dealer.class);
+    	cache.resetStatistics();
+    	
+    	// the second run of each query is served from the cache
+    	assertEquals(2, Dealer.find("byCity", "Dublin").fetch().size());
+    	assertEquals(2, Dealer.find("byCity", "Dublin").fetch().size());
+    	assertEquals(2, Dealer.count("byCity", "Dublin"));
+    	assertEquals(2, Dealer.count("byCity", "Dublin"));
+    	assertEquals(2, cache.getHits());
+    	
+    	// any write to the collection empties the cache
+    	new Dealer("Opel Centre", "Dublin").save();
+    	assertEquals(3, Dealer.find("byCity", "Dublin").fetch().size());
+    	assertEquals(3, Dealer.count("byCity", "Dublin"));
+    }
+    
+    @Test
+    public void projection(){
+    	Car myCar = new Car("Toyota", "white", 150);
+    	myCar.driver = new Driver("Andrew", null);
+    	myCar.save();
+    	
+    	// only the name, and the id, are loaded
+    	Car listed = Car.find("byName", "Toyota").only("name").first();
+    	assertEquals(myCar.get_id(), listed.get_id());
+    	assertEquals("Toyota", listed.name);
+    	assertNull(listed.colour);
+    	assertNull(listed.driver);
+    	assertEquals(0, listed.topSpeed);
+    	
+    	// everything but the driver is loaded
+    	Car withoutDriver = Car.find().exclude("driver").first();
+    	assertNull(withoutDriver.driver);
+    	assertEquals("white", withoutDriver.colour);
+    	assertEquals(150, withoutDriver.topSpeed);
+    	
+    	// saving a partly loaded model only writes the loaded fields
+    	listed.name = "Corolla";
+    	listed.save();
+    	withoutDriver.topSpeed = 160;
+    	withoutDriver.save();
+    	Car stored = Car.findById(myCar.get_id());
+    	assertEquals("Corolla", stored.name);
+    	assertEquals("white", stored.colour);
+    	assertEquals(160, stored.topSpeed);
+    	assertEquals("Andrew", stored.driver.name);
+    	
+    	// the loaded fields of embedded models too
+    	for (Car car : Car.find().only("driver.name").<Car>iterable()){
+    		car.driver.name = "Mark";
+    		car.save();
+    	}
+    	stored = Car.findById(myCar.get_id());
+    	assertEquals("Mark", stored.driver.name);
+    	assertEquals("Corolla", stored.name);
+    }
+    
+    @Test
+    public void dirtyTracking(){
+    	Car myCar = new Car("Toyota", "white", 150).save();
+    	
+    	Car loaded = Car.find("by_id", myCar.get_id()).first();
+    	
+    	// another request changes a different field in the meantime
+    	Car other = Car.find("by_id", myCar.get_id()).first();
+    	other.colour = "red";
+    	other.save();
+    	
+    	// only the changed field is written, so the other change is kept
+    	loaded.topSpeed = 160;
+    	loaded.save();
+    	
+    	Car stored = Car.find("by_id", myCar.get_id()).first();
+    	assertEquals(160, stored.topSpeed);
+    	assertEquals("red", stored.colour);
+    	
+    	// a model just inserted is tracked as well
+    	myCar.name = "Corolla";
+    	myCar.save();
+    	stored = Car.find("by_id", myCar.get_id()).first();
+    	assertEquals("Corolla", stored.name);
+    	assertEquals("red", stored.colour);
+    	assertEquals(160, stored.topSpeed);
+    }
+    
+    @Test
+    public void references() throws Exception {
+    	Dealer.deleteAll();
+    	Fleet.deleteAll();
+    	
+    	Dealer dealer = new Dealer("Toyota Centre", "Dublin").save();
+    	Car yaris = new Car("Yaris", "white", 150).save();
+    	Car corolla = new Car("Corolla", "black", 180).save();
+    	
+    	for (int i = 1; i <= 3; i++){
+    		Fleet fleet = new Fleet("Fleet "+i);
+    		fleet.dealer = dealer;
+    		fleet.cars = Arrays.asList(yaris, corolla);
+    		fleet.save();
+    	}
+    	
+    	// the dealer and the cars of all the fleets are loaded with one query each
+    	List<Fleet> fleets = Fleet.find().order("byName").fetch();
+    	assertEquals(3, fleets.size());
+    	for (Fleet fleet : fleets){
+    		assertEquals("Dublin", fleet.dealer.city);
+    		assertEquals("Yaris", fleet.cars.get(0).name);
+    		assertEquals(180, fleet.cars.get(1).topSpeed);
+    	}
+    	
+    	// the fleets of a page share the models they refer to
+    	assertSame(fleets.get(0).cars.get(1), fleets.get(2).cars.get(1));
+    	
+    	// streamed and asynchronous models are loaded too, a batch at a time
+    	Fleet.find().batchSize(2).<Fleet>stream().forEach(fleet -> assertEquals("Dublin", fleet.dealer.city));
+    	for (Fleet fleet : Fleet.findAsync().<Fleet>fetch().get()){
+    		assertEquals("Corolla", fleet.cars.get(1).name);
+    	}
+    }
+    
+    @Test
+    public void connection(){
+    	MongoConnection connection = MongoDB.connection();
+    	
+    	// the connection is created once and shared
+    	assertSame(connection, MongoDB.connection());
+    	assertSame(connection.db(), MongoDB.db());
+    	assertEquals("play", connection.database);
+    	
+    	connection.warmUp();
+    }
+
+    @Test
+    public void metrics(){
+    	Car.deleteAll();
+    	MongoMetrics.reset();
+    	
+    	new Car("Toyota", "white", 150).save();
+    	Car.find("byColour", "white").fetch();
+    	Car.count();
+    	
+    	MongoMetrics.Stats inserts = MongoMetrics.get("car", "insert");
+    	assertEquals(1, inserts.getCount());
+    	assertEquals(1, inserts.getDocuments());
+    	
+    	MongoMetrics.Stats finds = MongoMetrics.get("car", "find");
+    	assertEquals(1, finds.getCount());
+    	assertEquals(1, finds.getDocuments());
+    	assertEquals(0, finds.getErrors());
+    	
+    	assertEquals(1, MongoMetrics.get("car", "count").getCount());
+    	assertTrue(new MongoPlugin().getStatus().contains("car.find"));
+    	
+    	// the slow query log shows filters without their values
+    	assertEquals("{ \"colour\" : \"?\" }", MongoMetrics.shape(MongoDB.createQueryDbObject("byColour", new Object[]{ "white" })));
+    }
+
+    @Test
+    public void queryAdvisor(){
+    	Car.deleteAll();
+    	for (int i = 0; i < 20; i++){
+    		new Car("Car " + i, i % 2 == 0 ? "white" : "red", 100 + i).save();
+    	}
+    	
+    	// without an index the query scans the collection
+    	Car.find("byColourAndTopSpeedGreaterThan", "white", 110).order("by-Name").fetch();
+    	MongoQueryAdvisor.await();
+    	
+    	assertTrue(MongoQueryAdvisor.isEnabled());
+    	assertTrue(MongoQueryAdvisor.suggestions().get("car").contains("onColourAnd-NameAndTopSpeed"));
+    	
+    	// the same shape with other values is not explained again
+    	int shapes = MongoQueryAdvisor.shapes().size();
+    	Car.find("byColourAndTopSpeedGreaterThan", "red", 105).order("by-Name").fetch();
+    	assertEquals(shapes, MongoQueryAdvisor.shapes().size());
+    }
+
+    public static class ColourCount {
+    	public String _id;
+    	public int count;
+    }
+    
+    @Test
+    public void aggregate(){
+    	Car.deleteAll();
+    	new Car("Toyota", "white", 150).save();
+    	new Car("Ford", "white", 180).save();
+    	new Car("Holden", "red", 200).save();
+    	
+    	List<Document> pipeline = Arrays.asList(
+    			new Document("$group", new Document("_id", "$colour").append("count", new Document("$sum", 1))),
+    			new Document("$sort", new Document("count", -1)));
+    	
+    	// the group key is kept in the _id field of the result class
+    	List<ColourCount> counts = Car.aggregate(pipeline).allowDiskUse().batchSize(100).fetch(ColourCount.class);
+    	assertEquals(2, counts.size());
+    	assertEquals("white", counts.get(0)._id);
+    	assertEquals(2, counts.get(0).count);
+    	
+    	// first() only reads one result
+    	Document first = Car.aggregate(pipeline).maxTime(10, TimeUnit.SECONDS).first(Document.class);
+    	assertEquals("white", first.getString("_id"));
+    	
+    	try (Stream<ColourCount> stream = Car.aggregate(pipeline).stream(ColourCount.class)) {
+    		assertEquals(3, stream.mapToInt(count -> count.count).sum());
+    	}
+    	
+    	// models are still read by default
+    	List<Car> cars = Car.aggregate(Arrays.asList(new Document("$match", new Document("colour", "red")))).fetch();
+    	assertEquals("Holden", cars.get(0).name);
+    }
+    
+    @Test
+    public void tail() throws InterruptedException{
+    	MongoDB.createCappedCollections(Arrays.<Class>asList(Event.class));
+    	new Event("info", "before the tail").save();
+    	
+    	BlockingQueue<Event> received = new LinkedBlockingQueue<Event>();
+    	try (MongoTail<Event> tail = Event.tail(new Document("type", "error"), (Event event) -> received.add(event))) {
+    		// only the matching models saved after the tail started are received
+    		Thread.sleep(500);
+    		new Event("info", "ignored").save();
+    		Event error = new Event("error", "received");
+    		error.save();
+    		
+    		Event event = received.poll(10, TimeUnit.SECONDS);
+    		assertNotNull(event);
+    		assertEquals("received", event.message);
+    		assertEquals(error.get_id(), tail.getLastId());
+    		assertTrue(received.isEmpty());
+    		assertTrue(tail.isRunning());
+    	}
+    	
+    	// the filter is applied on the client, unsupported operators fail straight away
+    	try {
+    		Event.tail(new Document("$where", "this.type == 'error'"), (Event event) -> received.add(event));
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertTrue(e.getMessage().contains("$where"));
+    	}
+    	
+    	// the collection is still capped once emptied
+    	Event.deleteAll();
+    	assertTrue(MongoDB.db().runCommand(new Document("collStats", "event")).getBoolean("capped"));
+    }
+    
+    @Test
+    public void connections(){
+    	Reading.deleteAll();
+    	new Reading("boiler", 71.5).save();
+    	
+    	// the readings are kept in the database of the telemetry connection
+    	assertEquals("play-telemetry", MongoDB.db("reading").getName());
+    	assertEquals(1, Reading.count());
+    	assertEquals(0, MongoDB.db().getCollection("reading").count());
+    	assertEquals("boiler", Reading.find().<Reading>first().sensor);
+    	assertTrue(MongoDB.connections().containsKey("telemetry"));
+    	
+    	// the other models stay in the default database
+    	assertEquals("play", MongoDB.db("car").getName());
+    }
+    
+    @Test
+    public void collectionOptions(){
+    	// the collection handles are cached, with the options declared on the entity
+    	assertSame(MongoDB.collection("reading"), MongoDB.collection("reading"));
+    	assertEquals(ReadPreference.secondaryPreferred(), MongoDB.collection("reading").getReadPreference());
+    	assertEquals(WriteConcern.MAJORITY, MongoDB.collection("reading", Reading.class).getWriteConcern());
+    	assertEquals(ReadPreference.primary(), MongoDB.collection("car").getReadPreference());
+    	
+    	// a cursor can read from elsewhere, keeping its query
+    	new Car("Toyota", "white", 150).save();
+    	new Car("Ford", "red", 180).save();
+    	List<Car> cars = Car.find("byColour", "red").batchSize(10).readPreference("nearest").fetch();
+    	assertEquals(1, cars.size());
+    	assertEquals("Ford", cars.get(0).name);
+    }
+    
+    @Test
+    public void writeBatches() throws Exception{
+    	Audit.deleteAll();
+    	
+    	// concurrent saves are sent together, each caller waits for its own write
+    	ExecutorService executor = Executors.newFixedThreadPool(20);
+    	List<Future<Audit>> saved = new ArrayList<Future<Audit>>();
+    	for (int i = 0; i < 200; i++){
+    		final int n = i;
+    		saved.add(executor.submit(() -> new Audit("user" + n, "login").save()));
+    	}
+    	for (Future<Audit> audit : saved){
+    		assertNotNull(audit.get().get_id());
+    	}
+    	executor.shutdown();
+    	assertEquals(200, Audit.count());
+    	
+    	MongoWriteBatch batch = MongoWriteBatch.of("audit", Audit.class);
+    	assertEquals(200, batch.getWrites());
+    	assertTrue(batch.getBatches() < 200);
+    	
+    	// the queued variants return straight away, with the _id already set
+    	Audit audit = new Audit("user1", "logout");
+    	CompletableFuture<Audit> queued = audit.saveQueued();
+    	assertNotNull(audit.get_id());
+    	assertSame(audit, queued.get(10, TimeUnit.SECONDS));
+    	audit.deleteQueued().get(10, TimeUnit.SECONDS);
+    	assertEquals(200, Audit.count());
+    	
+    	// writes of the same model land in the order they were queued
+    	Audit last = new Audit("user2", "login");
+    	last.saveQueued();
+    	CompletableFuture<Audit> gone = last.deleteQueued();
+    	gone.get(10, TimeUnit.SECONDS);
+    	assertNull(Audit.findById(last.get_id()));
+    	
+    	// a failed write only fails its own future, the others of its batch are written
+    	MongoDB.collection("audit").createIndex(new Document("user", 1), new IndexOptions().unique(true).name("user_unique"));
+    	try {
+    		new Audit("user3", "login").save();
+    		CompletableFuture<Audit> before = new Audit("user4", "login").saveQueued();
+    		Audit duplicate = new Audit("user3", "logout");
+    		CompletableFuture<Audit> failed = duplicate.saveQueued();
+    		CompletableFuture<Audit> after = new Audit("user5", "login").saveQueued();
+    		
+    		assertNotNull(before.get(10, TimeUnit.SECONDS).get_id());
+    		assertNotNull(after.get(10, TimeUnit.SECONDS).get_id());
+    		try {
+    			failed.get(10, TimeUnit.SECONDS);
+    			fail();
+    		} catch (ExecutionException e) {
+    			assertTrue(e.getCause() instanceof MongoWriteException);
+    		}
+    		assertNull(duplicate.get_id());
+    		assertEquals(1, Audit.count("byUser", "user4"));
+    		assertEquals(1, Audit.count("byUser", "user5"));
+    	} finally {
+    		MongoDB.collection("audit").dropIndex("user_unique");
+    	}
+    }
+    
+    @Test
+    public void counts(){
+    	new Car("Toyota", "white", 150).save();
+    	new Car("Ford", "white", 180).save();
+    	new Car("Holden", "red", 200).save();
+    	
+    	// read from the collection metadata, without a scan
+    	assertEquals(3, Car.estimatedCount());
+    	
+    	// the deletes return the number of models removed
+    	assertEquals(2, Car.delete("byColour", "white"));
+    	assertEquals(0, Car.delete("byColour", "white"));
+    	assertEquals(1, Car.deleteAll());
+    	assertEquals(0, Car.estimatedCount());
+    	
+    	// cached counts are kept for their ttl, even after writes
+    	PageView.deleteAll();
+    	MongoCountCache.invalidate("pageview");
+    	new PageView("/").save();
+    	new PageView("/about").save();
+    	assertEquals(2, PageView.count());
+    	assertEquals(1, PageView.count("byPage", "/"));
+    	new PageView("/").save();
+    	assertEquals(2, PageView.count());
+    	assertEquals(1, PageView.count("byPage", "/"));
+    	assertEquals(3, PageView.estimatedCount());
+    	
+    	MongoCountCache cache = MongoCountCache.get("pageview");
+    	assertEquals(2, cache.getHits());
+    	MongoCountCache.invalidate("pageview");
+    	assertEquals(3, PageView.count());
+    }
+    
+    @Test
+    public void atomicUpdates(){
+    	new Car("Toyota", "white", 150).save();
+    	new Car("Ford", "white", 180).save();
+    	
+    	// the parameters of the query come first, then those of the update
+    	assertEquals(1, Car.update("byName", "incTopSpeed", "Toyota", 10));
+    	assertEquals(160, Car.find("byName", "Toyota").<Car>first().topSpeed);
+    	
+    	assertEquals(2, Car.updateMany("byColour", "setColourAndIncTopSpeed", "white", "blue", 1));
+    	assertEquals(2, Car.count("byColour", "blue"));
+    	
+    	assertEquals(0, Car.update(new Document("name", "Holden"), new Document("$set", new Document("colour", "red"))));
+    	ObjectId inserted = Car.upsert("byName", "setColourAndTopSpeed", "Holden", "red", 200);
+    	assertNotNull(inserted);
+    	assertEquals("Holden", Car.<Car>findById(inserted).name);
+    	assertNull(Car.upsert("byName", "setTopSpeed", "Holden", 210));
+    	
+    	// the model is returned as it is after the update
+    	Car ford = Car.findAndModify("byName", "incTopSpeed", "Ford", 5);
+    	assertEquals(186, ford.topSpeed);
+    	Car fastest = Car.findAndModify(new Document(), new Document("$set", new Document("colour", "gold")), new FindOneAndUpdateOptions().sort(new Document("topSpeed", -1)));
+    	assertEquals("Holden", fastest.name);
+    	assertEquals("gold", fastest.colour);
+    	assertNull(Car.findAndModify("byName", "setColour", "Lada", "grey"));
+    }
+    
+    @Test
+    public void parallelScan(){
+    	// _ids created over a day, so that the collection splits into ranges
+    	List<Document> cars = new ArrayList<Document>();
+    	long start = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+    	for (int i = 0; i < 1000; i++){
+    		Date created = new Date(start + i * TimeUnit.MINUTES.toMillis(1));
+    		cars.add(new Document("_id", new ObjectId(created, i)).append("name", "Car" + i).append("colour", i % 2 == 0 ? "red" : "blue").append("topSpeed", i));
+    	}
+    	MongoDB.collection("car").insertMany(cars);
+    	
+    	AtomicLong speeds = new AtomicLong();
+    	MongoParallelScan<Car> scan = Car.<Car>parallelScan(8, car -> speeds.addAndGet(car.topSpeed));
+    	assertEquals(1000, scan.await());
+    	assertEquals(8, scan.getPartitions());
+    	assertEquals(1.0, scan.getProgress(), 0);
+    	assertEquals(999 * 1000 / 2, speeds.get());
+    	
+    	assertEquals(500, Car.<Car>parallelScan(new Document("colour", "red"), 4, car -> assertEquals("red", car.colour)).await());
+    	
+    	// a cancelled scan stops early
+    	MongoParallelScan<Car> slow = Car.<Car>parallelScan(4, car -> {
+    		try {
+    			Thread.sleep(1);
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		}
+    	});
+    	slow.cancel();
+    	try {
+    		slow.await();
+    		fail("the scan was cancelled");
+    	} catch (CancellationException e) {
+    		assertTrue(slow.getScanned() < 1000);
+    	}
+    	
+    	// the first error of the consumer stops the scan and is thrown by await()
+    	try {
+    		Car.<Car>parallelScan(4, car -> { throw new IllegalStateException("broken " + car.name); }).await();
+    		fail("the consumer failed");
+    	} catch (IllegalStateException e) {
+    		assertTrue(e.getMessage().startsWith("broken"));
+    	}
+    }
+    
+    @Test
+    public void fixtures() throws IOException{
+    	new Car("Kia", "green", 170).save();
+    	
+    	// reset empties the collection before loading the mongoexport file
+    	assertEquals(5, MongoFixtures.reset("test/cars.json", Car.class));
+    	assertEquals(5, Car.count());
+    	assertEquals("Mark", Car.find("byName", "Ford").<Car>first().driver.name);
+    	
+    	// a mongodump file is loaded as it is
+    	File dump = File.createTempFile("car", ".bson");
+    	try (OutputStream out = new FileOutputStream(dump)) {
+    		for (RawBsonDocument car : MongoDB.collection("car", RawBsonDocument.class).find()){
+    			ByteBuf bytes = car.getByteBuffer();
+    			byte[] copy = new byte[bytes.remaining()];
+    			bytes.get(copy);
+    			out.write(copy);
+    		}
+    	}
+    	assertEquals(5, MongoFixtures.reset(dump, Car.class));
+    	assertEquals(2, Car.count("byColour", "red"));
+    	
+    	// load adds to the models already there
+    	Car.deleteAll();
+    	new Car("Kia", "green", 170).save();
+    	assertEquals(5, MongoFixtures.load(dump, Car.class));
+    	assertEquals(6, Car.count());
+    	dump.delete();
+    }
+    
     @Test
     public void mongoInformation(){
     	Car myCar = new Car("Toyota", "white", 150);
@@ -181,4 +910,29 @@ public class MongoModelTest extends UnitTest {
     	
     	assertEquals(3, Car.getIndexes().length);
     }
+    
+    @Test
+    public void declaredIndexes(){
+    	MongoIndexes.await();
+    	MongoDB.collection("dealer").drop();
+    	
+    	// the @MongoIndexed name field and the @MongoCompoundIndex on city and name
+    	assertEquals(2, MongoIndexes.declared(Dealer.class).size());
+    	assertEquals(2, (int) MongoIndexes.ensure(Arrays.<Class>asList(Dealer.class)).join());
+    	assertEquals(3, Dealer.getIndexes().length);
+    	
+    	// existing indexes are not built again
+    	assertEquals(0, (int) MongoIndexes.ensure(Arrays.<Class>asList(Dealer.class)).join());
+    	
+    	// deleteAll() keeps the indexes
+    	assertEquals(0, Dealer.deleteAll());
+    	assertEquals(3, Dealer.getIndexes().length);
+    	
+    	new Dealer("Toyota Centre", "Sydney").save();
+    	try {
+    		new Dealer("Toyota Centre", "Perth").save();
+    		fail("the name index is unique");
+    	} catch (MongoException e) {
+    	}
+    }
 }
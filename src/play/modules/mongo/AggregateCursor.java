@@ -1,32 +1,103 @@
 package play.modules.mongodb;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+import org.bson.BsonDocument;
 import org.bson.Document;
-import org.bson.codecs.ObjectIdCodec;
-import org.bson.types.ObjectId;
+import org.bson.codecs.configuration.CodecConfigurationException;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.client.AggregateIterable;
-import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 
+/**
+ * A cursor over the results of an aggregation pipeline. Results are
+ * read as the model class by default; fetch(Class), first(Class),
+ * iterator(Class) and stream(Class) read them as any other class, such
+ * as a report row whose _id field holds the group key, or as a Document.
+ */
 public class AggregateCursor implements MongoCursor {
 
-	public AggregateIterable<Document> cursor;
+	public AggregateIterable<? extends MongoModel> cursor;
 	public Class clazz;
 	
+	/**
+	 * The queried collection and the pipeline, to run the pipeline
+	 * with other result classes, and for MongoMetrics.
+	 */
+	String collectionName;
+	MongoCollection<?> collection;
+	List<? extends Bson> pipeline;
+	
+	// the options set on the cursor, applied to every run of the pipeline
+	private Boolean allowDiskUse;
+	private int batchSize;
+	private long maxTimeMS;
+	
 	/**
 	 * Constructor
 	 * 
 	 * @param findIterable
 	 * @param clazz
 	 */
-	public AggregateCursor(AggregateIterable<Document> findIterable, Class clazz){
+	public AggregateCursor(AggregateIterable<? extends MongoModel> findIterable, Class clazz){
 		this.cursor = findIterable;
 		this.clazz = clazz;
 	}
 	
+	/**
+	 * Lets the stages of the pipeline write temporary files, so that a
+	 * $group or $sort over more than 100MB does not fail.
+	 * 
+	 * @return - the cursor
+	 */
+	public AggregateCursor allowDiskUse(){
+		return allowDiskUse(true);
+	}
+	
+	/**
+	 * Sets whether the stages of the pipeline may write temporary files.
+	 * 
+	 * @param allowDiskUse - true to allow temporary files
+	 * @return - the cursor
+	 */
+	public AggregateCursor allowDiskUse(boolean allowDiskUse){
+		this.allowDiskUse = allowDiskUse;
+		cursor.allowDiskUse(allowDiskUse);
+		return this;
+	}
+	
+	/**
+	 * Sets the number of results fetched from the server per batch.
+	 * 
+	 * @param batchSize - the batch size
+	 * @return - the cursor
+	 */
+	public AggregateCursor batchSize(int batchSize){
+		this.batchSize = batchSize;
+		cursor.batchSize(batchSize);
+		return this;
+	}
+	
+	/**
+	 * Sets how long the server may run the pipeline before aborting it.
+	 * 
+	 * @param maxTime - the time limit
+	 * @param timeUnit - the unit of the time limit
+	 * @return - the cursor
+	 */
+	public AggregateCursor maxTime(long maxTime, TimeUnit timeUnit){
+		this.maxTimeMS = timeUnit.toMillis(maxTime);
+		cursor.maxTime(maxTime, timeUnit);
+		return this;
+	}
+	
 	/**
 	 * Retrieves a list of MongoModels. This method will
 	 * return all of the models reachable from this cursor.
@@ -37,35 +108,180 @@ public class AggregateCursor implements MongoCursor {
 	@Override
 	public <T extends MongoModel> List<T> fetch(){
 		
-		List<T> resultList = new ArrayList<T>();
-				
-		for(Document document : cursor) {
-								
-			document.remove("_id");
-			T model = (T) MongoMapper.convertValue(document, clazz);
-			
-			resultList.add(model);
-				
-		}
+		List<T> resultList = fetch(clazz);
+		
+		MongoReferences.resolve(resultList);
 
 		return resultList;
+	
+	}
+	
+	/**
+	 * Retrieves all of the results, as the given class.
+	 * 
+	 * @param <R> - the result type
+	 * @param resultClass - the result class, e.g. a report row or Document
+	 * @return - the results
+	 */
+	public <R> List<R> fetch(Class<R> resultClass){
+		
+		final AggregateIterable<R> iterable = iterable(resultClass, false);
+		
+		return MongoMetrics.time(collectionName(), "aggregate", match(), () -> iterable.into(new ArrayList<R>()), List::size);
 		
 	}
 	
 	/**
-	 * Return the first model in 
+	 * Iterates over the models reachable from this cursor, 
+	 * decoding one batch at a time.
+	 * 
+	 * @param <T> - the specific MongoModel type
+	 * @return - an iterator over the models
+	 */
+	@Override
+	public <T extends MongoModel> MongoIterator<T> iterator(){
+		return iterator(clazz);
+	}
+	
+	/**
+	 * Iterates over the results as the given class, decoding one batch
+	 * at a time. Close the iterator if you stop early.
+	 * 
+	 * @param <R> - the result type
+	 * @param resultClass - the result class, e.g. a report row or Document
+	 * @return - an iterator over the results
+	 */
+	public <R> MongoIterator<R> iterator(Class<R> resultClass){
+		
+		final AggregateIterable<R> iterable = iterable(resultClass, false);
+		
+		// only the pipeline and its first batch are timed
+		return MongoMetrics.time(collectionName(), "aggregate", match(), () -> new MongoIterator<R>(iterable.iterator(), null, resultClass, batchSize), iterator -> 0);
+	
+	}
+	
+	/**
+	 * Returns a stream of the results as the given class. Close the
+	 * stream if it is not fully consumed, to release the driver cursor.
+	 * 
+	 * @param <R> - the result type
+	 * @param resultClass - the result class, e.g. a report row or Document
+	 * @return - a stream of results
+	 */
+	public <R> Stream<R> stream(Class<R> resultClass){
+		return MongoCursor.stream(iterator(resultClass));
+	}
+	
+	/**
+	 * Return the first model. A $limit stage is added to the pipeline,
+	 * so that the server stops after the first result.
+	 * 
 	 * @param <T> - the specific MongoModel type
 	 * @return - one instance of a MongoModel
 	 */
 	@Override
 	public <T extends MongoModel> T first(){
 			
-		Document document = cursor.first();
+		T model = (T) first(clazz);
 		
-		document.remove("_id");
-		T model = (T) MongoMapper.convertValue(document, clazz);
+		if (model != null){
+			MongoReferences.resolve(Collections.singletonList(model));
+		}
 		
 		return model;
+	
+	}
+	
+	/**
+	 * Returns the first result as the given class. A $limit stage is
+	 * added to the pipeline, so that the server stops after it.
+	 * 
+	 * @param <R> - the result type
+	 * @param resultClass - the result class, e.g. a report row or Document
+	 * @return - the first result, or null
+	 */
+	public <R> R first(Class<R> resultClass){
+		
+		final AggregateIterable<R> iterable = iterable(resultClass, true);
+		
+		return MongoMetrics.time(collectionName(), "aggregate", match(), () -> iterable.first(), first -> first == null ? 0 : 1);
+	
+	}
+	
+	/**
+	 * Returns the driver iterable running the pipeline for a result class,
+	 * with a $limit of 1 if only the first result is read.
+	 */
+	private <R> AggregateIterable<R> iterable(Class<R> resultClass, boolean firstOnly){
+		
+		if (collection == null){
+			// the cursor was not created by MongoDB.aggregate(), only its own iterable can be run
+			if (resultClass != clazz){
+				throw new IllegalStateException("This cursor can only read " + clazz.getName());
+			}
+			return (AggregateIterable<R>) cursor;
+		}
+		
+		if (resultClass == clazz && !firstOnly){
+			return (AggregateIterable<R>) cursor;
+		}
+		
+		List<Bson> stages = new ArrayList<Bson>(pipeline);
+		if (firstOnly){
+			stages.add(new Document("$limit", 1));
+		}
+		
+		AggregateIterable<R> iterable = collection(resultClass).aggregate(stages, resultClass);
+		
+		if (allowDiskUse != null){
+			iterable.allowDiskUse(allowDiskUse);
+		}
+		if (batchSize > 0){
+			iterable.batchSize(batchSize);
+		}
+		if (maxTimeMS > 0){
+			iterable.maxTime(maxTimeMS, TimeUnit.MILLISECONDS);
+		}
+		
+		return iterable;
+	
+	}
+	
+	/**
+	 * The collection, with a codec for the result class if the registry
+	 * has none: plain classes are read by a MongoEntityCodec.
+	 */
+	private MongoCollection<?> collection(Class<?> resultClass){
+		
+		CodecRegistry registry = collection.getCodecRegistry();
+		
+		try {
+			registry.get(resultClass);
+			return collection;
+		} catch (CodecConfigurationException e) {
+			return collection.withCodecRegistry(CodecRegistries.fromRegistries(
+					CodecRegistries.fromCodecs(new MongoEntityCodec(resultClass, registry)),
+					registry));
+		}
+		
+	}
+	
+	private String collectionName(){
+		return collectionName != null ? collectionName : MongoMetadata.of(clazz).collectionName();
+	}
+	
+	/**
+	 * The filter of the first $match stage, if the pipeline starts with one.
+	 */
+	private Bson match(){
+		
+		if (pipeline == null || pipeline.isEmpty()){
+			return null;
+		}
+		
+		BsonDocument stage = pipeline.get(0).toBsonDocument(BsonDocument.class, MongoDB.db().getCodecRegistry());
+		
+		return stage.isDocument("$match") ? stage.getDocument("$match") : null;
 		
 	}
 		
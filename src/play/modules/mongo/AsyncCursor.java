@@ -0,0 +1,132 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import play.libs.F;
+
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.MongoIterable;
+
+/**
+ * A cursor over the results of an asynchronous query. Instead of blocking,
+ * fetch() and first() return a promise which is redeemed once the driver
+ * has read the results, so that controllers can await() it without 
+ * holding a thread. The @MongoReference fields of the models are loaded
+ * before the promise is redeemed, off the thread of the driver.
+ */
+public class AsyncCursor {
+
+	public MongoIterable<? extends MongoModel> cursor;
+	public Class clazz;
+	
+	/**
+	 * The queried collection, the operation and its filter, for MongoMetrics.
+	 */
+	String collectionName;
+	String operation = "find";
+	Bson filter;
+	
+	/**
+	 * The projection of the query, kept by the models read, see MongoSnapshot.
+	 */
+	BsonDocument projection;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param iterable
+	 * @param clazz
+	 */
+	public AsyncCursor(MongoIterable<? extends MongoModel> iterable, Class clazz){
+		this.cursor = iterable;
+		this.clazz = clazz;
+	}
+	
+	/**
+	 * Retrieves a list of MongoModels. This method will
+	 * return all of the models reachable from this cursor.
+	 * 
+	 * @param <T> - the specific MongoModel type
+	 * @return - a promise of the list of MongoModel types
+	 */
+	public <T extends MongoModel> F.Promise<List<T>> fetch(){
+		
+		F.Promise<List<T>> promise = new F.Promise<List<T>>();
+		((MongoIterable<T>) cursor).into(new ArrayList<T>(), MongoMetrics.callback(collectionName(), operation, filter, List::size, loaded(new PromiseCallback<List<T>>(promise))));
+		
+		return promise;
+		
+	}
+	
+	/**
+	 * Return the first model in 
+	 * @param <T> - the specific MongoModel type
+	 * @return - a promise of one instance of a MongoModel, or null
+	 */
+	public <T extends MongoModel> F.Promise<T> first(){
+		
+		F.Promise<T> promise = new F.Promise<T>();
+		((MongoIterable<T>) cursor).first(MongoMetrics.callback(collectionName(), operation, filter, model -> 1, loaded(new PromiseCallback<T>(promise))));
+		
+		return promise;
+		
+	}
+	
+	/**
+	 * Records the projection of the models read and loads their references.
+	 * The references are read by blocking queries, so they are loaded on
+	 * another thread than the driver's.
+	 */
+	private <R> SingleResultCallback<R> loaded(final SingleResultCallback<R> callback){
+		
+		final boolean resolve = clazz != null && !MongoMetadata.of(clazz).references.isEmpty();
+		
+		if (projection == null && !resolve){
+			return callback;
+		}
+		
+		return (result, t) -> {
+			
+			final List<MongoModel> models;
+			if (result instanceof MongoModel){
+				models = Collections.singletonList((MongoModel) result);
+			} else if (result instanceof List){
+				models = (List<MongoModel>) result;
+			} else {
+				models = Collections.emptyList();
+			}
+			
+			if (projection != null){
+				MongoSnapshot.project(models, projection);
+			}
+			
+			if (!resolve || t != null || models.isEmpty()){
+				callback.onResult(result, t);
+				return;
+			}
+			
+			CompletableFuture.runAsync(() -> MongoReferences.resolve(models)).whenComplete((ignored, e) -> {
+				if (e != null){
+					callback.onResult(null, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+				} else {
+					callback.onResult(result, null);
+				}
+			});
+			
+		};
+		
+	}
+	
+	private String collectionName(){
+		return collectionName != null ? collectionName : MongoMetadata.of(clazz).collectionName();
+	}
+	
+}
@@ -0,0 +1,131 @@
+package play.modules.mongodb;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import play.libs.F;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.async.client.FindIterable;
+import com.mongodb.client.model.Projections;
+
+/**
+ * The asynchronous counterpart of the FindCursor.
+ */
+public class AsyncFindCursor extends AsyncCursor {
+
+	/**
+	 * Constructor
+	 * 
+	 * @param findIterable
+	 * @param clazz
+	 */
+	public AsyncFindCursor(FindIterable<? extends MongoModel> findIterable, Class clazz){
+		super(findIterable, clazz);
+	}
+	
+	/**
+	 * Retrieves a list of MongoModels. 
+	 * 
+	 * @param <T> - the specific type of MongoModel
+	 * @param page - the offset
+	 * @param length - the length of a page
+	 * @return - a promise of the list of MongoModel types
+	 */
+	public <T extends MongoModel> F.Promise<List<T>> fetch(int page, int length){
+		
+		if (length != 0){
+			findIterable().limit(length);
+		}
+		
+		if (page > 1){
+			findIterable().skip((page-1)*length);
+		}
+		
+		return fetch();
+		
+	}
+	
+	/**
+	 * Retrieves a list of MongoModels.
+	 * 
+	 * @param <T> - the specific type of MongoModel
+	 * @param limit - the number of models to return
+	 * @return - a promise of the list of MongoModel types
+	 */
+	public <T extends MongoModel> F.Promise<List<T>> fetch(int limit){
+		return fetch(1,limit);
+	}
+	
+	/**
+	 * Skips the given the number of records.
+	 * 
+	 * @param from - the number of records to skip
+	 * @return - the cursor
+	 */
+	public AsyncFindCursor from(int from){
+		findIterable().skip(from);
+		return this;
+	}
+	
+	/**
+	 * Sets the number of models fetched from the server per batch.
+	 * 
+	 * @param batchSize - the number of models per batch
+	 * @return - the cursor
+	 */
+	public AsyncFindCursor batchSize(int batchSize){
+		findIterable().batchSize(batchSize);
+		return this;
+	}
+	
+	/**
+	 * Only loads the given fields of the models, and their _id.
+	 * 
+	 * @param fields - the names of the fields to load
+	 * @return - the cursor
+	 * @see FindCursor#only(String...)
+	 */
+	public AsyncFindCursor only(String... fields){
+		return projection(Projections.include(fields));
+	}
+	
+	/**
+	 * Loads every field of the models except the given ones.
+	 * 
+	 * @param fields - the names of the fields to leave out
+	 * @return - the cursor
+	 * @see FindCursor#exclude(String...)
+	 */
+	public AsyncFindCursor exclude(String... fields){
+		return projection(Projections.exclude(fields));
+	}
+	
+	private AsyncFindCursor projection(Bson projection){
+		findIterable().projection(projection);
+		this.projection = projection.toBsonDocument(Document.class, MongoDB.db().getCodecRegistry());
+		return this;
+	}
+	
+	/**
+	 * Orders the objects pointed to by the cursor, using the
+	 * orderBy string.
+	 * @param orderBy - the string determining the parameters to order by
+	 * @return - the cursor
+	 */
+	public AsyncFindCursor order(String orderBy){
+		
+		BasicDBObject order = MongoDB.createOrderDbObject(orderBy);
+		findIterable().sort(order);
+		
+		return this;
+		
+	}
+	
+	private FindIterable<? extends MongoModel> findIterable(){
+		return (FindIterable<? extends MongoModel>) cursor;
+	}
+	
+}
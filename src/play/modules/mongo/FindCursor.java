@@ -1,27 +1,85 @@
 package play.modules.mongodb;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonInt32;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.Projections;
 
 public class FindCursor implements MongoCursor {
 
-	public FindIterable<Document> cursor;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	public FindIterable<? extends MongoModel> cursor;
 	public Class clazz;
+	public Bson filter;
+	public Bson sort;
+	public Bson projection;
+	
+	/**
+	 * The queried collection, for MongoMetrics.
+	 */
+	String collectionName;
+	
+	/**
+	 * The entity cache, used by first() when the filter is a single _id.
+	 */
+	MongoCache cache;
+	
+	/**
+	 * The query cache, used by fetch() and first().
+	 */
+	MongoQueryCache queryCache;
+	
+	// the skip set by from(), the filter set by after(), and the options set on the iterable
+	private int skip;
+	private Bson seek;
+	private int limit;
+	private int batchSize;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param findIterable
+	 * @param clazz
+	 */
+	public FindCursor(FindIterable<? extends MongoModel> findIterable, Class clazz){
+		this(findIterable, null, null, clazz);
+	}
 	
 	/**
 	 * Constructor
 	 * 
 	 * @param findIterable
+	 * @param filter - the filter the iterable was created with
+	 * @param sort - the sort the iterable was created with
 	 * @param clazz
 	 */
-	public FindCursor(FindIterable<Document> findIterable, Class clazz){
+	public FindCursor(FindIterable<? extends MongoModel> findIterable, Bson filter, Bson sort, Class clazz){
 		this.cursor = findIterable;
+		this.filter = filter;
+		this.sort = sort;
 		this.clazz = clazz;
 	}
 	
@@ -35,30 +93,62 @@ public class FindCursor implements MongoCursor {
 	 */
 	public <T extends MongoModel> List<T> fetch(int page, int length){
 		
-		List<T> resultList = new ArrayList<T>();
-		
 		if (length != 0){
 			cursor.limit(length);
+			limit = length;
 		}
 		
 		if (page > 1){
 			cursor.skip((page-1)*length);
 		}
 		
-		for(Document document : cursor) {
-				
-			ObjectId id = (ObjectId) document.remove("_id");
-			T model = (T) MongoMapper.convertValue(document, clazz);
-			model.set_id(id);
+		List<T> resultList = null;
+		
+		if (queryCache == null){
+			resultList = load();
+		} else {
+			
+			String key = queryKey("fetch", page > 1 ? (page-1)*length : skip, length);
+			long version = queryCache.version();
+			resultList = queryCache.getModels(key, clazz);
+			
+			if (resultList == null){
+				resultList = load();
+				queryCache.putModels(key, resultList, version);
+			}
 			
-			resultList.add(model);
-							
 		}
-
+		
+		MongoSnapshot.project(resultList, projected());
+		MongoReferences.resolve(resultList);
+		
 		return resultList;
 		
 	}
 	
+	private <T extends MongoModel> List<T> load(){
+		
+		MongoQueryAdvisor.record(collectionName(), "find", query(), sort);
+		
+		return MongoMetrics.time(collectionName(), "find", query(), () -> {
+			
+			List<T> resultList = new ArrayList<T>();
+			
+			for(MongoModel model : cursor) {
+				resultList.add((T) model);
+			}
+			
+			return resultList;
+			
+		}, List::size);
+		
+	}
+	
+	private MongoModel loadOne(){
+		MongoQueryAdvisor.record(collectionName(), "find", query(), sort);
+		return MongoMetrics.time(collectionName(), "find", query(), () -> cursor.first(), model -> model == null ? 0 : 1);
+	}
+	
 	/**
 	 * Retrieves a list of MongoModels.
 	 * 
@@ -82,6 +172,21 @@ public class FindCursor implements MongoCursor {
 		return fetch(0);
 	}
 	
+	/**
+	 * Iterates over the models reachable from this cursor, 
+	 * decoding one batch at a time.
+	 * 
+	 * @param <T> - the specific MongoModel type
+	 * @return - an iterator over the models
+	 */
+	@Override
+	public <T extends MongoModel> MongoIterator<T> iterator(){
+		MongoQueryAdvisor.record(collectionName(), "find", query(), sort);
+		
+		// only the query and its first batch are timed
+		return MongoMetrics.time(collectionName(), "find", query(), () -> new MongoIterator<T>(cursor.iterator(), projected(), clazz, batchSize), iterator -> 0);
+	}
+	
 	/**
 	 * Return the first model in 
 	 * @param <T> - the specific MongoModel type
@@ -90,11 +195,51 @@ public class FindCursor implements MongoCursor {
 	@Override
 	public <T extends MongoModel> T first() {
 		
-		Document document = cursor.first();
-					
-		ObjectId id = (ObjectId) document.remove("_id");
-		T model = (T) MongoMapper.convertValue(document, clazz);
-		model.set_id(id);
+		T model = loadFirst();
+		
+		if (model != null){
+			MongoSnapshot.project(Collections.singletonList(model), projected());
+			MongoReferences.resolve(Collections.singletonList(model));
+		}
+		
+		return model;
+		
+	}
+	
+	private <T extends MongoModel> T loadFirst() {
+		
+		ObjectId id = cache == null || skip > 0 || seek != null || projection != null ? null : filteredId();
+		
+		if (id == null){
+			return queryCache == null ? (T) loadOne() : (T) cachedFirst();
+		}
+		
+		long version = cache.version();
+		T model = (T) cache.get(id, clazz);
+		
+		if (model == null){
+			model = (T) loadOne();
+			if (model != null){
+				cache.put(model, version);
+			}
+		}
+		
+		return model;
+		
+	}
+	
+	private MongoModel cachedFirst(){
+		
+		String key = queryKey("first", skip, 1);
+		long version = queryCache.version();
+		List<MongoModel> cached = queryCache.getModels(key, clazz);
+		
+		if (cached != null){
+			return cached.isEmpty() ? null : cached.get(0);
+		}
+		
+		MongoModel model = loadOne();
+		queryCache.putModels(key, model == null ? Collections.<MongoModel>emptyList() : Collections.singletonList(model), version);
 		
 		return model;
 		
@@ -106,8 +251,100 @@ public class FindCursor implements MongoCursor {
 	 * @param from - the number of records to skip
 	 * @return - the cursor
 	 */
-	public MongoCursor from(int from){
+	public FindCursor from(int from){
 		cursor.skip(from);
+		skip = from;
+		return this;
+	}
+	
+	/**
+	 * Sets the number of models fetched from the server per batch. 
+	 * Smaller batches lower the memory used while iterating.
+	 * 
+	 * @param batchSize - the number of models per batch
+	 * @return - the cursor
+	 */
+	public FindCursor batchSize(int batchSize){
+		cursor.batchSize(batchSize);
+		this.batchSize = batchSize;
+		return this;
+	}
+	
+	/**
+	 * Reads the models with the given read preference instead of the one
+	 * of the collection, e.g. to send a report to the secondaries.
+	 * 
+	 * @param readPreference - the read preference
+	 * @return - the cursor
+	 */
+	public FindCursor readPreference(ReadPreference readPreference){
+		
+		Bson query = query();
+		FindIterable<? extends MongoModel> iterable = MongoDB.collection(collectionName(), clazz).withReadPreference(readPreference).find(query == null ? new BsonDocument() : query, clazz);
+		
+		// the iterable cannot change its read preference, the query is set again on a new one
+		if (sort != null){
+			iterable.sort(sort);
+		}
+		if (projection != null){
+			iterable.projection(projection);
+		}
+		if (skip > 0){
+			iterable.skip(skip);
+		}
+		if (limit > 0){
+			iterable.limit(limit);
+		}
+		if (batchSize > 0){
+			iterable.batchSize(batchSize);
+		}
+		
+		cursor = iterable;
+		return this;
+		
+	}
+	
+	/**
+	 * Reads the models with the given read preference instead of the one
+	 * of the collection.
+	 * 
+	 * @param readPreference - primary, primaryPreferred, secondary, secondaryPreferred or nearest
+	 * @return - the cursor
+	 */
+	public FindCursor readPreference(String readPreference){
+		return readPreference(MongoConnection.readPreference(readPreference, "readPreference"));
+	}
+	
+	/**
+	 * Only loads the given fields of the models, and their _id. The other
+	 * fields keep the values set by the model's constructor. Nested fields
+	 * are given with dots, e.g. "driver.name". Replaces any previous projection.
+	 * 
+	 * Models loaded this way are incomplete: saving one only writes the
+	 * changes to the loaded fields, the others are left as they are stored.
+	 * 
+	 * @param fields - the names of the fields to load
+	 * @return - the cursor
+	 */
+	public FindCursor only(String... fields){
+		return projection(Projections.include(fields));
+	}
+	
+	/**
+	 * Loads every field of the models except the given ones, which keep
+	 * the values set by the model's constructor. Replaces any previous projection.
+	 * 
+	 * @param fields - the names of the fields to leave out
+	 * @return - the cursor
+	 * @see #only(String...)
+	 */
+	public FindCursor exclude(String... fields){
+		return projection(Projections.exclude(fields));
+	}
+	
+	private FindCursor projection(Bson projection){
+		cursor.projection(projection);
+		this.projection = projection;
 		return this;
 	}
 	
@@ -117,13 +354,233 @@ public class FindCursor implements MongoCursor {
 	 * @param orderBy - the string determining the parameters to order by
 	 * @return - the cursor
 	 */
-	public MongoCursor order(String orderBy){
+	public FindCursor order(String orderBy){
 		
 		BasicDBObject order = MongoDB.createOrderDbObject(orderBy);
 		cursor.sort(order);
+		sort = order;
 		
 		return this;
 		
 	}
 	
+	/**
+	 * Restricts the cursor to the models that come after the given model
+	 * in the current order. Unlike from(), the server seeks straight to 
+	 * the position using the sort keys (plus _id to break ties) rather than
+	 * walking over the skipped models, so every page costs the same. 
+	 * Call it after order(), and keep the sort fields non null.
+	 * 
+	 * @param last - the last model of the previous page
+	 * @return - the cursor
+	 */
+	public FindCursor after(MongoModel last){
+		return after(sortValues(last));
+	}
+	
+	/**
+	 * Restricts the cursor to the models that come after the position
+	 * recorded in a page token. 
+	 * 
+	 * @param pageToken - a token returned by pageToken(), or null for the first page
+	 * @return - the cursor
+	 * @see #pageToken(MongoModel)
+	 */
+	public FindCursor after(String pageToken){
+		
+		if (pageToken == null || pageToken.length() == 0){
+			sort = keysetOrder();
+			cursor.sort(sort);
+			return this;
+		}
+		
+		String json = new String(Base64.getUrlDecoder().decode(pageToken), UTF8);
+		return after(BsonDocument.parse(json));
+		
+	}
+	
+	/**
+	 * Returns a token recording the position of the given model in the 
+	 * current order, to be passed to after(String) when fetching the next page.
+	 * 
+	 * @param last - the last model of the current page
+	 * @return - an opaque, url safe, page token
+	 */
+	public String pageToken(MongoModel last){
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(sortValues(last).toJson().getBytes(UTF8));
+	}
+	
+	private FindCursor after(BsonDocument values){
+		
+		BsonDocument order = keysetOrder();
+		List<String> keys = new ArrayList<String>(order.keySet());
+		
+		// (k1 > v1) or (k1 = v1 and k2 > v2) or ...
+		BsonArray or = new BsonArray();
+		
+		for (int i = 0; i < keys.size(); i++){
+			
+			BsonDocument clause = new BsonDocument();
+			
+			for (int j = 0; j < i; j++){
+				clause.put(keys.get(j), value(values, keys.get(j)));
+			}
+			
+			String key = keys.get(i);
+			String operator = order.get(key).asNumber().intValue() < 0 ? "$lt" : "$gt";
+			clause.put(key, new BsonDocument(operator, value(values, key)));
+			
+			or.add(clause);
+			
+		}
+		
+		BsonDocument seek = new BsonDocument("$or", or);
+		
+		if (filter != null){
+			seek = new BsonDocument("$and", new BsonArray(Arrays.<BsonValue>asList(toBsonDocument(filter), seek)));
+		}
+		
+		cursor.filter(seek);
+		cursor.sort(order);
+		cursor.skip(0);
+		this.seek = seek;
+		this.sort = order;
+		this.skip = 0;
+		
+		return this;
+		
+	}
+	
+	/**
+	 * The current order, with _id appended so that the order is total.
+	 */
+	private BsonDocument keysetOrder(){
+		
+		BsonDocument order = sort == null ? new BsonDocument() : toBsonDocument(sort);
+		
+		int direction = 1;
+		for (Map.Entry<String, BsonValue> entry : order.entrySet()){
+			if (!entry.getValue().isNumber()){
+				throw new IllegalArgumentException("Keyset pagination only supports ascending and descending orders, not " + entry.getKey());
+			}
+			direction = entry.getValue().asNumber().intValue() < 0 ? -1 : 1;
+		}
+		
+		if (!order.containsKey("_id")){
+			order.put("_id", new BsonInt32(direction));
+		}
+		
+		return order;
+		
+	}
+	
+	/**
+	 * Reads the values of the sort keys from a model.
+	 */
+	private BsonDocument sortValues(MongoModel last){
+		
+		if (last.get_id() == null){
+			throw new IllegalArgumentException("The model must have been saved");
+		}
+		
+		BsonDocument document = new BsonDocument();
+		Codec codec = registry().get(last.getClass());
+		codec.encode(new BsonDocumentWriter(document), last, EncoderContext.builder().build());
+		
+		BsonDocument values = new BsonDocument();
+		
+		for (String key : keysetOrder().keySet()){
+			
+			BsonValue value = document;
+			for (String part : key.split("\\.")){
+				value = value != null && value.isDocument() ? value.asDocument().get(part) : null;
+			}
+			
+			if (value == null){
+				throw new IllegalArgumentException("The model has no value for the sort key " + key);
+			}
+			
+			values.put(key, value);
+			
+		}
+		
+		return values;
+		
+	}
+	
+	private static BsonValue value(BsonDocument values, String key){
+		
+		BsonValue value = values.get(key);
+		
+		if (value == null){
+			throw new IllegalArgumentException("The page position has no value for the sort key " + key);
+		}
+		
+		return value;
+		
+	}
+	
+	/**
+	 * The projection of the query, kept by the models read, see MongoSnapshot.
+	 */
+	private BsonDocument projected(){
+		return projection == null ? null : toBsonDocument(projection);
+	}
+	
+	private BsonDocument toBsonDocument(Bson bson){
+		return bson.toBsonDocument(Document.class, registry());
+	}
+	
+	/**
+	 * The key of the current query in the query cache.
+	 */
+	private String queryKey(String operation, int skip, int limit){
+		
+		Bson query = query();
+		
+		BsonDocument key = new BsonDocument(operation, new BsonString(clazz.getName()))
+				.append("filter", query == null ? BsonNull.VALUE : toBsonDocument(query))
+				.append("sort", sort == null ? BsonNull.VALUE : toBsonDocument(sort))
+				.append("skip", new BsonInt32(skip))
+				.append("limit", new BsonInt32(limit))
+				.append("projection", projection == null ? BsonNull.VALUE : toBsonDocument(projection));
+		
+		return key.toJson();
+		
+	}
+	
+	/**
+	 * The filter of the current query, including the seek set by after().
+	 */
+	private Bson query(){
+		return seek != null ? seek : filter;
+	}
+	
+	private String collectionName(){
+		return collectionName != null ? collectionName : MongoMetadata.of(clazz).collectionName();
+	}
+	
+	/**
+	 * The _id the filter looks up, if it is a plain equality on _id.
+	 */
+	private ObjectId filteredId(){
+		
+		if (filter == null){
+			return null;
+		}
+		
+		BsonDocument document = toBsonDocument(filter);
+		
+		if (document.size() == 1 && document.containsKey("_id") && document.get("_id").isObjectId()){
+			return document.getObjectId("_id").getValue();
+		}
+		
+		return null;
+		
+	}
+	
+	private CodecRegistry registry(){
+		return MongoDB.db().getCodecRegistry();
+	}
+	
 }
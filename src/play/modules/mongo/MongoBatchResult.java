@@ -0,0 +1,69 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.mongodb.bulk.BulkWriteError;
+
+/**
+ * The outcome of one batch of a MongoDB.saveAll() call.
+ */
+public class MongoBatchResult {
+
+	/**
+	 * The models sent in this batch.
+	 */
+	public final List<? extends MongoModel> models;
+	
+	public int insertedCount;
+	public int matchedCount;
+	public int modifiedCount;
+	
+	/**
+	 * Whether the writes were acknowledged by the server. The counts
+	 * are only meaningful for acknowledged writes.
+	 */
+	public boolean acknowledged = true;
+	
+	/**
+	 * The models which failed to be written, and the matching errors.
+	 */
+	public final List<MongoModel> failedModels = new ArrayList<MongoModel>();
+	public final List<BulkWriteError> errors = new ArrayList<BulkWriteError>();
+	
+	/**
+	 * The models of an ordered batch which were not written because an
+	 * earlier write of the batch failed.
+	 */
+	public final List<MongoModel> skippedModels = new ArrayList<MongoModel>();
+	
+	/**
+	 * Whether the batch was skipped because an earlier ordered batch failed.
+	 */
+	public boolean skipped;
+	
+	public MongoBatchResult(List<? extends MongoModel> models){
+		this.models = Collections.unmodifiableList(models);
+	}
+	
+	public boolean hasErrors(){
+		return !errors.isEmpty();
+	}
+	
+	void fail(MongoModel model, BulkWriteError error){
+		failedModels.add(model);
+		errors.add(error);
+	}
+	
+	void skip(MongoModel model){
+		skippedModels.add(model);
+	}
+	
+	@Override
+	public String toString() {
+		return "MongoBatchResult [models=" + models.size() + ", inserted=" + insertedCount + ", matched=" + matchedCount
+				+ ", modified=" + modifiedCount + ", errors=" + errors.size() + ", skippedModels=" + skippedModels.size() + (skipped ? ", skipped" : "") + "]";
+	}
+	
+}
@@ -0,0 +1,338 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.types.ObjectId;
+
+import play.libs.Time;
+
+/**
+ * A bounded, in-memory cache of the models of one collection, keyed by _id.
+ * It is enabled by annotating a MongoEntity with @MongoCached.
+ *
+ * Models are kept in their encoded form and decoded on every hit, so each
+ * caller gets its own instance and changing it does not change the cache.
+ * Saves and deletes made through the module invalidate the affected entries;
+ * changes made by other applications are only seen once the entries expire.
+ */
+public class MongoCache {
+
+	/**
+	 * Number of entries examined to find the least frequently used one.
+	 */
+	private static final int LFU_SAMPLE = 8;
+
+	private static final MongoCache DISABLED = new MongoCache(null, 0, 0, MongoCached.Eviction.LRU);
+
+	private static final Map<Class<?>, MongoCache> byClass = new ConcurrentHashMap<Class<?>, MongoCache>();
+	private static final Map<String, MongoCache> byCollection = new ConcurrentHashMap<String, MongoCache>();
+
+	public final String collectionName;
+	public final int maxSize;
+	public final long ttl;
+	public final MongoCached.Eviction eviction;
+
+	private final LinkedHashMap<ObjectId, Entry> entries;
+
+	private long version;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private static class Entry {
+
+		final RawBsonDocument document;
+		final long expires;
+		int uses;
+
+		Entry(RawBsonDocument document, long expires){
+			this.document = document;
+			this.expires = expires;
+		}
+
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param collectionName - the cached collection
+	 * @param maxSize - the maximum number of models kept
+	 * @param ttl - how long a model is kept, in milliseconds, or 0 to keep it until evicted
+	 * @param eviction - the eviction policy
+	 */
+	public MongoCache(String collectionName, int maxSize, long ttl, MongoCached.Eviction eviction){
+		this.collectionName = collectionName;
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.eviction = eviction;
+		this.entries = new LinkedHashMap<ObjectId, Entry>(16, 0.75f, eviction == MongoCached.Eviction.LRU);
+	}
+
+	/**
+	 * Returns the cache of a collection if the model class is annotated
+	 * with @MongoCached, creating it on first use. A collection shared by
+	 * several classes has a single cache.
+	 *
+	 * @param collectionName - the collection
+	 * @param clazz - the type of MongoModel
+	 * @return - the cache, or null if the class is not cached
+	 */
+	public static MongoCache of(String collectionName, Class<?> clazz){
+
+		MongoCache cache = byClass.get(clazz);
+
+		if (cache == null){
+
+			MongoCached annotation = clazz.getAnnotation(MongoCached.class);
+
+			if (annotation == null){
+				cache = DISABLED;
+			} else {
+				synchronized (byCollection) {
+					cache = byCollection.get(collectionName);
+					if (cache == null){
+						long ttl = annotation.ttl().length() == 0 ? 0 : Time.parseDuration(annotation.ttl()) * 1000L;
+						cache = new MongoCache(collectionName, annotation.maxSize(), ttl, annotation.eviction());
+						byCollection.put(collectionName, cache);
+					}
+				}
+			}
+
+			byClass.put(clazz, cache);
+
+		}
+
+		return cache == DISABLED ? null : cache;
+
+	}
+
+	/**
+	 * Returns the cache of a collection, if one has been created.
+	 *
+	 * @param collectionName - the collection
+	 * @return - the cache, or null
+	 */
+	public static MongoCache get(String collectionName){
+		return byCollection.get(collectionName);
+	}
+
+	/**
+	 * Returns all of the caches created so far.
+	 *
+	 * @return - the caches
+	 */
+	public static Collection<MongoCache> caches(){
+		return new ArrayList<MongoCache>(byCollection.values());
+	}
+
+	/**
+	 * Removes a model from the cache of a collection, if there is one.
+	 *
+	 * @param collectionName - the collection
+	 * @param id - the _id of the model
+	 */
+	public static void invalidate(String collectionName, ObjectId id){
+		MongoCache cache = byCollection.get(collectionName);
+		if (cache != null){
+			cache.invalidate(id);
+		}
+	}
+
+	/**
+	 * Empties the cache of a collection, if there is one.
+	 *
+	 * @param collectionName - the collection
+	 */
+	public static void invalidateAll(String collectionName){
+		MongoCache cache = byCollection.get(collectionName);
+		if (cache != null){
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Forgets all of the caches. Called when the application classes are reloaded.
+	 */
+	public static void reset(){
+		synchronized (byCollection) {
+			byClass.clear();
+			byCollection.clear();
+		}
+	}
+
+	/**
+	 * Returns a copy of the cached model with the given _id.
+	 *
+	 * @param <T> - the type of MongoModel
+	 * @param id - the _id of the model
+	 * @param clazz - the type of MongoModel
+	 * @return - the model, or null if it is not cached
+	 */
+	public <T> T get(ObjectId id, Class<T> clazz){
+
+		RawBsonDocument document;
+
+		synchronized (this) {
+
+			Entry entry = entries.get(id);
+
+			if (entry != null && ttl > 0 && entry.expires < System.currentTimeMillis()){
+				entries.remove(id);
+				entry = null;
+			}
+
+			if (entry == null){
+				misses++;
+				return null;
+			}
+
+			hits++;
+			entry.uses++;
+			document = entry.document;
+
+		}
+
+		return document.decode(MongoDB.db().getCodecRegistry().get(clazz));
+
+	}
+
+	/**
+	 * The version of the cache, which changes on every invalidation. Read it
+	 * before querying the database, and pass it to put() with the result, so
+	 * that a model read before a concurrent write is not cached.
+	 *
+	 * @return - the version
+	 */
+	public synchronized long version(){
+		return version;
+	}
+
+	/**
+	 * Adds a model to the cache, unless the cache was invalidated since the
+	 * given version was read.
+	 *
+	 * @param model - the model, read from the database
+	 * @param version - the version read before the model
+	 */
+	public void put(MongoModel model, long version){
+
+		ObjectId id = model.get_id();
+
+		if (id == null || maxSize <= 0){
+			return;
+		}
+
+		Codec codec = MongoDB.db().getCodecRegistry().get(model.getClass());
+		RawBsonDocument document = new RawBsonDocument(model, codec);
+
+		synchronized (this) {
+
+			if (version != this.version){
+				return;
+			}
+
+			if (!entries.containsKey(id)){
+				while (entries.size() >= maxSize){
+					evict();
+				}
+			}
+
+			entries.put(id, new Entry(document, System.currentTimeMillis() + ttl));
+
+		}
+
+	}
+
+	/**
+	 * Removes a model from the cache.
+	 *
+	 * @param id - the _id of the model
+	 */
+	public synchronized void invalidate(ObjectId id){
+		version++;
+		entries.remove(id);
+	}
+
+	/**
+	 * Removes every model from the cache.
+	 */
+	public synchronized void clear(){
+		version++;
+		entries.clear();
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+
+	/**
+	 * The share of lookups served from the cache.
+	 *
+	 * @return - a ratio between 0 and 1
+	 */
+	public synchronized double getHitRatio(){
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * Resets the hit, miss and eviction counters.
+	 */
+	public synchronized void resetStatistics(){
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	/**
+	 * Evicts the eldest entry for LRU (the map is in access order), or the
+	 * least used of the eldest entries for LFU (the map is in insertion order).
+	 */
+	private void evict(){
+
+		Iterator<Map.Entry<ObjectId, Entry>> iterator = entries.entrySet().iterator();
+		ObjectId victim = null;
+
+		if (eviction == MongoCached.Eviction.LRU){
+			victim = iterator.next().getKey();
+		} else {
+			int fewest = Integer.MAX_VALUE;
+			for (int i = 0; i < LFU_SAMPLE && iterator.hasNext(); i++){
+				Map.Entry<ObjectId, Entry> entry = iterator.next();
+				if (entry.getValue().uses < fewest){
+					fewest = entry.getValue().uses;
+					victim = entry.getKey();
+				}
+			}
+		}
+
+		entries.remove(victim);
+		evictions++;
+
+	}
+
+	@Override
+	public synchronized String toString(){
+		return String.format("%s: %d/%d models, %d hits, %d misses, %d evictions", collectionName, entries.size(), maxSize, hits, misses, evictions);
+	}
+
+}
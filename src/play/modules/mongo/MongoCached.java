@@ -0,0 +1,45 @@
+package play.modules.mongodb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Keeps the models of a MongoEntity in a MongoCache, so that 
+ * lookups by _id are served from memory.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface MongoCached {
+
+	/**
+	 * The eviction policies of the cache.
+	 */
+	enum Eviction {
+		/** evicts the least recently used model */
+		LRU,
+		/** evicts the least frequently used model among the oldest ones */
+		LFU
+	}
+	
+	/**
+	 * The maximum number of models kept in the cache.
+	 * @return
+	 */
+	int maxSize() default 1000;
+	
+	/**
+	 * How long a model stays in the cache, e.g. "30s", "10min" or "1h".
+	 * An empty string keeps models until they are evicted.
+	 * @return
+	 */
+	String ttl() default "10min";
+	
+	/**
+	 * Which model is evicted when the cache is full.
+	 * @return
+	 */
+	Eviction eviction() default Eviction.LRU;
+
+}
@@ -0,0 +1,24 @@
+package play.modules.mongodb;
+
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * Provides a MongoEntityCodec for every MongoModel class, so that
+ * collections can be read and written as models directly.
+ */
+public class MongoCodecProvider implements CodecProvider {
+
+	@Override
+	public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+
+		if (MongoModel.class.isAssignableFrom(clazz)){
+			return new MongoEntityCodec<T>(clazz, registry);
+		}
+
+		return null;
+
+	}
+
+}
@@ -0,0 +1,44 @@
+package play.modules.mongodb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares an index on several fields of a MongoEntity. The fields are
+ * given as an index string, in the same format as index(), e.g. 
+ * "onNameAnd-TopSpeed". The missing indexes are built in the background
+ * when the application starts, see MongoIndexes.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Repeatable(MongoCompoundIndexes.class)
+public @interface MongoCompoundIndex {
+
+	/**
+	 * The index string.
+	 * @return
+	 */
+	String value();
+	
+	/**
+	 * Whether two models may not have the same combination of values.
+	 * @return
+	 */
+	boolean unique() default false;
+	
+	/**
+	 * Whether models without the fields are left out of the index.
+	 * @return
+	 */
+	boolean sparse() default false;
+	
+	/**
+	 * The name of the index. By default the server derives it from the keys.
+	 * @return
+	 */
+	String name() default "";
+
+}
@@ -0,0 +1,17 @@
+package play.modules.mongodb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Holds several @MongoCompoundIndex annotations.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface MongoCompoundIndexes {
+
+	MongoCompoundIndex[] value();
+
+}
@@ -0,0 +1,223 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import play.libs.Time;
+
+/**
+ * A cache of the count() results of one collection, keyed by filter. It is
+ * enabled by annotating a MongoEntity with @MongoCountCached.
+ *
+ * A count is kept for ttl milliseconds, whatever is written to the
+ * collection meanwhile. When it expires, the first caller counts again and
+ * the concurrent callers of the same filter wait for its result, so a
+ * popular count is run once per ttl however many requests need it.
+ */
+public class MongoCountCache {
+
+	private static final MongoCountCache DISABLED = new MongoCountCache(null, 0, 0);
+
+	private static final Map<Class<?>, MongoCountCache> byClass = new ConcurrentHashMap<Class<?>, MongoCountCache>();
+	private static final Map<String, MongoCountCache> byCollection = new ConcurrentHashMap<String, MongoCountCache>();
+
+	public final String collectionName;
+	public final int maxSize;
+	public final long ttl;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * A count, completed by the thread which runs it.
+	 */
+	private static class Entry {
+
+		final CompletableFuture<Long> count = new CompletableFuture<Long>();
+		final long expires;
+
+		Entry(long expires){
+			this.expires = expires;
+		}
+
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param collectionName - the counted collection
+	 * @param maxSize - the maximum number of filters whose count is kept
+	 * @param ttl - how long a count is kept, in milliseconds
+	 */
+	public MongoCountCache(String collectionName, int maxSize, long ttl){
+		this.collectionName = collectionName;
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Returns the count cache of a collection if the model class is annotated
+	 * with @MongoCountCached, creating it on first use.
+	 *
+	 * @param collectionName - the collection
+	 * @param clazz - the type of MongoModel
+	 * @return - the cache, or null if the counts are not cached
+	 */
+	public static MongoCountCache of(String collectionName, Class<?> clazz){
+
+		MongoCountCache cache = byClass.get(clazz);
+
+		if (cache == null){
+
+			MongoCountCached annotation = clazz.getAnnotation(MongoCountCached.class);
+
+			if (annotation == null){
+				cache = DISABLED;
+			} else {
+				synchronized (byCollection) {
+					cache = byCollection.get(collectionName);
+					if (cache == null){
+						cache = new MongoCountCache(collectionName, annotation.maxSize(), Time.parseDuration(annotation.ttl()) * 1000L);
+						byCollection.put(collectionName, cache);
+					}
+				}
+			}
+
+			byClass.put(clazz, cache);
+
+		}
+
+		return cache == DISABLED ? null : cache;
+
+	}
+
+	/**
+	 * Returns the count cache of a collection, if one has been created.
+	 *
+	 * @param collectionName - the collection
+	 * @return - the cache, or null
+	 */
+	public static MongoCountCache get(String collectionName){
+		return byCollection.get(collectionName);
+	}
+
+	/**
+	 * Returns all of the count caches created so far.
+	 *
+	 * @return - the caches
+	 */
+	public static Collection<MongoCountCache> caches(){
+		return new ArrayList<MongoCountCache>(byCollection.values());
+	}
+
+	/**
+	 * Empties the count cache of a collection, if there is one, e.g. after a
+	 * bulk load whose totals must show straight away.
+	 *
+	 * @param collectionName - the collection
+	 */
+	public static void invalidate(String collectionName){
+		MongoCountCache cache = byCollection.get(collectionName);
+		if (cache != null){
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Forgets all of the caches. Called when the application classes are reloaded.
+	 */
+	public static void reset(){
+		synchronized (byCollection) {
+			byClass.clear();
+			byCollection.clear();
+		}
+	}
+
+	/**
+	 * Returns the cached count of a filter, or runs the counter and caches
+	 * its result.
+	 *
+	 * @param key - the filter key
+	 * @param counter - counts the models in the database
+	 * @return - the count
+	 */
+	public long count(String key, LongSupplier counter){
+
+		long now = System.currentTimeMillis();
+
+		if (entries.size() >= maxSize){
+			entries.values().removeIf(entry -> entry.expires <= now);
+			if (entries.size() >= maxSize && !entries.containsKey(key)){
+				// full of fresh counts, this one is not kept
+				misses.incrementAndGet();
+				return counter.getAsLong();
+			}
+		}
+
+		Entry created = new Entry(now + ttl);
+		Entry entry = entries.compute(key, (k, existing) -> existing != null && existing.expires > now ? existing : created);
+
+		if (entry != created){
+			hits.incrementAndGet();
+			return await(entry);
+		}
+
+		misses.incrementAndGet();
+
+		try {
+			long count = counter.getAsLong();
+			created.count.complete(count);
+			return count;
+		} catch (RuntimeException e) {
+			// the waiting callers fail too, the next one counts again
+			entries.remove(key, created);
+			created.count.completeExceptionally(e);
+			throw e;
+		}
+
+	}
+
+	private static long await(Entry entry){
+		try {
+			return entry.count.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes every count from the cache.
+	 */
+	public void clear(){
+		entries.clear();
+	}
+
+	public int size(){
+		return entries.size();
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	@Override
+	public String toString(){
+		return String.format("%s: %d/%d counts, %d hits, %d misses (ttl %d ms)", collectionName, entries.size(), maxSize, hits.get(), misses.get(), ttl);
+	}
+
+}
@@ -0,0 +1,30 @@
+package play.modules.mongodb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Keeps the results of the count() queries of a MongoEntity in a
+ * MongoCountCache for a while. Unlike @MongoQueryCached, the counts are
+ * not dropped when the collection is written, so they may be up to ttl
+ * old: this suits the totals of large and busy collections.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface MongoCountCached {
+
+	/**
+	 * How long a count stays in the cache, e.g. "30s", "10min" or "1h".
+	 * @return
+	 */
+	String ttl() default "30s";
+	
+	/**
+	 * The maximum number of filters whose count is kept.
+	 * @return
+	 */
+	int maxSize() default 1000;
+
+}
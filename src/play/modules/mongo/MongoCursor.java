@@ -1,16 +1,12 @@
 package play.modules.mongodb;
 
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-
-import org.bson.Document;
-import org.bson.types.ObjectId;
-
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBCursor;
-import com.mongodb.DBObject;
-import com.mongodb.client.FindIterable;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -35,5 +31,84 @@ public interface MongoCursor {
 	 * @return - one instance of a MongoModel
 	 */
 	<T extends MongoModel> T first();
+	
+	/**
+	 * Iterates over the models reachable from this cursor without
+	 * loading all of them in memory. The iterator releases the driver
+	 * cursor once it is exhausted; close it if you stop early.
+	 * 
+	 * @param <T> - the specific MongoModel type
+	 * @return - an iterator over the models
+	 */
+	<T extends MongoModel> MongoIterator<T> iterator();
+	
+	/**
+	 * Returns the models reachable from this cursor as an Iterable, 
+	 * for use in for-each loops. Each call to iterator() runs the query.
+	 * 
+	 * @param <T> - the specific MongoModel type
+	 * @return - an iterable over the models
+	 */
+	default <T extends MongoModel> Iterable<T> iterable(){
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				return MongoCursor.this.iterator();
+			}
+		};
+	}
+	
+	/**
+	 * Passes each model reachable from this cursor to the action, 
+	 * one at a time. The driver cursor is released when done.
+	 * 
+	 * @param <T> - the specific MongoModel type
+	 * @param action - the action to run for each model
+	 */
+	default <T extends MongoModel> void forEach(Consumer<? super T> action){
+		
+		MongoIterator<T> iterator = iterator();
+		
+		try {
+			while (iterator.hasNext()){
+				action.accept(iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+		
+	}
+	
+	/**
+	 * Returns a sequential stream over the models reachable from this
+	 * cursor. Close the stream (e.g. with try-with-resources) if it is
+	 * not fully consumed, to release the driver cursor.
+	 * 
+	 * @param <T> - the specific MongoModel type
+	 * @return - a stream of models
+	 */
+	default <T extends MongoModel> Stream<T> stream(){
+		return stream(this.<T>iterator());
+	}
+	
+	/**
+	 * Returns a sequential stream over the elements of an iterator, which
+	 * is closed when the stream is.
+	 * 
+	 * @param <T> - the element type
+	 * @param iterator - the iterator
+	 * @return - a stream of the elements
+	 */
+	static <T> Stream<T> stream(final MongoIterator<T> iterator){
+		
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(new Runnable() {
+					@Override
+					public void run() {
+						iterator.close();
+					}
+				});
+		
+	}
 		
 }
@@ -1,46 +1,86 @@
 package play.modules.mongodb;
 
-import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
-import org.apache.commons.lang.StringUtils;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
 import play.Logger;
 import play.Play;
+import play.exceptions.ConfigurationException;
+import play.libs.F;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.Mongo;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
-import com.mongodb.MongoClientOptions;
-import com.mongodb.MongoClientURI;
-import com.mongodb.MongoCredential;
 import com.mongodb.MongoException;
-import com.mongodb.ServerAddress;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.ListIndexesIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
 import com.mongodb.operation.CreateUserOperation;
 
 
 public class MongoDB {
 	
-    private static MongoClient mongo;
-    private static MongoCredential credential;
-    private static MongoDatabase db;
+    private static volatile MongoConnection connection;
     
-    private static String host;
-    private static Integer port;
-    private static String dbname;
+    // the connections named by @MongoEntity(connection=...), configured with the keys mongo.<name>.*
+    private static final Map<String, MongoConnection> connections = new ConcurrentHashMap<String, MongoConnection>();
+    
+    // the connection, database and options of the collections declared with other than the defaults
+    private static volatile Map<String, Route> routes = Collections.emptyMap();
+    
+    // the collection handles, by collection name and document class
+    private static final Map<String, MongoCollection<?>> collections = new ConcurrentHashMap<String, MongoCollection<?>>();
+    private static final Map<String, com.mongodb.async.client.MongoCollection<?>> asyncCollections = new ConcurrentHashMap<String, com.mongodb.async.client.MongoCollection<?>>();
+    
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    
+    // the options and declared indexes of the capped collections, to create them again when they are dropped
+    private static final Map<String, CreateCollectionOptions> cappedCollections = new ConcurrentHashMap<String, CreateCollectionOptions>();
+    private static final Map<String, List<IndexModel>> cappedIndexes = new ConcurrentHashMap<String, List<IndexModel>>();
 
     /**
      * Obtain a reference to the mongo database.
@@ -48,55 +88,340 @@ public class MongoDB {
      * @return - a reference to the Mongo database
      */
 	public static MongoDatabase db() {
+		return connection().db();
+	}
+	
+	/**
+	 * Obtain a reference to the database holding a collection, as declared
+	 * with @MongoEntity(connection=..., database=...).
+	 * 
+	 * @param collectionName - the collection
+	 * @return - a reference to the Mongo database of the collection
+	 */
+	public static MongoDatabase db(String collectionName) {
+		
+		Route route = routes.get(collectionName);
+		
+		if (route == null){
+			return db();
+		}
+		
+		MongoConnection current = connection(route.connection);
+		return route.database == null ? current.db() : current.db(route.database);
+		
+	}
+	
+	/**
+	 * Obtain a collection, with the read preference and write concern
+	 * declared on its @MongoEntity. The handles are cached.
+	 * 
+	 * @param collectionName - the collection
+	 * @return - the collection, read as Documents
+	 */
+	public static MongoCollection<Document> collection(String collectionName) {
+		return collection(collectionName, Document.class);
+	}
+	
+	/**
+	 * Obtain a collection read as the given class, with the read preference
+	 * and write concern declared on its @MongoEntity. The handles are cached.
+	 * 
+	 * @param <T> - the document class
+	 * @param collectionName - the collection
+	 * @param clazz - the document class, e.g. a MongoModel
+	 * @return - the collection
+	 */
+	public static <T> MongoCollection<T> collection(String collectionName, Class<T> clazz) {
+		
+		String key = collectionName + "/" + clazz.getName();
+		MongoCollection<T> collection = (MongoCollection<T>) collections.get(key);
+		
+		if (collection == null){
+			
+			collection = db(collectionName).getCollection(collectionName, clazz);
+			
+			Route route = routes.get(collectionName);
+			if (route != null && route.readPreference != null){
+				collection = collection.withReadPreference(route.readPreference);
+			}
+			if (route != null && route.writeConcern != null){
+				collection = collection.withWriteConcern(route.writeConcern);
+			}
+			
+			collections.put(key, collection);
+			
+		}
+		
+		return collection;
+		
+	}
+	
+	/**
+	 * Obtain a collection read as the given class through the asynchronous
+	 * driver, with the read preference and write concern declared on its
+	 * @MongoEntity. The handles are cached.
+	 * 
+	 * @param <T> - the document class
+	 * @param collectionName - the collection
+	 * @param clazz - the document class, e.g. a MongoModel
+	 * @return - the asynchronous collection
+	 */
+	public static <T> com.mongodb.async.client.MongoCollection<T> asyncCollection(String collectionName, Class<T> clazz) {
 		
-		if (db==null){
+		String key = collectionName + "/" + clazz.getName();
+		com.mongodb.async.client.MongoCollection<T> collection = (com.mongodb.async.client.MongoCollection<T>) asyncCollections.get(key);
+		
+		if (collection == null){
+			
+			collection = asyncDb(collectionName).getCollection(collectionName, clazz);
+			
+			Route route = routes.get(collectionName);
+			if (route != null && route.readPreference != null){
+				collection = collection.withReadPreference(route.readPreference);
+			}
+			if (route != null && route.writeConcern != null){
+				collection = collection.withWriteConcern(route.writeConcern);
+			}
 			
-			init();
+			asyncCollections.put(key, collection);
 			
 		}
 		
-		return db;
+		return collection;
 		
 	}
 	
 	/**
-	 * Static initialiser.
+	 * Obtain the connection of the module, creating it if the plugin
+	 * has not done so yet.
 	 * 
-	 * @throws UnknownHostException
-	 * @throws MongoException
+	 * @return - the connection
 	 */
-	public static void init() {
+	public static MongoConnection connection() {
+		
+		MongoConnection current = connection;
 		
-		if (host == null || port == null || dbname == null){
-			host = Play.configuration.getProperty("mongo.host", "localhost");
-			port = Integer.parseInt(Play.configuration.getProperty("mongo.port", "27017"));
-			dbname = Play.configuration.getProperty("mongo.database", "play." + Play.configuration.getProperty("application.name"));
+		if (current == null){
+			synchronized (MongoDB.class) {
+				if (connection == null){
+					init();
+				}
+				current = connection;
+			}
 		}
 		
-		Logger.info("initializing DB ["+host+"]["+port+"]["+dbname+"]");
+		return current;
 		
-		try {
+	}
+	
+	/**
+	 * Obtain a named connection, configured with the keys mongo.&lt;name&gt;.*,
+	 * creating it on first use.
+	 * 
+	 * @param name - the name of the connection, or null for the default one
+	 * @return - the connection
+	 */
+	public static MongoConnection connection(String name) {
+		
+		if (name == null){
+			return connection();
+		}
+		
+		MongoConnection current = connections.get(name);
+		
+		if (current == null){
+			synchronized (MongoDB.class) {
+				current = connections.get(name);
+				if (current == null){
+					String prefix = "mongo." + name + ".";
+					if (!Play.configuration.containsKey(prefix + "uri") && !Play.configuration.containsKey(prefix + "host")){
+						throw new ConfigurationException(prefix + "uri or " + prefix + "host must be set for the connection " + name);
+					}
+					current = new MongoConnection(Play.configuration, prefix);
+					connections.put(name, current);
+				}
+			}
+		}
+		
+		return current;
+		
+	}
+	
+	/**
+	 * Returns the connections opened so far: the default one, then the
+	 * named ones.
+	 * 
+	 * @return - the connections, by name
+	 */
+	public static Map<String, MongoConnection> connections() {
+		
+		Map<String, MongoConnection> all = new LinkedHashMap<String, MongoConnection>();
+		all.put("default", connection());
+		all.putAll(new TreeMap<String, MongoConnection>(connections));
+		
+		return all;
+		
+	}
+	
+	/**
+	 * Reads the connection, database, read preference and write concern
+	 * declared on each MongoEntity class, so that the operations on its
+	 * collection use them. The named connections are opened straight away.
+	 * 
+	 * @param classes - the MongoEntity classes
+	 */
+	public static void route(Collection<Class> classes) {
+		
+		Map<String, Route> declared = new HashMap<String, Route>();
+		
+		for (Class clazz : classes){
 			
-			if(Play.configuration.containsKey("mongo.username") && Play.configuration.containsKey("mongo.password")){
-			
-				String username = Play.configuration.getProperty("mongo.username");
-				String password = Play.configuration.getProperty("mongo.password");
-				
-				credential = MongoCredential.createCredential(username, dbname, password.toCharArray());
-				mongo = new MongoClient(new ServerAddress(host, port), Collections.singletonList(credential));
-				
-			} else{
-				
-				mongo = new MongoClient(new ServerAddress(host, port));
-				
+			MongoEntity entity = (MongoEntity) clazz.getAnnotation(MongoEntity.class);
+			if (entity == null){
+				continue;
 			}
 			
-			db = mongo.getDatabase(dbname);
+			Route route = new Route(entity, clazz.getName());
+			if (route.isDefault()){
+				continue;
+			}
+			
+			String collectionName = MongoMetadata.of(clazz).collectionName();
+			
+			Route other = declared.put(collectionName, route);
+			if (other != null && !other.equals(route)){
+				throw new ConfigurationException("The collection " + collectionName + " is declared with different options: " + other + " and " + route);
+			}
 			
-		} catch (MongoException e) {
-			e.printStackTrace();
+			connection(route.connection);
+			
+		}
+		
+		routes = declared;
+		collections.clear();
+		asyncCollections.clear();
+		
+	}
+	
+	/**
+	 * The connection, database, read preference and write concern of a
+	 * collection. Null values stand for those of the default connection.
+	 */
+	private static class Route {
+		
+		final String connection;
+		final String database;
+		final ReadPreference readPreference;
+		final WriteConcern writeConcern;
+		
+		Route(MongoEntity entity, String className){
+			this.connection = entity.connection().length() > 0 ? entity.connection() : null;
+			this.database = entity.database().length() > 0 ? entity.database() : null;
+			this.readPreference = entity.readPreference().length() > 0 ? MongoConnection.readPreference(entity.readPreference(), className + " readPreference") : null;
+			this.writeConcern = entity.writeConcern().length() > 0 ? MongoConnection.writeConcern(entity.writeConcern(), className + " writeConcern") : null;
+		}
+		
+		boolean isDefault(){
+			return connection == null && database == null && readPreference == null && writeConcern == null;
+		}
+		
+		@Override
+		public boolean equals(Object o){
+			if (!(o instanceof Route)){
+				return false;
+			}
+			Route other = (Route) o;
+			return Objects.equals(connection, other.connection) && Objects.equals(database, other.database)
+					&& Objects.equals(readPreference, other.readPreference) && Objects.equals(writeConcern, other.writeConcern);
+		}
+		
+		@Override
+		public int hashCode(){
+			return Objects.hash(connection, database, readPreference, writeConcern);
+		}
+		
+		@Override
+		public String toString(){
+			return (connection == null ? "default" : connection) + "/" + (database == null ? "" : database)
+					+ (readPreference == null ? "" : " " + readPreference.getName())
+					+ (writeConcern == null ? "" : " " + writeConcern);
+		}
+		
+	}
+	
+	/**
+	 * Static initialiser. Closes the previous connection, if any, and 
+	 * creates a new one from the application configuration.
+	 */
+	public static synchronized void init() {
+		
+		close();
+		MongoMetrics.configure(Play.configuration, "mongo.");
+		MongoQueryAdvisor.configure(Play.configuration, "mongo.");
+		connection = new MongoConnection(Play.configuration, "mongo.");
+		
+	}
+	
+	/**
+	 * Closes the connection and its pools. The next call to db() 
+	 * creates a new one.
+	 */
+	public static synchronized void close() {
+		
+		if (connection != null){
+			connection.close();
+			connection = null;
+		}
+		
+		for (MongoConnection named : connections.values()){
+			named.close();
+		}
+		connections.clear();
+		collections.clear();
+		asyncCollections.clear();
+		
+	}
+		
+	/**
+	 * Obtain a reference to the mongo database, through the asynchronous driver.
+	 * 
+	 * @return - a reference to the asynchronous Mongo database
+	 */
+	public static com.mongodb.async.client.MongoDatabase asyncDb() {
+		return connection().asyncDb();
+	}
+	
+	/**
+	 * Obtain a reference to the database holding a collection, through the
+	 * asynchronous driver.
+	 * 
+	 * @param collectionName - the collection
+	 * @return - a reference to the asynchronous Mongo database of the collection
+	 */
+	public static com.mongodb.async.client.MongoDatabase asyncDb(String collectionName) {
+		
+		Route route = routes.get(collectionName);
+		
+		if (route == null){
+			return asyncDb();
 		}
 		
+		MongoConnection current = connection(route.connection);
+		return route.database == null ? current.asyncDb() : current.asyncDb(route.database);
+		
+	}
+	
+	/**
+	 * Returns the codec registry used by the module. MongoModels are read
+	 * and written by the MongoEntityCodec, everything else by the driver's
+	 * default codecs.
+	 * 
+	 * @return - the codec registry
+	 */
+	public static CodecRegistry codecRegistry() {
+		return CodecRegistries.fromRegistries(
+				CodecRegistries.fromProviders(new MongoCodecProvider()),
+				MongoClient.getDefaultCodecRegistry());
 	}
 		
 	/**
@@ -107,7 +432,7 @@ public class MongoDB {
 	 */
 	public static void index(String collectionName, String indexString){
 		
-		MongoCollection<Document> c = db().getCollection(collectionName);
+		MongoCollection<Document> c = collection(collectionName);
 		BasicDBObject indexKeys = createOrderDbObject(indexString);		
 		c.createIndex(indexKeys);
 		
@@ -121,7 +446,7 @@ public class MongoDB {
 	 */
 	public static void dropIndex(String collectionName, String indexString){
 		
-		MongoCollection<Document> c = db().getCollection(collectionName);
+		MongoCollection<Document> c = collection(collectionName);
 		BasicDBObject indexKeys = createOrderDbObject(indexString);
 		c.dropIndex(indexKeys);
 		
@@ -134,7 +459,7 @@ public class MongoDB {
 	 */
 	public static void dropIndexes(String collectionName){
 		
-		MongoCollection<Document> c = db().getCollection(collectionName);
+		MongoCollection<Document> c = collection(collectionName);
 		c.dropIndexes();
 		
 	}
@@ -148,7 +473,7 @@ public class MongoDB {
 	public static String[] getIndexes(String collectionName){
 		
 		List<String> indexNames = new ArrayList<String>();
-		MongoCollection<Document> c = db().getCollection(collectionName);
+		MongoCollection<Document> c = collection(collectionName);
 		
 		ListIndexesIterable<Document> indexes = c.listIndexes();
 		
@@ -160,6 +485,79 @@ public class MongoDB {
 		
 	}	
 	
+	/**
+	 * Creates the capped collections declared with @MongoEntity(capped=...)
+	 * that do not exist yet. A collection that exists and is not capped
+	 * is left as it is and a warning is logged.
+	 * 
+	 * @param classes - the MongoEntity classes
+	 */
+	public static void createCappedCollections(Collection<Class> classes){
+		
+		for (Class clazz : classes){
+			
+			MongoEntity entity = (MongoEntity) clazz.getAnnotation(MongoEntity.class);
+			if (entity == null || entity.capped().length() == 0){
+				continue;
+			}
+			
+			String collectionName = MongoMetadata.of(clazz).collectionName();
+			CreateCollectionOptions options = new CreateCollectionOptions().capped(true).sizeInBytes(MongoQueryCache.parseSize(entity.capped()));
+			if (entity.cappedMax() > 0){
+				options.maxDocuments(entity.cappedMax());
+			}
+			cappedCollections.put(collectionName, options);
+			cappedIndexes.put(collectionName, MongoIndexes.declared(clazz));
+			
+			MongoDatabase db = db(collectionName);
+			Document existing = db.listCollections().filter(new Document("name", collectionName)).first();
+			
+			if (existing == null){
+				db.createCollection(collectionName, options);
+				Logger.info("Created capped collection %s of %s", collectionName, entity.capped());
+			} else if (existing.get("options") == null || !((Document) existing.get("options")).getBoolean("capped", false)){
+				Logger.warn("Collection %s is declared capped but is not, convert it with the convertToCapped command", collectionName);
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Follows a capped collection: the models inserted from now on that
+	 * match the filter are passed to the consumer, on a thread of their own.
+	 * 
+	 * @param <T> - the type of MongoModel
+	 * @param collectionName - the capped collection
+	 * @param filter - the filter, or null for every model
+	 * @param clazz - the type of MongoModel
+	 * @param consumer - called with each new model
+	 * @return - the tail, to close when done
+	 */
+	public static <T extends MongoModel> MongoTail<T> tail(String collectionName, Bson filter, Class<T> clazz, Consumer<? super T> consumer){
+		return new MongoTail<T>(collectionName, filter, clazz, consumer).start();
+	}
+	
+	/**
+	 * Reads the models matching the filter on several threads. The collection
+	 * is split into ranges of _id, read and decoded concurrently; the
+	 * consumer is called from the threads of the ranges, so it must be
+	 * thread safe.
+	 * 
+	 * @param <T> - the type of MongoModel
+	 * @param collectionName - the scanned collection
+	 * @param filter - the filter, or null for every model
+	 * @param partitions - the number of ranges, read by as many threads as
+	 *                     there are processors at most
+	 * @param clazz - the type of MongoModel
+	 * @param consumer - called with each model
+	 * @return - the running scan, to follow, cancel or await
+	 */
+	public static <T extends MongoModel> MongoParallelScan<T> parallelScan(String collectionName, Bson filter, int partitions, Class<T> clazz, Consumer<? super T> consumer){
+		int parallelism = Math.min(partitions, Runtime.getRuntime().availableProcessors());
+		return new MongoParallelScan<T>(collectionName, filter, clazz, consumer, parallelism).start(partitions);
+	}
+	
 	/**
 	 * Counts the records in the collection.
 	 * 
@@ -167,7 +565,7 @@ public class MongoDB {
 	 * @return - number of records in the collection
 	 */
 	public static long count(String collectionName){		
-		return db().getCollection(collectionName).count();
+		return count(collectionName, new BsonDocument());
 	}
 	
 	/**
@@ -179,7 +577,21 @@ public class MongoDB {
 	 * @return
 	 */
 	public static long count(String collectionName, String query, Object[] params){
-		return db().getCollection(collectionName).count(createQueryDbObject(query, params));
+		return count(collectionName, query, params, null);
+	}
+	
+	/**
+	 * Counts the records in the collection matching the query string, whose
+	 * field names are checked against the model class, see MongoQuery.
+	 * 
+	 * @param collectionName - the queried collection
+	 * @param query - the query string
+	 * @param params - parameters for the query string
+	 * @param clazz - the type of MongoModel
+	 * @return - the number of matching records
+	 */
+	public static long count(String collectionName, String query, Object[] params, Class clazz){
+		return count(collectionName, createQueryDbObject(query, params, clazz));
 	}
 	
 	/**
@@ -190,7 +602,37 @@ public class MongoDB {
 	 * @return
 	 */
 	public static long count(String collectionName, Bson filter){
-		return db().getCollection(collectionName).count(filter);
+		
+		MongoCountCache counts = MongoCountCache.get(collectionName);
+		MongoQueryCache cache = MongoQueryCache.get(collectionName);
+		
+		if (counts == null && cache == null){
+			return countCollection(collectionName, filter);
+		}
+		
+		String key = new BsonDocument("count", filter.toBsonDocument(Document.class, db().getCodecRegistry())).toJson();
+		
+		if (counts != null){
+			// may be up to the ttl old, see @MongoCountCached
+			return counts.count(key, () -> cache == null ? countCollection(collectionName, filter) : queryCachedCount(collectionName, filter, cache, key));
+		}
+		
+		return queryCachedCount(collectionName, filter, cache, key);
+		
+	}
+	
+	private static long queryCachedCount(String collectionName, Bson filter, MongoQueryCache cache, String key){
+		
+		long version = cache.version();
+		Long count = cache.getCount(key);
+		
+		if (count == null){
+			count = countCollection(collectionName, filter);
+			cache.putCount(key, count, version);
+		}
+		
+		return count;
+		
 	}
 	
 	/**
@@ -202,7 +644,34 @@ public class MongoDB {
 	 * @return
 	 */
 	public static long count(String collectionName, Bson filter, CountOptions options){
-		return db().getCollection(collectionName).count(filter, options);
+		return MongoMetrics.time(collectionName, "count", filter, () -> collection(collectionName).count(filter, options), count -> 0);
+	}
+	
+	/**
+	 * Returns the number of models in the collection from its metadata,
+	 * without scanning it. The result is exact on a single server after a
+	 * clean shutdown; on a sharded cluster it may include orphaned documents
+	 * or documents being migrated.
+	 * 
+	 * @param collectionName - the collection
+	 * @return - the estimated number of models, 0 if the collection does not exist
+	 */
+	public static long estimatedCount(String collectionName){
+		return estimatedCount(collectionName, collection(collectionName).getReadPreference());
+	}
+	
+	private static long estimatedCount(String collectionName, ReadPreference readPreference){
+		
+		// a count command without a query is answered from the collection metadata
+		Document result = MongoMetrics.time(collectionName, "count", null, () -> db(collectionName).runCommand(new Document("count", collectionName), readPreference), count -> 0);
+		
+		return ((Number) result.get("n")).longValue();
+		
+	}
+	
+	private static long countCollection(String collectionName, Bson filter){
+		MongoQueryAdvisor.record(collectionName, "count", filter, null);
+		return MongoMetrics.time(collectionName, "count", filter, () -> collection(collectionName).count(filter), count -> 0);
 	}
 	
 	/**
@@ -215,7 +684,8 @@ public class MongoDB {
 	 * @return - a mongo cursor
 	 */
 	public static FindCursor find(String collectionName, String query, Object[] params, Class clazz){
-		return new FindCursor(db().getCollection(collectionName).find(createQueryDbObject(query, params)),clazz);
+		BasicDBObject filter = createQueryDbObject(query, params, clazz);
+		return cached(new FindCursor(collection(collectionName).find(filter, clazz),filter,null,clazz), collectionName);
 	}
 	
 	/**
@@ -227,7 +697,7 @@ public class MongoDB {
 	 * @return - a mongo cursor
 	 */ 
 	public static FindCursor find(String collectionName, Class clazz){
-		return new FindCursor(db().getCollection(collectionName).find(),clazz);
+		return cached(new FindCursor(collection(collectionName).find(clazz),clazz), collectionName);
 	}
 	
 	/**
@@ -240,7 +710,34 @@ public class MongoDB {
 	 * @return - a mongo cursor
 	 */
 	public static FindCursor find(String collectionName, Bson filter, Bson sort, Class clazz){
-		return new FindCursor(db().getCollection(collectionName).find(filter).sort(sort),clazz);
+		return cached(new FindCursor(collection(collectionName).find(filter, clazz).sort(sort),filter,sort,clazz), collectionName);
+	}
+	
+	/**
+	 * Finds a model by its _id. If the model class is annotated with
+	 * @MongoCached the model is served from its cache when possible.
+	 * 
+	 * @param <T> - the type of MongoModel
+	 * @param collectionName - the target collection
+	 * @param id - the _id, as an ObjectId or its hexadecimal string
+	 * @param clazz - the type of MongoModel
+	 * @return - the model, or null if there is none with this _id
+	 */
+	public static <T extends MongoModel> T findById(String collectionName, Object id, Class clazz){
+		
+		if (id instanceof String && ObjectId.isValid((String) id)){
+			id = new ObjectId((String) id);
+		}
+		
+		return find(collectionName, new BasicDBObject("_id", id), null, clazz).first();
+		
+	}
+	
+	private static FindCursor cached(FindCursor cursor, String collectionName){
+		cursor.collectionName = collectionName;
+		cursor.cache = MongoCache.of(collectionName, cursor.clazz);
+		cursor.queryCache = MongoQueryCache.of(collectionName, cursor.clazz);
+		return cursor;
 	}
 	
 	/**
@@ -251,7 +748,11 @@ public class MongoDB {
 	 * @return - a mongo cursor
 	 */ 
 	public static AggregateCursor aggregate(String collectionName, List<? extends Bson> pipeline, Class clazz) {
-		return new AggregateCursor(db().getCollection(collectionName).aggregate(pipeline), clazz);
+		AggregateCursor cursor = new AggregateCursor(collection(collectionName).aggregate(pipeline, clazz), clazz);
+		cursor.collectionName = collectionName;
+		cursor.collection = collection(collectionName);
+		cursor.pipeline = pipeline;
+		return cursor;
 	}
 	
 	/**
@@ -263,142 +764,903 @@ public class MongoDB {
 	 */
 	public static <T extends MongoModel> T save(String collectionName, T model){
 		
-		/* 
-		 * Perhaps it would be better to immediately save the object to the database and assign its id. 
-		 * 
-		 */
-		Document document = new Document(MongoMapper.convertValue(model, Map.class));
+		MongoWriteBatch batch = MongoWriteBatch.of(collectionName, model.getClass());
+		if (batch != null){
+			// sent with the writes of other threads, see @MongoWriteBatched
+			return (T) await(batch.save(model));
+		}
+		
+		MongoCollection<T> collection = collection(collectionName, (Class<T>) model.getClass());
 		
 		if (model.get_id() == null){
-			document.remove("_id");
-			db().getCollection(collectionName).insertOne(document);
-			model.set_id((ObjectId)(document.get("_id")));
+			
+			// the document inserted is kept, so that the next save only writes what changed
+			model.set_id(new ObjectId());
+			BsonDocument current = MongoSnapshot.encode(model);
+			
+			try {
+				MongoMetrics.time(collectionName, "insert", null, () -> {
+					collection.withDocumentClass(BsonDocument.class).insertOne(current);
+					return null;
+				}, result -> 1);
+			} catch (RuntimeException e) {
+				model.set_id(null);
+				throw e;
+			}
+			
+			MongoSnapshot.take(model, current);
+			
 		} else {
-			document.remove("_id");
-			db().getCollection(collectionName).replaceOne(new BasicDBObject("_id",model.get_id()), document);
+			
+			BsonDocument current = MongoSnapshot.encode(model);
+			BsonDocument update = MongoSnapshot.changes(model, current);
+			BasicDBObject filter = new BasicDBObject("_id",model.get_id());
+			
+			if (update == null){
+				MongoMetrics.time(collectionName, "update", filter, () -> collection.withDocumentClass(BsonDocument.class).replaceOne(filter, current), MongoDB::matched);
+			} else if (!update.isEmpty()){
+				MongoMetrics.time(collectionName, "update", filter, () -> collection.updateOne(filter, update), MongoDB::matched);
+			} else {
+				// nothing changed
+				return model;
+			}
+			
+			MongoSnapshot.take(model, current);
+			
 		}
 		
+		invalidate(collectionName, model.get_id());
+		
 		return model;
 		
 	}
 	
 	/**
-	 * Deletes a model from a collection.
-	 * 
-	 * @param <T> - the type of model
-	 * @param collectionName - the collection
-	 * @param model - the model
-	 */
-	public static <T extends MongoModel> void delete (String collectionName, T model){
-		Document document = new Document("_id", model.get_id());
-		db().getCollection(collectionName).deleteOne(document);
-	}
-	
-	/**
-	 * Deletes models from a collection that match a specific query string
+	 * Queues the save of a model of a @MongoWriteBatched class, to be sent
+	 * with the writes of other threads, without waiting for it. The models
+	 * of other classes are saved straight away.
 	 * 
-	 * @param collectionName - the collection 
-	 * @param query - the query string
-	 * @param params - parameters for the query string
-	 * @return - the number of models deleted
+	 * @param <T> - the type of MongoModel to save
+	 * @param collectionName - the collection to save it to
+	 * @param model - the model to save
+	 * @return - completes with the model once it is written
 	 */
-	public static long delete (String collectionName, String query, Object[] params) {
+	public static <T extends MongoModel> CompletableFuture<T> saveQueued(String collectionName, T model){
 		
-		BasicDBObject dbObject = createQueryDbObject(query, params);
-		long deleteCount = db().getCollection(collectionName).count(dbObject);
-		db().getCollection(collectionName).deleteMany(dbObject);
+		MongoWriteBatch batch = MongoWriteBatch.of(collectionName, model.getClass());
+		if (batch != null){
+			return (CompletableFuture<T>) batch.save(model);
+		}
 		
-		return deleteCount;
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			future.complete(save(collectionName, model));
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		
+		return future;
 		
 	}
 	
 	/**
-	 * Deletes all models from the collection.
+	 * Saves several models to their collection, with as few round trips as 
+	 * possible: new models are inserted with insertMany and existing ones
+	 * replaced with bulkWrite, batchSize models at a time. Generated ids
+	 * are assigned to the new models.
 	 * 
-	 * @param collectionName - the collection
+	 * @param <T> - the type of MongoModel to save
+	 * @param collectionName - the collection to save them to
+	 * @param models - the models to save
+	 * @return - the result of each batch
+	 */
+	public static <T extends MongoModel> List<MongoBatchResult> saveAll(String collectionName, Collection<T> models){
+		return saveAll(collectionName, models, DEFAULT_BATCH_SIZE, true);
+	}
+	
+	/**
+	 * Saves several models to their collection, batchSize models at a time. 
+	 * In ordered mode the writes stop at the first error, and the remaining
+	 * batches are reported as skipped. In unordered mode every model is 
+	 * attempted and the errors are reported for each batch.
+	 * 
+	 * @param <T> - the type of MongoModel to save
+	 * @param collectionName - the collection to save them to
+	 * @param models - the models to save
+	 * @param batchSize - the maximum number of models sent in one batch
+	 * @param ordered - whether to stop at the first error
+	 * @return - the result of each batch
+	 */
+	public static <T extends MongoModel> List<MongoBatchResult> saveAll(String collectionName, Collection<T> models, int batchSize, boolean ordered){
+		
+		if (batchSize < 1){
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+		
+		List<MongoBatchResult> results = new ArrayList<MongoBatchResult>();
+		
+		if (models.isEmpty()){
+			return results;
+		}
+		
+		MongoCollection<BsonDocument> collection = collection(collectionName, BsonDocument.class);
+		List<T> all = new ArrayList<T>(models);
+		boolean failed = false;
+		
+		for (int start = 0; start < all.size(); start += batchSize){
+			
+			MongoBatchResult result = new MongoBatchResult(all.subList(start, Math.min(start + batchSize, all.size())));
+			results.add(result);
+			
+			if (failed && ordered){
+				result.skipped = true;
+				continue;
+			}
+			
+			failed = saveBatch(collectionName, collection, (List<T>) result.models, ordered, result);
+			
+			for (MongoModel model : result.models){
+				MongoCache.invalidate(collectionName, model.get_id());
+			}
+			MongoQueryCache.invalidate(collectionName);
+			
+		}
+		
+		return results;
+		
+	}
+	
+	/**
+	 * Writes one batch of saveAll() as a single bulk write, in the order of
+	 * the models, returning true if any write failed.
+	 */
+	private static <T extends MongoModel> boolean saveBatch(String collectionName, MongoCollection<BsonDocument> collection, List<T> batch, boolean ordered, MongoBatchResult result){
+		
+		// new models are inserted, the others only have their changed fields written
+		List<WriteModel<BsonDocument>> requests = new ArrayList<WriteModel<BsonDocument>>(batch.size());
+		List<T> written = new ArrayList<T>(batch.size());
+		List<BsonDocument> states = new ArrayList<BsonDocument>(batch.size());
+		Set<T> inserted = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+		
+		for (T model : batch){
+			
+			if (model.get_id() == null){
+				// each model is encoded by the codec of its own class
+				model.set_id(new ObjectId());
+				BsonDocument current = MongoSnapshot.encode(model);
+				requests.add(new InsertOneModel<BsonDocument>(current));
+				inserted.add(model);
+				written.add(model);
+				states.add(current);
+				continue;
+			}
+			
+			BsonDocument current = MongoSnapshot.encode(model);
+			BsonDocument update = MongoSnapshot.changes(model, current);
+			BasicDBObject filter = new BasicDBObject("_id", model.get_id());
+			
+			if (update == null){
+				requests.add(new ReplaceOneModel<BsonDocument>(filter, current));
+			} else if (!update.isEmpty()){
+				requests.add(new UpdateOneModel<BsonDocument>(filter, update));
+			} else {
+				continue;
+			}
+			
+			written.add(model);
+			states.add(current);
+			
+		}
+		
+		if (requests.isEmpty()){
+			return false;
+		}
+		
+		BulkWriteResult writeResult;
+		Set<Integer> failed = new HashSet<Integer>();
+		int sent = requests.size();
+		
+		try {
+			writeResult = MongoMetrics.time(collectionName, "batch", null, () -> collection.bulkWrite(requests, new BulkWriteOptions().ordered(ordered)), 
+					bulkResult -> requests.size());
+		} catch (MongoBulkWriteException e) {
+			writeResult = e.getWriteResult();
+			for (BulkWriteError error : e.getWriteErrors()){
+				failed.add(error.getIndex());
+				result.fail(written.get(error.getIndex()), error);
+			}
+			if (ordered){
+				// nothing after the first error was written
+				sent = e.getWriteErrors().get(0).getIndex() + 1;
+				for (int i = sent; i < written.size(); i++){
+					result.skip(written.get(i));
+				}
+			}
+		} catch (RuntimeException e) {
+			// nothing was written, the new models are new again
+			for (T model : inserted){
+				model.set_id(null);
+			}
+			throw e;
+		}
+		
+		for (int i = 0; i < written.size(); i++){
+			T model = written.get(i);
+			if (i < sent && !failed.contains(i)){
+				MongoSnapshot.take(model, states.get(i));
+			} else if (inserted.contains(model)){
+				// the model was not written, it is new again
+				model.set_id(null);
+			}
+		}
+		
+		if (writeResult.wasAcknowledged()){
+			result.insertedCount = writeResult.getInsertedCount();
+			result.matchedCount = writeResult.getMatchedCount();
+			result.modifiedCount = writeResult.isModifiedCountAvailable() ? writeResult.getModifiedCount() : 0;
+		} else {
+			result.acknowledged = false;
+		}
+		
+		return result.hasErrors();
+		
+	}
+	
+	/**
+	 * Deletes a model from a collection.
+	 * 
+	 * @param <T> - the type of model
+	 * @param collectionName - the collection
+	 * @param model - the model
+	 */
+	public static <T extends MongoModel> void delete (String collectionName, T model){
+		MongoWriteBatch batch = MongoWriteBatch.of(collectionName, model.getClass());
+		if (batch != null){
+			await(batch.delete(model));
+			return;
+		}
+		Document document = new Document("_id", model.get_id());
+		MongoMetrics.time(collectionName, "delete", document, () -> collection(collectionName).deleteOne(document), MongoDB::deleted);
+		invalidate(collectionName, model.get_id());
+	}
+	
+	/**
+	 * Queues the delete of a model of a @MongoWriteBatched class, to be sent
+	 * with the writes of other threads, without waiting for it. The models
+	 * of other classes are deleted straight away.
+	 * 
+	 * @param <T> - the type of model
+	 * @param collectionName - the collection
+	 * @param model - the model
+	 * @return - completes with the model once it is deleted
+	 */
+	public static <T extends MongoModel> CompletableFuture<T> deleteQueued(String collectionName, T model){
+		
+		MongoWriteBatch batch = MongoWriteBatch.of(collectionName, model.getClass());
+		if (batch != null){
+			return (CompletableFuture<T>) batch.delete(model);
+		}
+		
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			delete(collectionName, model);
+			future.complete(model);
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		
+		return future;
+		
+	}
+	
+	/**
+	 * Waits for a batched write, throwing its error if it failed.
+	 */
+	private static MongoModel await(CompletableFuture<MongoModel> future){
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Deletes models from a collection that match a specific query string
+	 * 
+	 * @param collectionName - the collection 
+	 * @param query - the query string
+	 * @param params - parameters for the query string
+	 * @return - the number of models deleted
+	 */
+	public static long delete (String collectionName, String query, Object[] params) {
+		return delete(collectionName, query, params, null);
+	}
+	
+	/**
+	 * Deletes models from a collection that match a specific query string,
+	 * whose field names are checked against the model class, see MongoQuery.
+	 * 
+	 * @param collectionName - the collection 
+	 * @param query - the query string
+	 * @param params - parameters for the query string
+	 * @param clazz - the type of MongoModel
+	 * @return - the number of models deleted
+	 */
+	public static long delete (String collectionName, String query, Object[] params, Class clazz) {
+		
+		BasicDBObject dbObject = createQueryDbObject(query, params, clazz);
+		DeleteResult result = MongoMetrics.time(collectionName, "delete", dbObject, () -> collection(collectionName).deleteMany(dbObject), MongoDB::deleted);
+		invalidate(collectionName, null);
+		
+		return deleted(result);
+		
+	}
+	
+	/**
+	 * Deletes all models from the collection. The collection and its
+	 * indexes are kept. Documents cannot be deleted from a capped
+	 * collection, so it is dropped and created again with its declared
+	 * indexes; its count is then read from the collection metadata
+	 * before the drop.
+	 * 
+	 * @param collectionName - the collection
 	 * @return - the number of models deleted
 	 */
 	public static long deleteAll (String collectionName){
 		
-		long deleteCount = count(collectionName);
-		db().getCollection(collectionName).drop();
+		CreateCollectionOptions capped = cappedCollections.get(collectionName);
+		
+		if (capped == null){
+			BsonDocument all = new BsonDocument();
+			DeleteResult result = MongoMetrics.time(collectionName, "delete", all, () -> collection(collectionName).deleteMany(all), MongoDB::deleted);
+			invalidate(collectionName, null);
+			
+			return deleted(result);
+		}
+		
+		// a drop does not report what it removed, the number comes from the metadata
+		long deleteCount = estimatedCount(collectionName, ReadPreference.primary());
+		MongoMetrics.time(collectionName, "delete", null, () -> {
+			collection(collectionName).drop();
+			return null;
+		}, none -> deleteCount);
+		
+		db(collectionName).createCollection(collectionName, capped);
+		List<IndexModel> indexes = cappedIndexes.get(collectionName);
+		if (indexes != null && !indexes.isEmpty()){
+			MongoIndexes.ensure(collectionName, indexes);
+		}
+		invalidate(collectionName, null);
 		
 		return deleteCount;
 		
 	}
 	
 	/**
-	 * Creates a query object for use with other methods
+	 * Updates the first model matching a query string on the server, in one
+	 * atomic operation, e.g. update("car", "byName", "incViews", "Toyota", 1).
+	 * The parameters of the query come first, then those of the update.
 	 * 
+	 * @param collectionName - the collection
 	 * @param query - the query string
-	 * @param values - values for the query
-	 * @return - a BasicDBObject representing the query
+	 * @param update - the update string, see MongoUpdate
+	 * @param params - parameters for the query string, then for the update string
+	 * @return - the number of models matched, 0 or 1
 	 */
-	public static BasicDBObject createQueryDbObject(String query, Object[] values){
+	public static long update(String collectionName, String query, String update, Object[] params){
+		return update(collectionName, query, update, params, null);
+	}
+	
+	/**
+	 * As update(collectionName, query, update, params), with the field names
+	 * of the query string checked against the model class, see MongoQuery.
+	 * 
+	 * @param collectionName - the collection
+	 * @param query - the query string
+	 * @param update - the update string, see MongoUpdate
+	 * @param params - parameters for the query string, then for the update string
+	 * @param clazz - the type of MongoModel
+	 * @return - the number of models matched, 0 or 1
+	 */
+	public static long update(String collectionName, String query, String update, Object[] params, Class clazz){
+		return update(collectionName, createQueryDbObject(query, params, clazz), createUpdateDbObject(query, update, params, clazz));
+	}
+	
+	/**
+	 * Updates the first model matching a filter on the server, in one
+	 * atomic operation.
+	 * 
+	 * @param collectionName - the collection
+	 * @param filter - the filter
+	 * @param update - the update, e.g. new Document("$inc", new Document("views", 1))
+	 * @return - the number of models matched, 0 or 1
+	 */
+	public static long update(String collectionName, Bson filter, Bson update){
 		
-		String keys = extractKeys(query);
+		UpdateResult result = MongoMetrics.time(collectionName, "update", filter, () -> collection(collectionName).updateOne(filter, update), MongoDB::matched);
+		invalidate(collectionName, null);
 		
-		BasicDBObject object = new BasicDBObject(); 	
-    	String [] keyList = keys.split(",");
-    	
-    	if (keyList.length > values.length){
-    		throw new IllegalArgumentException("Not enough values for the keys provided");
-    	}
-    	
-		for (int i = 0; i < keyList.length; i++){
-			object.put(keyList[i].trim(), values[i]);
+		return matched(result);
+		
+	}
+	
+	/**
+	 * Updates every model matching a query string on the server.
+	 * 
+	 * @param collectionName - the collection
+	 * @param query - the query string
+	 * @param update - the update string, see MongoUpdate
+	 * @param params - parameters for the query string, then for the update string
+	 * @return - the number of models matched
+	 */
+	public static long updateMany(String collectionName, String query, String update, Object[] params){
+		return updateMany(collectionName, query, update, params, null);
+	}
+	
+	/**
+	 * As updateMany(collectionName, query, update, params), with the field names
+	 * of the query string checked against the model class, see MongoQuery.
+	 * 
+	 * @param collectionName - the collection
+	 * @param query - the query string
+	 * @param update - the update string, see MongoUpdate
+	 * @param params - parameters for the query string, then for the update string
+	 * @param clazz - the type of MongoModel
+	 * @return - the number of models matched
+	 */
+	public static long updateMany(String collectionName, String query, String update, Object[] params, Class clazz){
+		return updateMany(collectionName, createQueryDbObject(query, params, clazz), createUpdateDbObject(query, update, params, clazz));
+	}
+	
+	/**
+	 * Updates every model matching a filter on the server.
+	 * 
+	 * @param collectionName - the collection
+	 * @param filter - the filter
+	 * @param update - the update
+	 * @return - the number of models matched
+	 */
+	public static long updateMany(String collectionName, Bson filter, Bson update){
+		
+		UpdateResult result = MongoMetrics.time(collectionName, "update", filter, () -> collection(collectionName).updateMany(filter, update), MongoDB::matched);
+		invalidate(collectionName, null);
+		
+		return matched(result);
+		
+	}
+	
+	/**
+	 * Updates the first model matching a query string, or inserts one made
+	 * of the equalities of the query and the update if none matches.
+	 * 
+	 * @param collectionName - the collection
+	 * @param query - the query string
+	 * @param update - the update string, see MongoUpdate
+	 * @param params - parameters for the query string, then for the update string
+	 * @return - the _id of the inserted model, or null if one was updated
+	 */
+	public static ObjectId upsert(String collectionName, String query, String update, Object[] params){
+		return upsert(collectionName, query, update, params, null);
+	}
+	
+	/**
+	 * As upsert(collectionName, query, update, params), with the field names
+	 * of the query string checked against the model class, see MongoQuery.
+	 * 
+	 * @param collectionName - the collection
+	 * @param query - the query string
+	 * @param update - the update string, see MongoUpdate
+	 * @param params - parameters for the query string, then for the update string
+	 * @param clazz - the type of MongoModel
+	 * @return - the _id of the inserted model, or null if one was updated
+	 */
+	public static ObjectId upsert(String collectionName, String query, String update, Object[] params, Class clazz){
+		return upsert(collectionName, createQueryDbObject(query, params, clazz), createUpdateDbObject(query, update, params, clazz));
+	}
+	
+	/**
+	 * Updates the first model matching a filter, or inserts one made of the
+	 * equalities of the filter and the update if none matches.
+	 * 
+	 * @param collectionName - the collection
+	 * @param filter - the filter
+	 * @param update - the update
+	 * @return - the _id of the inserted model, or null if one was updated
+	 */
+	public static ObjectId upsert(String collectionName, Bson filter, Bson update){
+		
+		UpdateResult result = MongoMetrics.time(collectionName, "update", filter, () -> collection(collectionName).updateOne(filter, update, new UpdateOptions().upsert(true)), 
+				updateResult -> updateResult.getUpsertedId() != null ? 1 : matched(updateResult));
+		invalidate(collectionName, null);
+		
+		BsonValue id = result.getUpsertedId();
+		
+		return id != null && id.isObjectId() ? id.asObjectId().getValue() : null;
+		
+	}
+	
+	/**
+	 * Updates the first model matching a query string and returns it as it
+	 * is after the update, in one atomic operation. Suits counters and queues.
+	 * 
+	 * @param <T> - the type of MongoModel
+	 * @param collectionName - the collection
+	 * @param query - the query string
+	 * @param update - the update string, see MongoUpdate
+	 * @param params - parameters for the query string, then for the update string
+	 * @param clazz - the type of MongoModel
+	 * @return - the updated model, or null if none matched
+	 */
+	public static <T extends MongoModel> T findAndModify(String collectionName, String query, String update, Object[] params, Class clazz){
+		return findAndModify(collectionName, createQueryDbObject(query, params, clazz), createUpdateDbObject(query, update, params, clazz), null, clazz);
+	}
+	
+	/**
+	 * Updates the first model matching a filter and returns it, in one atomic
+	 * operation. The options choose the model updated when several match,
+	 * through their sort, and whether it is returned as it was before the update.
+	 * 
+	 * @param <T> - the type of MongoModel
+	 * @param collectionName - the collection
+	 * @param filter - the filter
+	 * @param update - the update
+	 * @param options - the options, or null to return the model as it is after the update
+	 * @param clazz - the type of MongoModel
+	 * @return - the model, or null if none matched
+	 */
+	public static <T extends MongoModel> T findAndModify(String collectionName, Bson filter, Bson update, FindOneAndUpdateOptions options, Class clazz){
+		
+		FindOneAndUpdateOptions findOptions = options != null ? options : new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+		MongoCollection<T> collection = collection(collectionName, (Class<T>) clazz);
+		
+		T model = MongoMetrics.time(collectionName, "findAndModify", filter, () -> collection.findOneAndUpdate(filter, update, findOptions), updated -> updated == null ? 0 : 1);
+		
+		if (model == null){
+			invalidate(collectionName, null);
+			return null;
 		}
-    	
-    	return object;
-    }
+		
+		invalidate(collectionName, model.get_id());
+		MongoReferences.resolve(Collections.singletonList(model));
+		
+		return model;
+		
+	}
 	
 	/**
-	 * Creates an ordering object for use with other methods
+	 * Counts the records in the collection, without blocking.
+	 * 
+	 * @param collectionName
+	 * @return - a promise of the number of records in the collection
+	 */
+	public static F.Promise<Long> countAsync(String collectionName){
+		F.Promise<Long> promise = new F.Promise<Long>();
+		asyncCollection(collectionName, Document.class).count(MongoMetrics.callback(collectionName, "count", null, count -> 0, new PromiseCallback<Long>(promise)));
+		return promise;
+	}
+	
+	/**
+	 * Counts the records in the collection matching the query string, without blocking.
 	 * 
+	 * @param collectionName - the queried collection
 	 * @param query - the query string
-	 * @param values - values for the query
-	 * @return - a DBObject representing the ordering
+	 * @param params - parameters for the query string
+	 * @return - a promise of the number of matching records
 	 */
-	public static BasicDBObject createOrderDbObject(String query){
+	public static F.Promise<Long> countAsync(String collectionName, String query, Object[] params){
+		return countAsync(collectionName, query, params, null);
+	}
+	
+	/**
+	 * Counts the records in the collection matching the query string, whose field
+	 * names are checked against the model class, without blocking.
+	 * 
+	 * @param collectionName - the queried collection
+	 * @param query - the query string
+	 * @param params - parameters for the query string
+	 * @param clazz - the type of MongoModel
+	 * @return - a promise of the number of matching records
+	 */
+	public static F.Promise<Long> countAsync(String collectionName, String query, Object[] params, Class clazz){
+		return countAsync(collectionName, createQueryDbObject(query, params, clazz));
+	}
+	
+	/**
+	 * Counts the records in the collection matching the filter, without blocking.
+	 * 
+	 * @param collectionName - the queried collection
+	 * @param filter - the filter
+	 * @return - a promise of the number of matching records
+	 */
+	public static F.Promise<Long> countAsync(String collectionName, Bson filter){
+		F.Promise<Long> promise = new F.Promise<Long>();
+		asyncCollection(collectionName, Document.class).count(filter, MongoMetrics.callback(collectionName, "count", filter, count -> 0, new PromiseCallback<Long>(promise)));
+		return promise;
+	}
+	
+	/**
+	 * Provides an asynchronous cursor to the objects in a collection.
+	 * 
+	 * @param collectionName - the target collection
+	 * @param clazz - the type of MongoModel
+	 * @return - an asynchronous mongo cursor
+	 */
+	public static AsyncFindCursor findAsync(String collectionName, Class clazz){
+		return async(new AsyncFindCursor(asyncCollection(collectionName, Document.class).find(clazz), clazz), collectionName, null);
+	}
+	
+	/**
+	 * Provides an asynchronous cursor to the objects in a collection, matching the query string.
+	 * 
+	 * @param collectionName - the target collection
+	 * @param query - the query string
+	 * @param params - parameters for the query
+	 * @param clazz - the type of MongoModel
+	 * @return - an asynchronous mongo cursor
+	 */
+	public static AsyncFindCursor findAsync(String collectionName, String query, Object[] params, Class clazz){
+		BasicDBObject filter = createQueryDbObject(query, params, clazz);
+		return async(new AsyncFindCursor(asyncCollection(collectionName, Document.class).find(filter, clazz), clazz), collectionName, filter);
+	}
+	
+	/**
+	 * Provides an asynchronous cursor to the objects in a collection, matching the filter.
+	 * 
+	 * @param collectionName - the target collection
+	 * @param filter - the filter
+	 * @param sort - the sort
+	 * @param clazz - the type of MongoModel
+	 * @return - an asynchronous mongo cursor
+	 */
+	public static AsyncFindCursor findAsync(String collectionName, Bson filter, Bson sort, Class clazz){
+		return async(new AsyncFindCursor(asyncCollection(collectionName, Document.class).find(filter, clazz).sort(sort), clazz), collectionName, filter);
+	}
+	
+	/**
+	 * Provides an asynchronous cursor to the results of an aggregation pipeline.
+	 * 
+	 * @param collectionName - the target collection
+	 * @param pipeline - the aggregation pipeline
+	 * @param clazz - the type of MongoModel
+	 * @return - an asynchronous mongo cursor
+	 */
+	public static AsyncCursor aggregateAsync(String collectionName, List<? extends Bson> pipeline, Class clazz){
+		AsyncCursor cursor = async(new AsyncCursor(asyncCollection(collectionName, Document.class).aggregate(pipeline, clazz), clazz), collectionName, null);
+		cursor.operation = "aggregate";
+		return cursor;
+	}
+	
+	private static <T extends AsyncCursor> T async(T cursor, String collectionName, Bson filter){
+		cursor.collectionName = collectionName;
+		cursor.filter = filter;
+		return cursor;
+	}
+	
+	/**
+	 * Saves a model to its collection, without blocking.
+	 * 
+	 * @param <T> - the type of MongoModel to save
+	 * @param collectionName - the collection to save it to
+	 * @param model - the model to save
+	 * @return - a promise of the model saved
+	 */
+	public static <T extends MongoModel> F.Promise<T> saveAsync(final String collectionName, final T model){
 		
-		String keys = extractKeys(query);
+		final F.Promise<T> promise = new F.Promise<T>();
+		com.mongodb.async.client.MongoCollection<T> collection = asyncCollection(collectionName, (Class<T>) model.getClass());
 		
-    	BasicDBObject object = new BasicDBObject(); 	
-    	String [] keyList = keys.split(",");
-    	
-		for (int i = 0; i < keyList.length; i++){
+		if (model.get_id() == null){
+			
+			// the document inserted is kept, so that the next save only writes what changed
+			model.set_id(new ObjectId());
+			final BsonDocument current = MongoSnapshot.encode(model);
+			
+			collection.withDocumentClass(BsonDocument.class).insertOne(current, MongoMetrics.callback(collectionName, "insert", null, none -> 1, new SingleResultCallback<Void>() {
+				@Override
+				public void onResult(Void result, Throwable t) {
+					invalidate(collectionName, model.get_id());
+					if (t != null){
+						model.set_id(null);
+						promise.invokeWithException(t);
+					} else {
+						MongoSnapshot.take(model, current);
+						promise.invoke(model);
+					}
+				}
+			}));
+			
+		} else {
+			
+			final BsonDocument current = MongoSnapshot.encode(model);
+			BsonDocument update = MongoSnapshot.changes(model, current);
+			
+			if (update != null && update.isEmpty()){
+				// nothing changed
+				promise.invoke(model);
+				return promise;
+			}
+			
+			BasicDBObject filter = new BasicDBObject("_id",model.get_id());
+			SingleResultCallback<UpdateResult> callback = MongoMetrics.callback(collectionName, "update", filter, MongoDB::matched, new SingleResultCallback<UpdateResult>() {
+				@Override
+				public void onResult(UpdateResult result, Throwable t) {
+					invalidate(collectionName, model.get_id());
+					if (t != null){
+						promise.invokeWithException(t);
+					} else {
+						MongoSnapshot.take(model, current);
+						promise.invoke(model);
+					}
+				}
+			});
 			
-			int value = 1;
-			if (keyList[i].charAt(0) == '-'){
-				value = -1;
-				keyList[i] = keyList[i].substring(1);
+			if (update == null){
+				collection.withDocumentClass(BsonDocument.class).replaceOne(filter, current, callback);
+			} else {
+				collection.updateOne(filter, update, callback);
 			}
 			
-			object.put(keyList[i].trim(), value);
-		}  
-    	
-    	return object;
+		}
+		
+		return promise;
+		
+	}
+	
+	/**
+	 * Deletes a model from a collection, without blocking.
+	 * 
+	 * @param <T> - the type of model
+	 * @param collectionName - the collection
+	 * @param model - the model
+	 * @return - a promise of the number of models deleted
+	 */
+	public static <T extends MongoModel> F.Promise<Long> deleteAsync(String collectionName, T model){
+		return deleteAsync(collectionName, new Document("_id", model.get_id()), false);
+	}
+	
+	/**
+	 * Deletes models from a collection that match a specific query string, without blocking.
+	 * 
+	 * @param collectionName - the collection 
+	 * @param query - the query string
+	 * @param params - parameters for the query string
+	 * @return - a promise of the number of models deleted
+	 */
+	public static F.Promise<Long> deleteAsync(String collectionName, String query, Object[] params){
+		return deleteAsync(collectionName, query, params, null);
+	}
+	
+	/**
+	 * Deletes models from a collection that match a specific query string, whose
+	 * field names are checked against the model class, without blocking.
+	 * 
+	 * @param collectionName - the collection 
+	 * @param query - the query string
+	 * @param params - parameters for the query string
+	 * @param clazz - the type of MongoModel
+	 * @return - a promise of the number of models deleted
+	 */
+	public static F.Promise<Long> deleteAsync(String collectionName, String query, Object[] params, Class clazz){
+		return deleteAsync(collectionName, createQueryDbObject(query, params, clazz), true);
+	}
+	
+	private static F.Promise<Long> deleteAsync(final String collectionName, final Bson filter, final boolean many){
+		
+		final F.Promise<Long> promise = new F.Promise<Long>();
+		
+		SingleResultCallback<DeleteResult> callback = MongoMetrics.callback(collectionName, "delete", filter, MongoDB::deleted, new SingleResultCallback<DeleteResult>() {
+			@Override
+			public void onResult(DeleteResult result, Throwable t) {
+				invalidate(collectionName, many ? null : ((Document) filter).getObjectId("_id"));
+				if (t != null){
+					promise.invokeWithException(t);
+				} else {
+					promise.invoke(deleted(result));
+				}
+			}
+		});
+		
+		if (many){
+			asyncCollection(collectionName, Document.class).deleteMany(filter, callback);
+		} else {
+			asyncCollection(collectionName, Document.class).deleteOne(filter, callback);
+		}
+		
+		return promise;
+		
+	}
+	
+	private static long matched(UpdateResult result){
+		return result.wasAcknowledged() ? result.getMatchedCount() : 0;
+	}
+	
+	private static long deleted(DeleteResult result){
+		return result.wasAcknowledged() ? result.getDeletedCount() : 0;
+	}
+	
+	/**
+	 * Drops what the entity and query caches hold about a collection after a write.
+	 * 
+	 * @param collectionName - the written collection
+	 * @param id - the _id of the written model, or null if any model may have changed
+	 */
+	static void invalidate(String collectionName, ObjectId id){
+		
+		MongoQueryCache.invalidate(collectionName);
+		
+		if (id == null){
+			MongoCache.invalidateAll(collectionName);
+		} else {
+			MongoCache.invalidate(collectionName, id);
+		}
+		
+	}
+	
+	/**
+	 * Creates a query object for use with other methods. The query
+	 * string is compiled once and cached, see MongoQuery. Without a
+	 * model class, its field names are equalities joined with And.
+	 * 
+	 * @param query - the query string
+	 * @param values - values for the query
+	 * @return - a BasicDBObject representing the query
+	 */
+	public static BasicDBObject createQueryDbObject(String query, Object[] values){
+		return createQueryDbObject(query, values, null);
     }
 	
 	/**
-	 * Extracts parameter names from a query string
+	 * Creates a query object whose field names are checked against the
+	 * mapped fields of a model class, which the operators and Or need,
+	 * see MongoQuery.
+	 * 
+	 * @param query - the query string
+	 * @param values - values for the query
+	 * @param clazz - the type of MongoModel, or null
+	 * @return - a BasicDBObject representing the query
+	 */
+	public static BasicDBObject createQueryDbObject(String query, Object[] values, Class clazz){
+		return MongoQuery.compile(query, clazz).bind(values);
+	}
+	
+	/**
+	 * Creates an update object for use with other methods. The update
+	 * string is compiled once and cached, see MongoUpdate.
 	 * 
-	 * @param queryString - the query string
-	 * @return - a comma seperated string of parameter names
+	 * @param query - the query string, whose parameters come first
+	 * @param update - the update string
+	 * @param values - parameters for the query string, then for the update string
+	 * @return - a DBObject representing the update
 	 */
-	private static String extractKeys(String queryString){
-		queryString = queryString.substring(2);
-		List<String> keys = new ArrayList<String>();
-        String[] parts = queryString.split("And");
-        for (String part : parts){
-        	if (part.charAt(0) == '-'){
-        		keys.add((part.charAt(0) + "") + (part.charAt(1) + "").toLowerCase() + part.substring(2));
-        	}
-        	else{
-        		keys.add((part.charAt(0) + "").toLowerCase() + part.substring(1));
-        	}
-        }
-        return StringUtils.join(keys.toArray(), ",");
+	public static BasicDBObject createUpdateDbObject(String query, String update, Object[] values){
+		return createUpdateDbObject(query, update, values, null);
 	}
+	
+	/**
+	 * Creates an update object, after the parameters of a query string
+	 * compiled for a model class.
+	 * 
+	 * @param query - the query string, whose parameters come first
+	 * @param update - the update string
+	 * @param values - parameters for the query string, then for the update string
+	 * @param clazz - the type of MongoModel, or null
+	 * @return - a DBObject representing the update
+	 */
+	public static BasicDBObject createUpdateDbObject(String query, String update, Object[] values, Class clazz){
+		return MongoUpdate.compile(update).bind(values, MongoQuery.compile(query, clazz).getParameterCount());
+	}
+	
+	/**
+	 * Creates an ordering object for use with other methods
+	 * 
+	 * @param query - the query string
+	 * @return - a DBObject representing the ordering
+	 */
+	public static BasicDBObject createOrderDbObject(String query){
+		return MongoQuery.order(query);
+    }
 
 } 
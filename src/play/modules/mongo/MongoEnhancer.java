@@ -90,7 +90,7 @@ public class MongoEnhancer extends Enhancer {
         ctClass.addMethod(count);
 
         // count2
-        CtMethod count2 = CtMethod.make("public static long count(java.lang.String query, java.lang.Object[] params) { return MongoDB.count(getCollectionName(), query, params); }", ctClass);
+        CtMethod count2 = CtMethod.make("public static long count(java.lang.String query, java.lang.Object[] params) { return MongoDB.count(getCollectionName(), query, params, "+entityName+".class); }", ctClass);
         ctClass.addMethod(count2);
         
         // count3
@@ -100,6 +100,10 @@ public class MongoEnhancer extends Enhancer {
         // count4
         CtMethod count4 = CtMethod.make("public static long count(org.bson.conversions.Bson filter, com.mongodb.client.model.CountOptions options) { return MongoDB.count(getCollectionName(), filter, options); }", ctClass);
         ctClass.addMethod(count4);
+        
+        // estimatedCount
+        CtMethod estimatedCount = CtMethod.make("public static long estimatedCount() { return MongoDB.estimatedCount(getCollectionName()); }", ctClass);
+        ctClass.addMethod(estimatedCount);
 
         // find        
         CtMethod find = CtMethod.make("public static FindCursor find(String query, Object[] params){ return MongoDB.find(getCollectionName(),query,params,"+entityName+".class); }", ctClass);
@@ -113,16 +117,68 @@ public class MongoEnhancer extends Enhancer {
         CtMethod find3 = CtMethod.make("public static FindCursor find(org.bson.conversions.Bson filter, org.bson.conversions.Bson sort){ return MongoDB.find(getCollectionName(),filter,sort,"+entityName+".class); }", ctClass);
         ctClass.addMethod(find3);
         
+        // findById
+        CtMethod findById = CtMethod.make("public static MongoModel findById(Object id){ return (MongoModel)MongoDB.findById(getCollectionName(),id,"+entityName+".class); }", ctClass);
+        ctClass.addMethod(findById);
+        
         // aggregate
         CtMethod aggregate = CtMethod.make("public static AggregateCursor aggregate(java.util.List pipeline) { return MongoDB.aggregate(getCollectionName(), pipeline, "+entityName+".class); }", ctClass);
         ctClass.addMethod(aggregate);
         
+        // tail
+        CtMethod tail = CtMethod.make("public static MongoTail tail(java.util.function.Consumer consumer) { return MongoDB.tail(getCollectionName(), null, "+entityName+".class, consumer); }", ctClass);
+        ctClass.addMethod(tail);
+        
+        // tail2
+        CtMethod tail2 = CtMethod.make("public static MongoTail tail(org.bson.conversions.Bson filter, java.util.function.Consumer consumer) { return MongoDB.tail(getCollectionName(), filter, "+entityName+".class, consumer); }", ctClass);
+        ctClass.addMethod(tail2);
+        
+        // parallelScan
+        CtMethod parallelScan = CtMethod.make("public static MongoParallelScan parallelScan(int partitions, java.util.function.Consumer consumer) { return MongoDB.parallelScan(getCollectionName(), null, partitions, "+entityName+".class, consumer); }", ctClass);
+        ctClass.addMethod(parallelScan);
+        
+        // parallelScan2
+        CtMethod parallelScan2 = CtMethod.make("public static MongoParallelScan parallelScan(org.bson.conversions.Bson filter, int partitions, java.util.function.Consumer consumer) { return MongoDB.parallelScan(getCollectionName(), filter, partitions, "+entityName+".class, consumer); }", ctClass);
+        ctClass.addMethod(parallelScan2);
+        
+        // update
+        CtMethod update = CtMethod.make("public static long update(String query, String update, Object[] params) { return MongoDB.update(getCollectionName(), query, update, params, "+entityName+".class); }", ctClass);
+        ctClass.addMethod(update);
+        
+        // update2
+        CtMethod update2 = CtMethod.make("public static long update(org.bson.conversions.Bson filter, org.bson.conversions.Bson update) { return MongoDB.update(getCollectionName(), filter, update); }", ctClass);
+        ctClass.addMethod(update2);
+        
+        // updateMany
+        CtMethod updateMany = CtMethod.make("public static long updateMany(String query, String update, Object[] params) { return MongoDB.updateMany(getCollectionName(), query, update, params, "+entityName+".class); }", ctClass);
+        ctClass.addMethod(updateMany);
+        
+        // updateMany2
+        CtMethod updateMany2 = CtMethod.make("public static long updateMany(org.bson.conversions.Bson filter, org.bson.conversions.Bson update) { return MongoDB.updateMany(getCollectionName(), filter, update); }", ctClass);
+        ctClass.addMethod(updateMany2);
+        
+        // upsert
+        CtMethod upsert = CtMethod.make("public static org.bson.types.ObjectId upsert(String query, String update, Object[] params) { return MongoDB.upsert(getCollectionName(), query, update, params, "+entityName+".class); }", ctClass);
+        ctClass.addMethod(upsert);
+        
+        // upsert2
+        CtMethod upsert2 = CtMethod.make("public static org.bson.types.ObjectId upsert(org.bson.conversions.Bson filter, org.bson.conversions.Bson update) { return MongoDB.upsert(getCollectionName(), filter, update); }", ctClass);
+        ctClass.addMethod(upsert2);
+        
+        // findAndModify
+        CtMethod findAndModify = CtMethod.make("public static MongoModel findAndModify(String query, String update, Object[] params) { return (MongoModel)MongoDB.findAndModify(getCollectionName(), query, update, params, "+entityName+".class); }", ctClass);
+        ctClass.addMethod(findAndModify);
+        
+        // findAndModify2
+        CtMethod findAndModify2 = CtMethod.make("public static MongoModel findAndModify(org.bson.conversions.Bson filter, org.bson.conversions.Bson update, com.mongodb.client.model.FindOneAndUpdateOptions options) { return (MongoModel)MongoDB.findAndModify(getCollectionName(), filter, update, options, "+entityName+".class); }", ctClass);
+        ctClass.addMethod(findAndModify2);
+        
         // delete        
         CtMethod delete = CtMethod.make("public void delete() { MongoDB.delete(getCollectionName(), this); }", ctClass);
         ctClass.addMethod(delete);
         
         // delete        
-        CtMethod delete2 = CtMethod.make("public static long delete(String query, Object[] params) { return MongoDB.delete(getCollectionName(), query, params); }", ctClass);
+        CtMethod delete2 = CtMethod.make("public static long delete(String query, Object[] params) { return MongoDB.delete(getCollectionName(), query, params, "+entityName+".class); }", ctClass);
         ctClass.addMethod(delete2);
     
         // deleteAll        
@@ -133,6 +189,62 @@ public class MongoEnhancer extends Enhancer {
         CtMethod save = CtMethod.make("public MongoModel save() { return (MongoModel)MongoDB.save("+ entityName +".getCollectionName(), this); }", ctClass);
         ctClass.addMethod(save);
         
+        // saveAll
+        CtMethod saveAll = CtMethod.make("public static java.util.List saveAll(java.util.Collection models) { return MongoDB.saveAll("+ entityName +".getCollectionName(), models); }", ctClass);
+        ctClass.addMethod(saveAll);
+        
+        // saveAll2
+        CtMethod saveAll2 = CtMethod.make("public static java.util.List saveAll(java.util.Collection models, int batchSize, boolean ordered) { return MongoDB.saveAll("+ entityName +".getCollectionName(), models, batchSize, ordered); }", ctClass);
+        ctClass.addMethod(saveAll2);
+        
+        // saveQueued
+        CtMethod saveQueued = CtMethod.make("public java.util.concurrent.CompletableFuture saveQueued() { return MongoDB.saveQueued("+ entityName +".getCollectionName(), this); }", ctClass);
+        ctClass.addMethod(saveQueued);
+        
+        // deleteQueued
+        CtMethod deleteQueued = CtMethod.make("public java.util.concurrent.CompletableFuture deleteQueued() { return MongoDB.deleteQueued(getCollectionName(), this); }", ctClass);
+        ctClass.addMethod(deleteQueued);
+        
+        // countAsync
+        CtMethod countAsync = CtMethod.make("public static play.libs.F.Promise countAsync() { return MongoDB.countAsync(getCollectionName()); }", ctClass);
+        ctClass.addMethod(countAsync);
+        
+        // countAsync2
+        CtMethod countAsync2 = CtMethod.make("public static play.libs.F.Promise countAsync(java.lang.String query, java.lang.Object[] params) { return MongoDB.countAsync(getCollectionName(), query, params, "+entityName+".class); }", ctClass);
+        ctClass.addMethod(countAsync2);
+        
+        // countAsync3
+        CtMethod countAsync3 = CtMethod.make("public static play.libs.F.Promise countAsync(org.bson.conversions.Bson filter) { return MongoDB.countAsync(getCollectionName(), filter); }", ctClass);
+        ctClass.addMethod(countAsync3);
+        
+        // findAsync
+        CtMethod findAsync = CtMethod.make("public static AsyncFindCursor findAsync(String query, Object[] params){ return MongoDB.findAsync(getCollectionName(),query,params,"+entityName+".class); }", ctClass);
+        ctClass.addMethod(findAsync);
+        
+        // findAsync2
+        CtMethod findAsync2 = CtMethod.make("public static AsyncFindCursor findAsync(){ return MongoDB.findAsync(getCollectionName(),"+entityName+".class); }", ctClass);
+        ctClass.addMethod(findAsync2);
+        
+        // findAsync3
+        CtMethod findAsync3 = CtMethod.make("public static AsyncFindCursor findAsync(org.bson.conversions.Bson filter, org.bson.conversions.Bson sort){ return MongoDB.findAsync(getCollectionName(),filter,sort,"+entityName+".class); }", ctClass);
+        ctClass.addMethod(findAsync3);
+        
+        // aggregateAsync
+        CtMethod aggregateAsync = CtMethod.make("public static AsyncCursor aggregateAsync(java.util.List pipeline) { return MongoDB.aggregateAsync(getCollectionName(), pipeline, "+entityName+".class); }", ctClass);
+        ctClass.addMethod(aggregateAsync);
+        
+        // saveAsync
+        CtMethod saveAsync = CtMethod.make("public play.libs.F.Promise saveAsync() { return MongoDB.saveAsync("+ entityName +".getCollectionName(), this); }", ctClass);
+        ctClass.addMethod(saveAsync);
+        
+        // deleteAsync
+        CtMethod deleteAsync = CtMethod.make("public play.libs.F.Promise deleteAsync() { return MongoDB.deleteAsync(getCollectionName(), this); }", ctClass);
+        ctClass.addMethod(deleteAsync);
+        
+        // deleteAsync2
+        CtMethod deleteAsync2 = CtMethod.make("public static play.libs.F.Promise deleteAsync(String query, Object[] params) { return MongoDB.deleteAsync(getCollectionName(), query, params, "+entityName+".class); }", ctClass);
+        ctClass.addMethod(deleteAsync2);
+        
         // index
         CtMethod index = CtMethod.make("public static void index(String indexString) { MongoDB.index("+ entityName +".getCollectionName(), indexString); }", ctClass);
         ctClass.addMethod(index);
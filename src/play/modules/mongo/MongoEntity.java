@@ -19,4 +19,48 @@ public @interface MongoEntity {
 	 */
 	String value() default "default";
 
+	/**
+	 * The name of the connection holding the collection, configured with
+	 * the keys mongo.&lt;name&gt;.*, e.g. mongo.telemetry.uri. The default
+	 * connection is used if not set.
+	 * @return
+	 */
+	String connection() default "";
+
+	/**
+	 * The database holding the collection, if it is not the database
+	 * configured for the connection.
+	 * @return
+	 */
+	String database() default "";
+
+	/**
+	 * The read preference of the collection, e.g. "secondaryPreferred" to
+	 * send its reads to the secondaries. The connection's one if not set.
+	 * @return
+	 */
+	String readPreference() default "";
+
+	/**
+	 * The write concern of the collection, e.g. "UNACKNOWLEDGED" for data
+	 * that can be lost. The connection's one if not set.
+	 * @return
+	 */
+	String writeConcern() default "";
+
+	/**
+	 * The size of a capped collection, e.g. "10MB". If set, the collection
+	 * is created as a capped collection when the application starts, and
+	 * can be followed with tail().
+	 * @return
+	 */
+	String capped() default "";
+
+	/**
+	 * The maximum number of documents of a capped collection, 0 for no
+	 * limit other than its size.
+	 * @return
+	 */
+	long cappedMax() default 0;
+
 }
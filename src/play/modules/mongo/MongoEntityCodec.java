@@ -0,0 +1,489 @@
+package play.modules.mongodb;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonObjectId;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.Codec;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.bson.codecs.configuration.CodecConfigurationException;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.ByteBufferBsonInput;
+import org.bson.types.ObjectId;
+
+import play.modules.mongodb.MongoMetadata.Kind;
+import play.modules.mongodb.MongoMetadata.Property;
+import play.modules.mongodb.MongoMetadata.ValueType;
+
+/**
+ * Reads and writes MongoModels straight from and to BSON, using the
+ * field metadata of the model class. Values the codec does not know
+ * how to map are handed to the codec registry, and failing that, to
+ * the Jackson based MongoMapper.
+ */
+public class MongoEntityCodec<T> implements CollectibleCodec<T> {
+
+	private static final BsonTypeClassMap bsonTypeClassMap = new BsonTypeClassMap();
+	private static final RawBsonDocumentCodec RAW_CODEC = new RawBsonDocumentCodec();
+
+	private final Class<T> clazz;
+	private final CodecRegistry registry;
+	private final MongoMetadata metadata;
+
+	/**
+	 * Constructor
+	 *
+	 * @param clazz - the model class
+	 * @param registry - the registry used for values the codec does not map itself
+	 */
+	public MongoEntityCodec(Class<T> clazz, CodecRegistry registry){
+		this.clazz = clazz;
+		this.registry = registry;
+		this.metadata = MongoMetadata.of(clazz);
+	}
+
+	@Override
+	public Class<T> getEncoderClass() {
+		return clazz;
+	}
+
+	@Override
+	public void encode(BsonWriter writer, T value, EncoderContext encoderContext) {
+		writeObject(writer, metadata, value, encoderContext);
+	}
+
+	@Override
+	public T decode(BsonReader reader, DecoderContext decoderContext) {
+
+		if (!MongoModel.class.isAssignableFrom(clazz)){
+			return clazz.cast(readObject(reader, metadata, decoderContext));
+		}
+
+		// keep the document, so that saving the model only writes what changed
+		RawBsonDocument document = RAW_CODEC.decode(reader, decoderContext);
+		BsonBinaryReader documentReader = new BsonBinaryReader(new ByteBufferBsonInput(document.getByteBuffer()));
+
+		try {
+			MongoModel model = (MongoModel) readObject(documentReader, metadata, decoderContext);
+			model._snapshot = document;
+			return clazz.cast(model);
+		} finally {
+			documentReader.close();
+		}
+
+	}
+
+	@Override
+	public T generateIdIfAbsentFromDocument(T document) {
+		if (metadata.idField != null && metadata.getId(document) == null){
+			metadata.setId(document, new ObjectId());
+		}
+		return document;
+	}
+
+	@Override
+	public boolean documentHasId(T document) {
+		return metadata.getId(document) != null;
+	}
+
+	@Override
+	public BsonValue getDocumentId(T document) {
+		ObjectId id = metadata.getId(document);
+		if (id == null){
+			throw new IllegalStateException("The model does not have an _id");
+		}
+		return new BsonObjectId(id);
+	}
+
+	private void writeObject(BsonWriter writer, MongoMetadata metadata, Object value, EncoderContext encoderContext){
+
+		if (!metadata.isMappable()){
+			writeConverted(writer, metadata, value, encoderContext);
+			return;
+		}
+
+		writer.writeStartDocument();
+
+		ObjectId id = metadata.getId(value);
+		if (id != null){
+			writer.writeObjectId("_id", id);
+		}
+
+		for (Property property : metadata.properties){
+			writer.writeName(property.name);
+			writeValue(writer, property.type, property.get(value), encoderContext);
+		}
+
+		writer.writeEndDocument();
+
+	}
+
+	private Object readObject(BsonReader reader, MongoMetadata metadata, DecoderContext decoderContext){
+
+		if (!metadata.isMappable()){
+			return readConverted(reader, metadata, decoderContext);
+		}
+
+		Object instance = metadata.newInstance();
+
+		reader.readStartDocument();
+
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT){
+
+			String name = reader.readName();
+
+			if (name.equals("_id") && metadata.idField != null && reader.getCurrentBsonType() == BsonType.OBJECT_ID){
+				metadata.setId(instance, reader.readObjectId());
+				continue;
+			}
+
+			// any other _id, such as the group key of an aggregation, goes to a field named _id
+			Property property = metadata.property(name);
+			if (property == null){
+				reader.skipValue();
+				continue;
+			}
+
+			property.set(instance, readValue(reader, property.type, decoderContext));
+
+		}
+
+		reader.readEndDocument();
+
+		return instance;
+
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void writeValue(BsonWriter writer, ValueType type, Object value, EncoderContext encoderContext){
+
+		if (value == null){
+			writer.writeNull();
+			return;
+		}
+
+		switch (type.kind){
+		case NUMBER:
+			if (value instanceof Long){
+				writer.writeInt64((Long) value);
+			} else if (value instanceof Double || value instanceof Float){
+				writer.writeDouble(((Number) value).doubleValue());
+			} else {
+				writer.writeInt32(((Number) value).intValue());
+			}
+			break;
+		case BOOLEAN:
+			writer.writeBoolean((Boolean) value);
+			break;
+		case STRING:
+			writer.writeString((String) value);
+			break;
+		case DATE:
+			writer.writeDateTime(((Date) value).getTime());
+			break;
+		case OBJECT_ID:
+			writer.writeObjectId((ObjectId) value);
+			break;
+		case ENUM:
+			writer.writeString(((Enum) value).name());
+			break;
+		case EMBEDDED:
+			writeObject(writer, value.getClass() == type.raw ? type.metadata() : MongoMetadata.of(value.getClass()), value, encoderContext);
+			break;
+		case REFERENCE:
+			ObjectId referencedId = MongoMetadata.of(value.getClass()).getId(value);
+			if (referencedId == null){
+				throw new IllegalStateException("A referenced " + value.getClass().getSimpleName() + " must be saved before the models referring to it");
+			}
+			writer.writeObjectId(referencedId);
+			break;
+		case COLLECTION:
+			writer.writeStartArray();
+			for (Object element : (Collection) value){
+				writeValue(writer, type.element, element, encoderContext);
+			}
+			writer.writeEndArray();
+			break;
+		case ARRAY:
+			writer.writeStartArray();
+			for (int i = 0, length = Array.getLength(value); i < length; i++){
+				writeValue(writer, type.element, Array.get(value, i), encoderContext);
+			}
+			writer.writeEndArray();
+			break;
+		default:
+			Codec codec = codec(value.getClass());
+			if (codec != null){
+				encoderContext.encodeWithChildContext(codec, writer, value);
+			} else {
+				writeGeneric(writer, MongoMapper.convertValue(value, Object.class), encoderContext);
+			}
+		}
+
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Object readValue(BsonReader reader, ValueType type, DecoderContext decoderContext){
+
+		BsonType bsonType = reader.getCurrentBsonType();
+
+		if (bsonType == BsonType.NULL){
+			reader.readNull();
+			return null;
+		}
+
+		switch (type.kind){
+		case NUMBER:
+			if (bsonType == BsonType.INT32){
+				return toNumber(reader.readInt32(), type.raw);
+			} else if (bsonType == BsonType.INT64){
+				return toNumber(reader.readInt64(), type.raw);
+			} else if (bsonType == BsonType.DOUBLE){
+				return toNumber(reader.readDouble(), type.raw);
+			}
+			break;
+		case BOOLEAN:
+			if (bsonType == BsonType.BOOLEAN){
+				return reader.readBoolean();
+			}
+			break;
+		case STRING:
+			if (bsonType == BsonType.STRING){
+				return reader.readString();
+			} else if (bsonType == BsonType.SYMBOL){
+				return reader.readSymbol();
+			}
+			break;
+		case DATE:
+			if (bsonType == BsonType.DATE_TIME){
+				return new Date(reader.readDateTime());
+			} else if (bsonType == BsonType.INT64){
+				// dates written by the Jackson mapper are stored as timestamps
+				return new Date(reader.readInt64());
+			}
+			break;
+		case OBJECT_ID:
+			if (bsonType == BsonType.OBJECT_ID){
+				return reader.readObjectId();
+			}
+			break;
+		case ENUM:
+			if (bsonType == BsonType.STRING){
+				return Enum.valueOf((Class<Enum>) type.raw, reader.readString());
+			}
+			break;
+		case EMBEDDED:
+			if (bsonType == BsonType.DOCUMENT){
+				return readObject(reader, type.metadata(), decoderContext);
+			}
+			break;
+		case REFERENCE:
+			if (bsonType == BsonType.OBJECT_ID){
+				// a stub, resolved by MongoReferences
+				MongoMetadata referenced = type.metadata();
+				Object stub = referenced.newInstance();
+				referenced.setId(stub, reader.readObjectId());
+				return stub;
+			} else if (bsonType == BsonType.DOCUMENT){
+				// stored embedded before the field was made a reference
+				return readObject(reader, type.metadata(), decoderContext);
+			}
+			break;
+		case COLLECTION:
+			if (bsonType == BsonType.ARRAY){
+				Collection collection = newCollection(type.raw);
+				if (collection != null){
+					reader.readStartArray();
+					while (reader.readBsonType() != BsonType.END_OF_DOCUMENT){
+						collection.add(readValue(reader, type.element, decoderContext));
+					}
+					reader.readEndArray();
+					return collection;
+				}
+			}
+			break;
+		case ARRAY:
+			if (bsonType == BsonType.ARRAY){
+				List<Object> elements = new ArrayList<Object>();
+				reader.readStartArray();
+				while (reader.readBsonType() != BsonType.END_OF_DOCUMENT){
+					elements.add(readValue(reader, type.element, decoderContext));
+				}
+				reader.readEndArray();
+				Object array = Array.newInstance(type.raw.getComponentType(), elements.size());
+				for (int i = 0; i < elements.size(); i++){
+					Object element = elements.get(i);
+					if (element != null || !type.raw.getComponentType().isPrimitive()){
+						Array.set(array, i, element);
+					}
+				}
+				return array;
+			}
+			break;
+		default:
+			break;
+		}
+
+		// values the codec can't map itself are converted by the Jackson mapper
+		Object value = readGeneric(reader, decoderContext);
+
+		if (type.generic instanceof Class && type.raw.isInstance(value)){
+			return value;
+		}
+
+		return MongoMapper.convertValue(value, type.generic);
+
+	}
+
+	/**
+	 * Writes the result of a Jackson conversion: maps, lists and the
+	 * values known to the codec registry.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void writeGeneric(BsonWriter writer, Object value, EncoderContext encoderContext){
+
+		if (value == null){
+			writer.writeNull();
+		} else if (value instanceof Map){
+			writer.writeStartDocument();
+			for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()){
+				writer.writeName(entry.getKey());
+				writeGeneric(writer, entry.getValue(), encoderContext);
+			}
+			writer.writeEndDocument();
+		} else if (value instanceof Iterable){
+			writer.writeStartArray();
+			for (Object element : (Iterable) value){
+				writeGeneric(writer, element, encoderContext);
+			}
+			writer.writeEndArray();
+		} else {
+			Codec codec = registry.get(value.getClass());
+			encoderContext.encodeWithChildContext(codec, writer, value);
+		}
+
+	}
+
+	private Object readGeneric(BsonReader reader, DecoderContext decoderContext){
+
+		BsonType bsonType = reader.getCurrentBsonType();
+
+		if (bsonType == BsonType.NULL){
+			reader.readNull();
+			return null;
+		}
+
+		if (bsonType == BsonType.ARRAY){
+			List<Object> list = new ArrayList<Object>();
+			reader.readStartArray();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT){
+				list.add(readGeneric(reader, decoderContext));
+			}
+			reader.readEndArray();
+			return list;
+		}
+
+		return registry.get(bsonTypeClassMap.get(bsonType)).decode(reader, decoderContext);
+
+	}
+
+	/**
+	 * Classes without a no-argument constructor are converted through
+	 * a Map by the Jackson mapper, as before.
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeConverted(BsonWriter writer, MongoMetadata metadata, Object value, EncoderContext encoderContext){
+
+		Map<String, Object> map = MongoMapper.convertValue(value, Map.class);
+		map.remove("_id");
+
+		Document document = new Document();
+		ObjectId id = metadata.getId(value);
+		if (id != null){
+			document.put("_id", id);
+		}
+		document.putAll(map);
+
+		writeGeneric(writer, document, encoderContext);
+
+	}
+
+	private Object readConverted(BsonReader reader, MongoMetadata metadata, DecoderContext decoderContext){
+
+		Document document = registry.get(Document.class).decode(reader, decoderContext);
+		// a class without an ObjectId _id may map a group key or other _id itself
+		Object id = metadata.idField != null ? document.remove("_id") : document.get("_id");
+
+		Object instance = MongoMapper.convertValue(document, metadata.clazz);
+		if (id instanceof ObjectId){
+			metadata.setId(instance, (ObjectId) id);
+		}
+
+		return instance;
+
+	}
+
+	private Codec<?> codec(Class<?> valueClass){
+		try {
+			return registry.get(valueClass);
+		} catch (CodecConfigurationException e) {
+			return null;
+		}
+	}
+
+	private static Object toNumber(Number number, Class<?> type){
+
+		if (type == int.class || type == Integer.class){
+			return number.intValue();
+		} else if (type == long.class || type == Long.class){
+			return number.longValue();
+		} else if (type == double.class || type == Double.class){
+			return number.doubleValue();
+		} else if (type == float.class || type == Float.class){
+			return number.floatValue();
+		} else if (type == short.class || type == Short.class){
+			return number.shortValue();
+		} else {
+			return number.byteValue();
+		}
+
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Collection newCollection(Class<?> type){
+
+		if (type.isAssignableFrom(ArrayList.class)){
+			return new ArrayList();
+		} else if (type.isAssignableFrom(TreeSet.class) && SortedSet.class.isAssignableFrom(type)){
+			return new TreeSet();
+		} else if (type.isAssignableFrom(LinkedHashSet.class)){
+			return new LinkedHashSet();
+		}
+
+		try {
+			return (Collection) type.newInstance();
+		} catch (Exception e) {
+			return null;
+		}
+
+	}
+
+}
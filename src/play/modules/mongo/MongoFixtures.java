@@ -0,0 +1,429 @@
+package play.modules.mongodb;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Loads large data sets into a collection, e.g. to seed a test or staging
+ * database, much faster than saving the models one by one.
+ *
+ * Two formats are read: the JSON written by mongoexport, one document per
+ * line or as one array (--jsonArray), and the BSON dumps written by
+ * mongodump (files ending in .bson). The file is streamed: JSON documents
+ * are parsed one at a time, and BSON documents are copied as they are from
+ * a memory-mapped window of the file, without being decoded. Documents are
+ * inserted by unordered insertMany batches, several of them in flight while
+ * the next ones are read, so the memory used does not depend on the size
+ * of the file.
+ *
+ * The documents are written as they are in the file, they are not decoded
+ * into models: the file must match the fields of the MongoEntity.
+ */
+public class MongoFixtures {
+
+	/**
+	 * The maximum number of documents and bytes sent in one insertMany.
+	 */
+	private static final int BATCH_SIZE = 1000;
+	private static final int BATCH_BYTES = 8 * 1024 * 1024;
+
+	/**
+	 * The number of batches written at the same time, and the number of
+	 * batches which may be read ahead of them.
+	 */
+	private static final int WRITERS = 2;
+	private static final int MAX_IN_FLIGHT = 4;
+
+	/**
+	 * The size of the part of a BSON file mapped in memory at a time.
+	 */
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Reads the documents of a file one at a time.
+	 */
+	private interface Source<D> extends Closeable {
+
+		/**
+		 * The next document, or null at the end of the file.
+		 */
+		D next() throws IOException;
+
+		/**
+		 * The size of the last document read, in bytes.
+		 */
+		int size();
+
+	}
+
+	/**
+	 * Loads a mongoexport JSON file or a mongodump BSON file into the
+	 * collection of a MongoEntity, next to the models already in it.
+	 *
+	 * @param path - the file, relative to the application
+	 * @param clazz - the MongoEntity class
+	 * @return - the number of documents inserted
+	 */
+	public static long load(String path, Class<? extends MongoModel> clazz){
+		return load(Play.getFile(path), clazz);
+	}
+
+	/**
+	 * Loads a mongoexport JSON file or a mongodump BSON file into the
+	 * collection of a MongoEntity, next to the models already in it.
+	 *
+	 * @param file - the file, read as BSON if its name ends in .bson
+	 * @param clazz - the MongoEntity class
+	 * @return - the number of documents inserted
+	 */
+	public static long load(File file, Class<? extends MongoModel> clazz){
+		return load(file, MongoMetadata.of(clazz).collectionName());
+	}
+
+	/**
+	 * Empties the collection of a MongoEntity and loads a file into it, e.g.
+	 * before each test. The collection is dropped, which is much faster than
+	 * deleting its models, and the declared indexes are built once the
+	 * documents are loaded.
+	 *
+	 * @param path - the file, relative to the application
+	 * @param clazz - the MongoEntity class
+	 * @return - the number of documents inserted
+	 */
+	public static long reset(String path, Class<? extends MongoModel> clazz){
+		return reset(Play.getFile(path), clazz);
+	}
+
+	/**
+	 * Empties the collection of a MongoEntity and loads a file into it, e.g.
+	 * before each test. The collection is dropped, which is much faster than
+	 * deleting its models, and the declared indexes are built once the
+	 * documents are loaded.
+	 *
+	 * @param file - the file, read as BSON if its name ends in .bson
+	 * @param clazz - the MongoEntity class
+	 * @return - the number of documents inserted
+	 */
+	public static long reset(File file, Class<? extends MongoModel> clazz){
+
+		String collectionName = MongoMetadata.of(clazz).collectionName();
+
+		MongoEntity entity = clazz.getAnnotation(MongoEntity.class);
+		if (entity != null && entity.capped().length() > 0){
+			// a capped collection must be created again as it was
+			MongoDB.deleteAll(collectionName);
+		} else {
+			MongoDB.collection(collectionName).drop();
+			MongoDB.invalidate(collectionName, null);
+		}
+		long loaded = load(file, collectionName);
+		MongoIndexes.ensure(collectionName, MongoIndexes.declared(clazz));
+
+		return loaded;
+
+	}
+
+	private static long load(File file, String collectionName){
+
+		long start = System.currentTimeMillis();
+		long loaded;
+
+		try {
+			if (file.getName().endsWith(".bson")){
+				loaded = load(new BsonSource(file), MongoDB.collection(collectionName, RawBsonDocument.class), collectionName);
+			} else {
+				loaded = load(new JsonSource(file), MongoDB.collection(collectionName, BsonDocument.class), collectionName);
+			}
+		} catch (IOException e) {
+			throw new UnexpectedException("Unable to load " + file + " into " + collectionName, e);
+		} finally {
+			MongoDB.invalidate(collectionName, null);
+		}
+
+		Logger.info("Loaded %d documents from %s into %s in %d ms", loaded, file.getName(), collectionName, System.currentTimeMillis() - start);
+
+		return loaded;
+
+	}
+
+	/**
+	 * Reads the batches on the calling thread and writes them on the writer
+	 * threads. The reader waits when MAX_IN_FLIGHT batches are not written
+	 * yet, which bounds the memory used.
+	 */
+	private static <D> long load(Source<D> source, final MongoCollection<D> collection, final String collectionName) throws IOException {
+
+		final ExecutorService writers = Executors.newFixedThreadPool(WRITERS, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "mongo-fixtures-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+		final AtomicLong inserted = new AtomicLong();
+		final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+		final InsertManyOptions options = new InsertManyOptions().ordered(false);
+
+		try {
+
+			List<D> batch = new ArrayList<D>(BATCH_SIZE);
+			int bytes = 0;
+			D document;
+
+			while (error.get() == null && (document = source.next()) != null){
+
+				batch.add(document);
+				bytes += source.size();
+
+				if (batch.size() < BATCH_SIZE && bytes < BATCH_BYTES){
+					continue;
+				}
+
+				acquire(inFlight, collectionName);
+				write(writers, collection, collectionName, batch, options, inFlight, inserted, error);
+
+				batch = new ArrayList<D>(BATCH_SIZE);
+				bytes = 0;
+
+			}
+
+			if (!batch.isEmpty() && error.get() == null){
+				acquire(inFlight, collectionName);
+				write(writers, collection, collectionName, batch, options, inFlight, inserted, error);
+			}
+
+			// wait for the batches still being written
+			acquire(inFlight, MAX_IN_FLIGHT, collectionName);
+
+		} finally {
+			source.close();
+			writers.shutdown();
+		}
+
+		if (error.get() != null){
+			throw error.get();
+		}
+
+		return inserted.get();
+
+	}
+
+	private static <D> void write(ExecutorService writers, final MongoCollection<D> collection, final String collectionName, final List<D> batch, final InsertManyOptions options, final Semaphore inFlight, final AtomicLong inserted, final AtomicReference<RuntimeException> error){
+
+		writers.execute(() -> {
+			try {
+				MongoMetrics.time(collectionName, "insert", null, () -> {
+					collection.insertMany(batch, options);
+					return null;
+				}, none -> batch.size());
+				inserted.addAndGet(batch.size());
+			} catch (RuntimeException e) {
+				// the first error stops the reading, the batches in flight are still written
+				error.compareAndSet(null, e);
+			} finally {
+				inFlight.release();
+			}
+		});
+
+	}
+
+	private static void acquire(Semaphore semaphore, String collectionName){
+		acquire(semaphore, 1, collectionName);
+	}
+
+	private static void acquire(Semaphore semaphore, int permits, String collectionName){
+		try {
+			semaphore.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading " + collectionName, e);
+		}
+	}
+
+	/**
+	 * The documents of a mongoexport file: one document per line, or one
+	 * array of documents. The top level objects are cut out of the stream by
+	 * following the braces and the strings, then parsed one at a time.
+	 */
+	private static class JsonSource implements Source<BsonDocument> {
+
+		private final Reader reader;
+		private final StringBuilder text = new StringBuilder();
+		private int size;
+
+		JsonSource(File file) throws IOException {
+			this.reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8), 64 * 1024);
+		}
+
+		@Override
+		public BsonDocument next() throws IOException {
+
+			text.setLength(0);
+
+			int depth = 0;
+			boolean inString = false;
+			boolean escaped = false;
+			int c;
+
+			while ((c = reader.read()) != -1){
+
+				if (depth == 0){
+					// between documents: whitespace, commas and the brackets of an array
+					if (c == '{'){
+						depth = 1;
+						text.append('{');
+					}
+					continue;
+				}
+
+				text.append((char) c);
+
+				if (inString){
+					if (escaped){
+						escaped = false;
+					} else if (c == '\\'){
+						escaped = true;
+					} else if (c == '"'){
+						inString = false;
+					}
+				} else if (c == '"'){
+					inString = true;
+				} else if (c == '{'){
+					depth++;
+				} else if (c == '}' && --depth == 0){
+					size = text.length();
+					return BsonDocument.parse(text.toString());
+				}
+
+			}
+
+			if (depth > 0){
+				throw new IOException("The file ends inside a document");
+			}
+
+			return null;
+
+		}
+
+		@Override
+		public int size(){
+			return size;
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+
+	}
+
+	/**
+	 * The documents of a mongodump file, each one an int32 length followed
+	 * by the rest of the document. The file is mapped in memory one window
+	 * at a time, and each document is copied out of it as it is.
+	 */
+	private static class BsonSource implements Source<RawBsonDocument> {
+
+		private final FileChannel channel;
+		private final long length;
+
+		private MappedByteBuffer window;
+		private long windowStart;
+		private long position;
+		private int size;
+
+		BsonSource(File file) throws IOException {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			this.length = channel.size();
+		}
+
+		@Override
+		public RawBsonDocument next() throws IOException {
+
+			if (position >= length){
+				return null;
+			}
+
+			if (position + 4 > length){
+				throw new IOException("Truncated document at byte " + position);
+			}
+
+			map(4);
+			size = window.getInt((int) (position - windowStart));
+
+			if (size < 5 || position + size > length){
+				throw new IOException("Invalid document length " + size + " at byte " + position);
+			}
+
+			map(size);
+			byte[] bytes = new byte[size];
+			window.position((int) (position - windowStart));
+			window.get(bytes);
+			position += size;
+
+			return new RawBsonDocument(bytes);
+
+		}
+
+		/**
+		 * Maps the window again from the current position, unless it already
+		 * holds the next bytes.
+		 */
+		private void map(int bytes) throws IOException {
+
+			if (window != null && position + bytes <= windowStart + window.limit()){
+				return;
+			}
+
+			windowStart = position;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(WINDOW_SIZE, bytes), length - position));
+			window.order(ByteOrder.LITTLE_ENDIAN);
+
+		}
+
+		@Override
+		public int size(){
+			return size;
+		}
+
+		@Override
+		public void close() throws IOException {
+			window = null;
+			channel.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,48 @@
+package play.modules.mongodb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares an index on a field of a MongoEntity, or of a class embedded
+ * in one. The missing indexes are built in the background when the 
+ * application starts, see MongoIndexes.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface MongoIndexed {
+
+	/**
+	 * 1 for an ascending index, -1 for a descending one.
+	 * @return
+	 */
+	int order() default 1;
+	
+	/**
+	 * Whether two models may not have the same value.
+	 * @return
+	 */
+	boolean unique() default false;
+	
+	/**
+	 * Whether models without the field are left out of the index.
+	 * @return
+	 */
+	boolean sparse() default false;
+	
+	/**
+	 * Makes this a TTL index: models are deleted by the server once their
+	 * date field is older than the given duration, e.g. "1h" or "30d".
+	 * @return
+	 */
+	String expireAfter() default "";
+	
+	/**
+	 * The name of the index. By default the server derives it from the keys.
+	 * @return
+	 */
+	String name() default "";
+
+}
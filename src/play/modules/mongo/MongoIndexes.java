@@ -0,0 +1,247 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+
+import play.Logger;
+import play.libs.Time;
+import play.modules.mongodb.MongoMetadata.Kind;
+import play.modules.mongodb.MongoMetadata.Property;
+import play.modules.mongodb.MongoMetadata.ValueType;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+
+/**
+ * Builds the indexes declared with @MongoIndexed and @MongoCompoundIndex.
+ *
+ * When the application starts, the declared indexes of every collection are
+ * compared with the existing ones and only the missing indexes are created.
+ * Collections are handled concurrently and indexes are built in the
+ * background, so the application does not wait for them. An index that
+ * exists with other options is left as it is and a warning is logged.
+ */
+public class MongoIndexes {
+
+	/**
+	 * The maximum number of collections indexed at the same time.
+	 */
+	private static final int MAX_THREADS = 4;
+
+	/**
+	 * How deep embedded classes are searched for @MongoIndexed fields.
+	 */
+	private static final int MAX_DEPTH = 5;
+
+	private static volatile CompletableFuture<Integer> building = CompletableFuture.completedFuture(0);
+
+	/**
+	 * Returns the indexes declared on a MongoEntity class and the classes
+	 * embedded in it.
+	 *
+	 * @param clazz - the type of MongoModel
+	 * @return - the indexes
+	 */
+	public static List<IndexModel> declared(Class<?> clazz){
+
+		List<IndexModel> indexes = new ArrayList<IndexModel>();
+
+		for (MongoCompoundIndex index : clazz.getAnnotationsByType(MongoCompoundIndex.class)){
+			IndexOptions options = new IndexOptions().background(true).unique(index.unique()).sparse(index.sparse());
+			if (index.name().length() > 0){
+				options.name(index.name());
+			}
+			indexes.add(new IndexModel(MongoDB.createOrderDbObject(index.value()), options));
+		}
+
+		fields(MongoMetadata.of(clazz), "", 0, indexes);
+
+		return indexes;
+
+	}
+
+	private static void fields(MongoMetadata metadata, String prefix, int depth, List<IndexModel> indexes){
+
+		for (Property property : metadata.properties){
+
+			MongoIndexed index = property.field.getAnnotation(MongoIndexed.class);
+
+			if (index != null){
+				IndexOptions options = new IndexOptions().background(true).unique(index.unique()).sparse(index.sparse());
+				if (index.name().length() > 0){
+					options.name(index.name());
+				}
+				if (index.expireAfter().length() > 0){
+					options.expireAfter((long) Time.parseDuration(index.expireAfter()), TimeUnit.SECONDS);
+				}
+				indexes.add(new IndexModel(new Document(prefix + property.name, index.order()), options));
+			}
+
+			ValueType type = property.type;
+			if (type.kind == Kind.COLLECTION || type.kind == Kind.ARRAY){
+				type = type.element;
+			}
+
+			if (type.kind == Kind.EMBEDDED && depth < MAX_DEPTH){
+				fields(type.metadata(), prefix + property.name + ".", depth + 1, indexes);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Creates the missing indexes of the given classes. The collections are
+	 * indexed concurrently and the call returns straight away.
+	 *
+	 * @param classes - the MongoEntity classes
+	 * @return - completes with the number of indexes created
+	 */
+	public static synchronized CompletableFuture<Integer> ensure(Collection<Class> classes){
+
+		Map<String, List<IndexModel>> byCollection = new LinkedHashMap<String, List<IndexModel>>();
+
+		for (Class clazz : classes){
+			List<IndexModel> indexes = declared(clazz);
+			if (!indexes.isEmpty()){
+				String collectionName = MongoMetadata.of(clazz).collectionName();
+				List<IndexModel> collectionIndexes = byCollection.get(collectionName);
+				if (collectionIndexes == null){
+					collectionIndexes = new ArrayList<IndexModel>();
+					byCollection.put(collectionName, collectionIndexes);
+				}
+				collectionIndexes.addAll(indexes);
+			}
+		}
+
+		if (byCollection.isEmpty()){
+			return CompletableFuture.completedFuture(0);
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(byCollection.size(), MAX_THREADS), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "mongo-indexes-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+
+		for (final Map.Entry<String, List<IndexModel>> entry : byCollection.entrySet()){
+			futures.add(CompletableFuture.supplyAsync(() -> ensure(entry.getKey(), entry.getValue()), executor).exceptionally(e -> {
+				Logger.error(e, "Unable to create the indexes of %s", entry.getKey());
+				return 0;
+			}));
+		}
+
+		building = CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenApply(ignored -> {
+			int created = 0;
+			for (CompletableFuture<Integer> future : futures){
+				created += future.join();
+			}
+			return created;
+		}).whenComplete((created, e) -> executor.shutdown());
+
+		return building;
+
+	}
+
+	/**
+	 * Waits until the indexes being created by ensure() are built.
+	 */
+	public static void await(){
+		building.join();
+	}
+
+	/**
+	 * Creates the given indexes of a collection, unless they already exist.
+	 *
+	 * @param collectionName - the collection
+	 * @param indexes - the declared indexes
+	 * @return - the number of indexes created
+	 */
+	public static int ensure(String collectionName, List<IndexModel> indexes){
+
+		MongoCollection<Document> c = MongoDB.collection(collectionName);
+
+		Map<List<String>, Document> existing = new LinkedHashMap<List<String>, Document>();
+		for (Document index : c.listIndexes()){
+			existing.put(keys(index.get("key")), index);
+		}
+
+		List<IndexModel> missing = new ArrayList<IndexModel>();
+		Set<List<String>> declared = new HashSet<List<String>>();
+
+		for (IndexModel index : indexes){
+
+			List<String> keys = keys(index.getKeys());
+
+			if (!declared.add(keys)){
+				continue;
+			}
+
+			Document found = existing.get(keys);
+
+			if (found == null){
+				missing.add(index);
+			} else if (!sameOptions(found, index.getOptions())){
+				Logger.warn("Index %s of %s differs from its declaration, drop it to have it rebuilt", found.getString("name"), collectionName);
+			}
+
+		}
+
+		if (!missing.isEmpty()){
+			long start = System.currentTimeMillis();
+			c.createIndexes(missing);
+			Logger.info("Created %d indexes of %s in %d ms", missing.size(), collectionName, System.currentTimeMillis() - start);
+		}
+
+		return missing.size();
+
+	}
+
+	/**
+	 * The keys of an index as "field:order" strings, in order. Orders are
+	 * compared as integers, the server may return them as doubles.
+	 */
+	private static List<String> keys(Object keys){
+
+		List<String> list = new ArrayList<String>();
+
+		for (Map.Entry<String, Object> entry : ((Map<String, Object>) keys).entrySet()){
+			Object order = entry.getValue();
+			list.add(entry.getKey() + ":" + (order instanceof Number ? ((Number) order).intValue() : order));
+		}
+
+		return list;
+
+	}
+
+	private static boolean sameOptions(Document existing, IndexOptions options){
+
+		Number expireAfter = (Number) existing.get("expireAfterSeconds");
+		Long declaredExpireAfter = options.getExpireAfter(TimeUnit.SECONDS);
+
+		return existing.getBoolean("unique", false) == options.isUnique()
+				&& existing.getBoolean("sparse", false) == options.isSparse()
+				&& (expireAfter == null ? declaredExpireAfter == null : declaredExpireAfter != null && expireAfter.longValue() == declaredExpireAfter);
+
+	}
+
+}
@@ -0,0 +1,147 @@
+package play.modules.mongodb;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.bson.BsonDocument;
+
+/**
+ * Iterates over the models of a cursor one at a time. The models are
+ * decoded as the driver fetches each batch, so only the current batch
+ * is held in memory. The underlying driver cursor is closed as soon as
+ * the last model has been read, or when close() is called.
+ * 
+ * When the models have @MongoReference fields, they are read ahead by
+ * batches, and the references of each batch are loaded together, see
+ * MongoReferences.
+ */
+public class MongoIterator<T> implements Iterator<T>, Closeable {
+
+	/**
+	 * The number of models whose references are loaded together, unless
+	 * the cursor has a batch size of its own.
+	 */
+	private static final int RESOLVE_BATCH_SIZE = 100;
+	
+	private final com.mongodb.client.MongoCursor<?> cursor;
+	private final BsonDocument projection;
+	private final int resolveBatchSize;
+	private final Deque<Object> batch = new ArrayDeque<Object>();
+	private boolean closed;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param cursor - the driver cursor
+	 */
+	public MongoIterator(com.mongodb.client.MongoCursor<?> cursor){
+		this(cursor, null, null, 0);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param cursor - the driver cursor
+	 * @param projection - the projection of the query, or null
+	 * @param clazz - the class of the results, whose references are loaded, or null
+	 * @param batchSize - the batch size of the cursor, or 0 for the default
+	 */
+	MongoIterator(com.mongodb.client.MongoCursor<?> cursor, BsonDocument projection, Class<?> clazz, int batchSize){
+		this.cursor = cursor;
+		this.projection = projection;
+		this.resolveBatchSize = hasReferences(clazz) ? (batchSize > 0 ? batchSize : RESOLVE_BATCH_SIZE) : 0;
+	}
+	
+	private static boolean hasReferences(Class<?> clazz){
+		return clazz != null && MongoModel.class.isAssignableFrom(clazz) && !MongoMetadata.of(clazz).references.isEmpty();
+	}
+	
+	@Override
+	public boolean hasNext() {
+		
+		if (!batch.isEmpty()){
+			return true;
+		}
+		
+		if (closed){
+			return false;
+		}
+		
+		if (!cursor.hasNext()){
+			close();
+			return false;
+		}
+		
+		if (resolveBatchSize > 0){
+			readBatch();
+		}
+		
+		return true;
+		
+	}
+
+	@Override
+	public T next() {
+		
+		if (!hasNext()){
+			throw new NoSuchElementException();
+		}
+		
+		return (T) (batch.isEmpty() ? read() : batch.poll());
+		
+	}
+	
+	private Object read(){
+		
+		Object next = cursor.next();
+		
+		if (projection != null && next instanceof MongoModel){
+			((MongoModel) next)._projection = projection;
+		}
+		
+		return next;
+		
+	}
+	
+	/**
+	 * Reads the next models ahead and loads their references together.
+	 */
+	private void readBatch(){
+		
+		List<MongoModel> models = new ArrayList<MongoModel>(resolveBatchSize);
+		
+		while (batch.size() < resolveBatchSize && cursor.hasNext()){
+			Object next = read();
+			batch.add(next);
+			if (next instanceof MongoModel){
+				models.add((MongoModel) next);
+			}
+		}
+		
+		MongoReferences.resolve(models);
+		
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("remove");
+	}
+	
+	/**
+	 * Releases the underlying driver cursor.
+	 */
+	@Override
+	public void close() {
+		batch.clear();
+		if (!closed){
+			closed = true;
+			cursor.close();
+		}
+	}
+	
+}
@@ -1,22 +1,28 @@
 package play.modules.mongodb;
 
+import java.lang.reflect.Type;
+
 import org.codehaus.jackson.map.DeserializationConfig;
 import org.codehaus.jackson.map.ObjectMapper;
 
 
 public class MongoMapper {
 
-	private static ObjectMapper mapper;
+	private static final ObjectMapper mapper = new ObjectMapper();
+	
+	static {
+		mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	}
 	
 	public static <T> T convertValue(Object fromValue, Class<T> toValueType){
 		return mapper().convertValue(fromValue, toValueType);
 	}
 	
+	public static Object convertValue(Object fromValue, Type toValueType){
+		return mapper().convertValue(fromValue, mapper().getTypeFactory().constructType(toValueType));
+	}
+	
 	private static ObjectMapper mapper(){
-		if (mapper == null){
-			mapper = new ObjectMapper();
-			mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		}
 		return mapper;
 	}
 	
@@ -0,0 +1,363 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+/**
+ * Matches documents against a query filter on the client, for the cursors
+ * which cannot filter on the server, such as the tailable cursor of a
+ * MongoTail. Supports equality on fields and dotted paths (an array matches
+ * if any of its elements does), $eq, $ne, $gt, $gte, $lt, $lte, $in, $nin,
+ * $exists, $regex, $not, $and, $or and $nor. Other operators are rejected
+ * when the matcher is created.
+ */
+class MongoMatcher {
+
+	private final BsonDocument filter;
+
+	/**
+	 * Constructor
+	 *
+	 * @param filter - the query filter, or null to match every document
+	 */
+	MongoMatcher(BsonDocument filter){
+		this.filter = filter == null ? new BsonDocument() : filter;
+		check(this.filter);
+	}
+
+	/**
+	 * Returns whether a document matches the filter.
+	 *
+	 * @param document - the document
+	 * @return - true if it matches
+	 */
+	boolean matches(BsonDocument document){
+		return matches(document, filter);
+	}
+
+	private static boolean matches(BsonDocument document, BsonDocument filter){
+
+		for (Map.Entry<String, BsonValue> entry : filter.entrySet()){
+
+			String key = entry.getKey();
+			BsonValue condition = entry.getValue();
+
+			boolean matched;
+
+			if (key.equals("$and")){
+				matched = true;
+				for (BsonValue clause : condition.asArray()){
+					matched &= matches(document, clause.asDocument());
+				}
+			} else if (key.equals("$or")){
+				matched = false;
+				for (BsonValue clause : condition.asArray()){
+					matched |= matches(document, clause.asDocument());
+				}
+			} else if (key.equals("$nor")){
+				matched = true;
+				for (BsonValue clause : condition.asArray()){
+					matched &= !matches(document, clause.asDocument());
+				}
+			} else {
+				matched = matchesField(values(document, key), condition);
+			}
+
+			if (!matched){
+				return false;
+			}
+
+		}
+
+		return true;
+
+	}
+
+	private static boolean matchesField(List<BsonValue> values, BsonValue condition){
+
+		if (!isOperators(condition)){
+			return condition.isRegularExpression() ? matchesRegex(values, condition.asRegularExpression().getPattern(), condition.asRegularExpression().getOptions()) : equal(values, condition);
+		}
+
+		BsonDocument operators = condition.asDocument();
+
+		for (Map.Entry<String, BsonValue> entry : operators.entrySet()){
+
+			String operator = entry.getKey();
+			BsonValue operand = entry.getValue();
+
+			boolean matched;
+
+			switch (operator){
+			case "$eq":
+				matched = equal(values, operand);
+				break;
+			case "$ne":
+				matched = !equal(values, operand);
+				break;
+			case "$gt":
+				matched = compares(values, operand, 1, 1);
+				break;
+			case "$gte":
+				matched = compares(values, operand, 0, 1);
+				break;
+			case "$lt":
+				matched = compares(values, operand, -1, -1);
+				break;
+			case "$lte":
+				matched = compares(values, operand, -1, 0);
+				break;
+			case "$in":
+				matched = in(values, operand);
+				break;
+			case "$nin":
+				matched = !in(values, operand);
+				break;
+			case "$exists":
+				matched = values.isEmpty() != truthy(operand);
+				break;
+			case "$regex":
+				BsonValue options = operators.get("$options");
+				matched = matchesRegex(values, operand.isString() ? operand.asString().getValue() : operand.asRegularExpression().getPattern(), options == null ? "" : options.asString().getValue());
+				break;
+			case "$options":
+				matched = true;
+				break;
+			case "$not":
+				matched = !matchesField(values, operand);
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported operator " + operator);
+			}
+
+			if (!matched){
+				return false;
+			}
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * The values at a dotted path. The elements of the arrays on the way
+	 * are searched, and an array value contributes itself and its elements.
+	 */
+	private static List<BsonValue> values(BsonValue value, String path){
+
+		List<BsonValue> values = new ArrayList<BsonValue>();
+		collect(value, path, values);
+
+		return values;
+
+	}
+
+	private static void collect(BsonValue value, String path, List<BsonValue> values){
+
+		if (value.isArray()){
+			for (BsonValue element : value.asArray()){
+				if (element.isDocument()){
+					collect(element, path, values);
+				}
+			}
+			return;
+		}
+
+		if (!value.isDocument()){
+			return;
+		}
+
+		int dot = path.indexOf('.');
+		BsonValue field = value.asDocument().get(dot < 0 ? path : path.substring(0, dot));
+
+		if (field == null){
+			return;
+		}
+
+		if (dot >= 0){
+			collect(field, path.substring(dot + 1), values);
+		} else {
+			values.add(field);
+			if (field.isArray()){
+				values.addAll(field.asArray());
+			}
+		}
+
+	}
+
+	private static boolean equal(List<BsonValue> values, BsonValue operand){
+
+		if (operand.isNull() && values.isEmpty()){
+			// a missing field equals null
+			return true;
+		}
+
+		for (BsonValue value : values){
+			if (equal(value, operand)){
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	private static boolean equal(BsonValue value, BsonValue operand){
+		if (value.isNumber() && operand.isNumber()){
+			return compare(value, operand) == 0;
+		}
+		return value.equals(operand);
+	}
+
+	private static boolean in(List<BsonValue> values, BsonValue operand){
+
+		for (BsonValue candidate : operand.asArray()){
+			if (candidate.isRegularExpression() ? matchesRegex(values, candidate.asRegularExpression().getPattern(), candidate.asRegularExpression().getOptions()) : equal(values, candidate)){
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Whether any value compares to the operand with a result between min and max.
+	 */
+	private static boolean compares(List<BsonValue> values, BsonValue operand, int min, int max){
+
+		for (BsonValue value : values){
+			Integer result = compare(value, operand);
+			if (result != null && result >= min && result <= max){
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Compares two values of the same kind, or returns null if they cannot be compared.
+	 */
+	private static Integer compare(BsonValue value, BsonValue operand){
+
+		int result;
+
+		if (value.isNumber() && operand.isNumber()){
+			if (value.isDouble() || operand.isDouble()){
+				result = Double.compare(value.asNumber().doubleValue(), operand.asNumber().doubleValue());
+			} else {
+				result = Long.compare(value.asNumber().longValue(), operand.asNumber().longValue());
+			}
+		} else if (value.isString() && operand.isString()){
+			result = value.asString().getValue().compareTo(operand.asString().getValue());
+		} else if (value.isDateTime() && operand.isDateTime()){
+			result = Long.compare(value.asDateTime().getValue(), operand.asDateTime().getValue());
+		} else if (value.isObjectId() && operand.isObjectId()){
+			result = value.asObjectId().getValue().compareTo(operand.asObjectId().getValue());
+		} else if (value.isBoolean() && operand.isBoolean()){
+			result = Boolean.compare(value.asBoolean().getValue(), operand.asBoolean().getValue());
+		} else if (value.isTimestamp() && operand.isTimestamp()){
+			result = value.asTimestamp().compareTo(operand.asTimestamp());
+		} else {
+			return null;
+		}
+
+		return Integer.signum(result);
+
+	}
+
+	private static boolean matchesRegex(List<BsonValue> values, String regex, String options){
+
+		int flags = 0;
+		if (options.contains("i")){
+			flags |= Pattern.CASE_INSENSITIVE;
+		}
+		if (options.contains("m")){
+			flags |= Pattern.MULTILINE;
+		}
+		if (options.contains("s")){
+			flags |= Pattern.DOTALL;
+		}
+		if (options.contains("x")){
+			flags |= Pattern.COMMENTS;
+		}
+
+		Pattern pattern = Pattern.compile(regex, flags);
+
+		for (BsonValue value : values){
+			if (value.isString() && pattern.matcher(value.asString().getValue()).find()){
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	private static boolean truthy(BsonValue value){
+		if (value.isBoolean()){
+			return value.asBoolean().getValue();
+		}
+		return !value.isNumber() || value.asNumber().doubleValue() != 0;
+	}
+
+	/**
+	 * Whether a condition is a document of operators, such as {$gt: 1}.
+	 */
+	private static boolean isOperators(BsonValue condition){
+		return condition.isDocument() && !condition.asDocument().isEmpty() && condition.asDocument().keySet().iterator().next().startsWith("$");
+	}
+
+	/**
+	 * Rejects the filters which use operators the matcher does not support.
+	 */
+	private static void check(BsonDocument filter){
+
+		for (Map.Entry<String, BsonValue> entry : filter.entrySet()){
+
+			String key = entry.getKey();
+
+			if (key.equals("$and") || key.equals("$or") || key.equals("$nor")){
+				for (BsonValue clause : entry.getValue().asArray()){
+					check(clause.asDocument());
+				}
+			} else if (key.startsWith("$")){
+				throw new IllegalArgumentException("Unsupported operator " + key + " in the filter of a tail");
+			} else {
+				checkCondition(entry.getValue());
+			}
+
+		}
+
+	}
+
+	private static void checkCondition(BsonValue condition){
+
+		if (!isOperators(condition)){
+			return;
+		}
+
+		for (Map.Entry<String, BsonValue> entry : condition.asDocument().entrySet()){
+			switch (entry.getKey()){
+			case "$eq": case "$ne": case "$gt": case "$gte": case "$lt": case "$lte":
+			case "$in": case "$nin": case "$exists": case "$regex": case "$options":
+				break;
+			case "$not":
+				checkCondition(entry.getValue());
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported operator " + entry.getKey() + " in the filter of a tail");
+			}
+		}
+
+	}
+
+}
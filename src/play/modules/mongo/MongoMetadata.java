@@ -0,0 +1,456 @@
+package play.modules.mongodb;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.types.ObjectId;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import play.exceptions.UnexpectedException;
+
+/**
+ * Describes how the fields of a class map to the fields of a BSON document.
+ * The metadata is built once per class and is used by the MongoEntityCodec
+ * to read and write models without going through an intermediate Map.
+ */
+public class MongoMetadata {
+
+	private static final Map<Class<?>, MongoMetadata> cache = new ConcurrentHashMap<Class<?>, MongoMetadata>();
+
+	public final Class<?> clazz;
+	public final Field idField;
+	public final List<Property> properties;
+	public final List<Property> references;
+
+	private final Constructor<?> constructor;
+	private final Map<String, Property> propertiesByName;
+
+	private volatile String collectionName;
+
+	/**
+	 * Returns the metadata of a class, building it on first use.
+	 *
+	 * @param clazz - the mapped class
+	 * @return - the metadata of the class
+	 */
+	public static MongoMetadata of(Class<?> clazz){
+
+		MongoMetadata metadata = cache.get(clazz);
+
+		if (metadata == null){
+			metadata = new MongoMetadata(clazz);
+			cache.put(clazz, metadata);
+		}
+
+		return metadata;
+
+	}
+
+	/**
+	 * Forgets all of the metadata built so far. Called when the
+	 * application classes are reloaded.
+	 */
+	public static void clear(){
+		cache.clear();
+	}
+
+	private MongoMetadata(Class<?> clazz){
+
+		this.clazz = clazz;
+		this.constructor = defaultConstructor(clazz);
+
+		Field id = null;
+		Map<String, Property> byName = new LinkedHashMap<String, Property>();
+
+		List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+		for (Class<?> c = clazz; c != null && c != Object.class && c != MongoModel.class; c = c.getSuperclass()){
+			hierarchy.add(0, c);
+		}
+
+		for (Class<?> c : hierarchy){
+			for (Field field : c.getDeclaredFields()){
+
+				if (field.getName().equals("_id") && field.getType() == ObjectId.class){
+					field.setAccessible(true);
+					id = field;
+					continue;
+				}
+
+				if (!isMapped(field)){
+					continue;
+				}
+
+				field.setAccessible(true);
+				Property property = new Property(propertyName(field), field);
+				byName.put(property.name, property);
+
+			}
+		}
+
+		this.idField = id;
+		this.propertiesByName = byName;
+		this.properties = Collections.unmodifiableList(new ArrayList<Property>(byName.values()));
+		
+		List<Property> references = new ArrayList<Property>();
+		for (Property property : properties){
+			if (property.reference){
+				references.add(property);
+			}
+		}
+		this.references = Collections.unmodifiableList(references);
+
+	}
+
+	/**
+	 * Returns the collection of a MongoEntity, as given by its
+	 * getCollectionName() method.
+	 *
+	 * @return - the collection name
+	 */
+	public String collectionName(){
+		if (collectionName == null){
+			try {
+				collectionName = (String) clazz.getMethod("getCollectionName").invoke(null);
+			} catch (Exception e) {
+				throw new UnexpectedException(e);
+			}
+		}
+		return collectionName;
+	}
+
+	/**
+	 * Whether the codec can map the class directly. Classes without
+	 * a no-argument constructor are left to the Jackson mapper.
+	 *
+	 * @return - true if the codec can instantiate the class
+	 */
+	public boolean isMappable(){
+		return constructor != null;
+	}
+
+	/**
+	 * Creates an empty instance of the class.
+	 *
+	 * @return - the new instance
+	 */
+	public Object newInstance(){
+		try {
+			return constructor.newInstance();
+		} catch (Exception e) {
+			throw new IllegalStateException("Unable to instantiate " + clazz.getName(), e);
+		}
+	}
+
+	/**
+	 * Returns the property stored under the given document field name.
+	 *
+	 * @param name - the document field name
+	 * @return - the property, or null if the field is not mapped
+	 */
+	public Property property(String name){
+		return propertiesByName.get(name);
+	}
+
+	/**
+	 * Returns whether a dotted path, such as "driver.name", leads to a
+	 * mapped field, through the embedded values and their collections.
+	 *
+	 * @param path - the document field path
+	 * @return - true if every field of the path is mapped
+	 */
+	public boolean isMapped(String path){
+
+		int dot = path.indexOf('.');
+		Property property = property(dot < 0 ? path : path.substring(0, dot));
+
+		if (property == null){
+			return false;
+		}
+
+		if (dot < 0){
+			return true;
+		}
+
+		ValueType type = property.type;
+		if (type.kind == Kind.COLLECTION || type.kind == Kind.ARRAY){
+			type = type.element;
+		}
+
+		return type.kind == Kind.EMBEDDED && type.metadata().isMapped(path.substring(dot + 1));
+
+	}
+
+	public ObjectId getId(Object instance){
+		if (idField == null){
+			return null;
+		}
+		try {
+			return (ObjectId) idField.get(instance);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void setId(Object instance, ObjectId id){
+		if (idField == null){
+			return;
+		}
+		try {
+			idField.set(instance, id);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Fields are mapped the same way the Jackson mapper maps them: public
+	 * fields, and non-public fields exposed through a getter and a setter.
+	 * Static, transient and @JsonIgnore fields are skipped.
+	 */
+	private static boolean isMapped(Field field){
+
+		int modifiers = field.getModifiers();
+
+		if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()){
+			return false;
+		}
+
+		if (field.isAnnotationPresent(JsonIgnore.class)){
+			return false;
+		}
+
+		if (Modifier.isPublic(modifiers)){
+			return true;
+		}
+
+		String suffix = Character.toUpperCase(field.getName().charAt(0)) + field.getName().substring(1);
+		return hasPublicMethod(field.getDeclaringClass(), "get" + suffix)
+				&& hasPublicMethod(field.getDeclaringClass(), "set" + suffix, field.getType());
+
+	}
+
+	private static String propertyName(Field field){
+		JsonProperty annotation = field.getAnnotation(JsonProperty.class);
+		if (annotation != null && annotation.value().length() > 0){
+			return annotation.value();
+		}
+		return field.getName();
+	}
+
+	private static boolean hasPublicMethod(Class<?> clazz, String name, Class<?>... parameterTypes){
+		try {
+			Method method = clazz.getMethod(name, parameterTypes);
+			return !Modifier.isStatic(method.getModifiers());
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private static Constructor<?> defaultConstructor(Class<?> clazz){
+
+		if (clazz.isInterface() || clazz.isEnum() || clazz.isArray() || Modifier.isAbstract(clazz.getModifiers())){
+			return null;
+		}
+
+		try {
+			Constructor<?> constructor = clazz.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return constructor;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+
+	}
+
+	/**
+	 * A mapped field of a class.
+	 */
+	public static class Property {
+
+		public final String name;
+		public final Field field;
+		public final ValueType type;
+		public final boolean reference;
+
+		Property(String name, Field field){
+			this.name = name;
+			this.field = field;
+			this.reference = field.isAnnotationPresent(MongoReference.class);
+			this.type = reference ? ValueType.of(field.getGenericType()).reference(field) : ValueType.of(field.getGenericType());
+		}
+
+		public Object get(Object instance){
+			try {
+				return field.get(instance);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void set(Object instance, Object value){
+
+			if (value == null && field.getType().isPrimitive()){
+				return;
+			}
+
+			try {
+				field.set(instance, value);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+
+		}
+
+	}
+
+	/**
+	 * The kinds of values the codec reads and writes itself. Anything
+	 * else is a CODEC value, encoded with the codec registry or, failing
+	 * that, converted by the Jackson mapper.
+	 */
+	public enum Kind {
+		NUMBER, BOOLEAN, STRING, DATE, OBJECT_ID, ENUM, EMBEDDED, COLLECTION, ARRAY, REFERENCE, CODEC
+	}
+
+	/**
+	 * The declared type of a mapped value.
+	 */
+	public static class ValueType {
+
+		public final Kind kind;
+		public final Class<?> raw;
+		public final Type generic;
+		public final ValueType element;
+
+		private ValueType(Kind kind, Class<?> raw, Type generic, ValueType element){
+			this.kind = kind;
+			this.raw = raw;
+			this.generic = generic;
+			this.element = element;
+		}
+
+		/**
+		 * Returns the type of a @MongoReference field: a MongoModel, stored
+		 * as its _id, or a collection or array of them.
+		 */
+		ValueType reference(Field field){
+
+			if (MongoModel.class.isAssignableFrom(raw) && raw != MongoModel.class){
+				return new ValueType(Kind.REFERENCE, raw, generic, null);
+			}
+
+			if ((kind == Kind.COLLECTION || kind == Kind.ARRAY) && MongoModel.class.isAssignableFrom(element.raw) && element.raw != MongoModel.class){
+				return new ValueType(kind, raw, generic, new ValueType(Kind.REFERENCE, element.raw, element.generic, null));
+			}
+
+			throw new IllegalStateException("@MongoReference field " + field.getDeclaringClass().getName() + "." + field.getName() + " must be a MongoModel or a collection of MongoModels");
+
+		}
+
+		/**
+		 * Returns the metadata of an EMBEDDED or REFERENCE value.
+		 */
+		public MongoMetadata metadata(){
+			return MongoMetadata.of(raw);
+		}
+
+		public static ValueType of(Type type){
+
+			Class<?> raw = rawClass(type);
+
+			if (raw.isPrimitive()){
+				return new ValueType(raw == boolean.class ? Kind.BOOLEAN : raw == char.class ? Kind.CODEC : Kind.NUMBER, raw, type, null);
+			}
+
+			if (raw == Integer.class || raw == Long.class || raw == Double.class || raw == Float.class
+					|| raw == Short.class || raw == Byte.class){
+				return new ValueType(Kind.NUMBER, raw, type, null);
+			}
+
+			if (raw == Boolean.class){
+				return new ValueType(Kind.BOOLEAN, raw, type, null);
+			}
+
+			if (raw == String.class){
+				return new ValueType(Kind.STRING, raw, type, null);
+			}
+
+			if (raw == Date.class){
+				return new ValueType(Kind.DATE, raw, type, null);
+			}
+
+			if (raw == ObjectId.class){
+				return new ValueType(Kind.OBJECT_ID, raw, type, null);
+			}
+
+			if (raw.isEnum()){
+				return new ValueType(Kind.ENUM, raw, type, null);
+			}
+
+			if (raw.isArray() && raw != byte[].class){
+				Type component = type instanceof GenericArrayType ? ((GenericArrayType) type).getGenericComponentType() : raw.getComponentType();
+				return new ValueType(Kind.ARRAY, raw, type, of(component));
+			}
+
+			if (Collection.class.isAssignableFrom(raw)){
+				Type component = Object.class;
+				if (type instanceof ParameterizedType){
+					component = ((ParameterizedType) type).getActualTypeArguments()[0];
+				}
+				return new ValueType(Kind.COLLECTION, raw, type, of(component));
+			}
+
+			if (isEmbeddable(raw)){
+				return new ValueType(Kind.EMBEDDED, raw, type, null);
+			}
+
+			return new ValueType(Kind.CODEC, raw, type, null);
+
+		}
+
+		private static boolean isEmbeddable(Class<?> raw){
+
+			if (Map.class.isAssignableFrom(raw) || raw.getName().startsWith("java.") || raw.getName().startsWith("org.bson.")){
+				return false;
+			}
+
+			return defaultConstructor(raw) != null;
+
+		}
+
+		private static Class<?> rawClass(Type type){
+
+			if (type instanceof Class){
+				return (Class<?>) type;
+			}
+
+			if (type instanceof ParameterizedType){
+				return rawClass(((ParameterizedType) type).getRawType());
+			}
+
+			if (type instanceof GenericArrayType){
+				return java.lang.reflect.Array.newInstance(rawClass(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+			}
+
+			// type variables and wildcards
+			return Object.class;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,335 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+import play.Logger;
+import play.exceptions.ConfigurationException;
+
+import com.mongodb.async.SingleResultCallback;
+
+/**
+ * Latency, document and error counts of the operations run by the module,
+ * per collection and operation (find, insert, update, delete, aggregate,
+ * count). Operations slower than mongo.slowQueryThreshold milliseconds are
+ * logged with the shape of their filter, whose values are replaced by "?".
+ *
+ * The figures are shown by "play status", see MongoPlugin.
+ */
+public class MongoMetrics {
+
+	/**
+	 * The upper bounds of the latency histogram buckets, in milliseconds.
+	 * A last bucket counts the slower operations.
+	 */
+	public static final long[] BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+	private static final BsonString REDACTED = new BsonString("?");
+
+	private static final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+	private static volatile long slowQueryThreshold = 500;
+
+	/**
+	 * The figures of one operation on one collection.
+	 */
+	public static class Stats {
+
+		public final String collectionName;
+		public final String operation;
+
+		private long count;
+		private long errors;
+		private long documents;
+		private long totalNanos;
+		private long maxNanos;
+		private final long[] histogram = new long[BUCKETS.length + 1];
+
+		Stats(String collectionName, String operation){
+			this.collectionName = collectionName;
+			this.operation = operation;
+		}
+
+		synchronized void record(long nanos, long documents, boolean failed){
+
+			count++;
+			if (failed){
+				errors++;
+			}
+			this.documents += documents;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+
+			long millis = nanos / 1000000;
+			int bucket = 0;
+			while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]){
+				bucket++;
+			}
+			histogram[bucket]++;
+
+		}
+
+		public synchronized long getCount(){
+			return count;
+		}
+
+		public synchronized long getErrors(){
+			return errors;
+		}
+
+		public synchronized long getDocuments(){
+			return documents;
+		}
+
+		public synchronized double getTotalMillis(){
+			return totalNanos / 1000000d;
+		}
+
+		public synchronized double getMeanMillis(){
+			return count == 0 ? 0 : totalNanos / 1000000d / count;
+		}
+
+		public synchronized double getMaxMillis(){
+			return maxNanos / 1000000d;
+		}
+
+		/**
+		 * The number of operations in each bucket of BUCKETS, then the
+		 * number of slower ones.
+		 *
+		 * @return - the histogram
+		 */
+		public synchronized long[] getHistogram(){
+			return histogram.clone();
+		}
+
+		/**
+		 * Estimates a percentile of the latency from the histogram.
+		 *
+		 * @param percentile - the percentile, e.g. 95
+		 * @return - the upper bound of the bucket holding the percentile, in
+		 *           milliseconds, or the maximum latency for the last bucket
+		 */
+		public synchronized double getPercentile(double percentile){
+
+			long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+
+			for (int i = 0; i < BUCKETS.length; i++){
+				seen += histogram[i];
+				if (seen >= rank){
+					return Math.min(BUCKETS[i], getMaxMillis());
+				}
+			}
+
+			return getMaxMillis();
+
+		}
+
+		@Override
+		public synchronized String toString(){
+			return String.format("%s.%s: %d operations, %d errors, %d documents, mean %.1f ms, p95 %.1f ms, max %.1f ms", collectionName, operation, count, errors, documents, getMeanMillis(), getPercentile(95), getMaxMillis());
+		}
+
+	}
+
+	/**
+	 * Reads the slow query threshold from the configuration.
+	 *
+	 * @param configuration - the application configuration
+	 * @param prefix - the prefix of the module's keys, e.g. "mongo."
+	 */
+	public static void configure(Properties configuration, String prefix){
+
+		String threshold = configuration.getProperty(prefix + "slowQueryThreshold", "500");
+
+		try {
+			slowQueryThreshold = Long.parseLong(threshold.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException(prefix + "slowQueryThreshold must be a number of milliseconds, not " + threshold);
+		}
+
+	}
+
+	/**
+	 * Runs an operation and records its latency.
+	 *
+	 * @param <T> - the type of the result
+	 * @param collectionName - the collection
+	 * @param operation - find, insert, update, delete, aggregate or count
+	 * @param filter - the filter of the operation, for the slow query log, or null
+	 * @param command - the operation
+	 * @param documents - gives the number of documents read or written from the result
+	 * @return - the result of the operation
+	 */
+	static <T> T time(String collectionName, String operation, Bson filter, Supplier<T> command, ToLongFunction<? super T> documents){
+
+		long start = System.nanoTime();
+		T result;
+
+		try {
+			result = command.get();
+		} catch (RuntimeException e) {
+			record(collectionName, operation, filter, start, 0, true);
+			throw e;
+		}
+
+		record(collectionName, operation, filter, start, documents.applyAsLong(result), false);
+
+		return result;
+
+	}
+
+	/**
+	 * Wraps the callback of an asynchronous operation, to record its latency
+	 * when it completes.
+	 *
+	 * @param <T> - the type of the result
+	 * @param collectionName - the collection
+	 * @param operation - find, insert, update, delete, aggregate or count
+	 * @param filter - the filter of the operation, for the slow query log, or null
+	 * @param documents - gives the number of documents read or written from the result
+	 * @param callback - the callback
+	 * @return - a callback that records the operation and calls the given one
+	 */
+	static <T> SingleResultCallback<T> callback(final String collectionName, final String operation, final Bson filter, final ToLongFunction<? super T> documents, final SingleResultCallback<T> callback){
+
+		final long start = System.nanoTime();
+
+		return new SingleResultCallback<T>() {
+			@Override
+			public void onResult(T result, Throwable t) {
+				record(collectionName, operation, filter, start, t == null && result != null ? documents.applyAsLong(result) : 0, t != null);
+				callback.onResult(result, t);
+			}
+		};
+
+	}
+
+	/**
+	 * Records an operation.
+	 *
+	 * @param collectionName - the collection
+	 * @param operation - find, insert, update, delete, aggregate or count
+	 * @param filter - the filter of the operation, for the slow query log, or null
+	 * @param start - the System.nanoTime() at which the operation started
+	 * @param documents - the number of documents read or written
+	 * @param failed - whether the operation failed
+	 */
+	static void record(String collectionName, String operation, Bson filter, long start, long documents, boolean failed){
+
+		long nanos = System.nanoTime() - start;
+		String key = collectionName + "." + operation;
+
+		Stats operationStats = stats.get(key);
+		if (operationStats == null){
+			operationStats = new Stats(collectionName, operation);
+			Stats existing = stats.putIfAbsent(key, operationStats);
+			if (existing != null){
+				operationStats = existing;
+			}
+		}
+
+		operationStats.record(nanos, documents, failed);
+
+		long threshold = slowQueryThreshold;
+		if (threshold >= 0 && nanos >= threshold * 1000000){
+			Logger.warn("Slow mongo %s on %s: %d ms, %d documents, filter %s", operation, collectionName, nanos / 1000000, documents, filter == null ? "{}" : shape(filter));
+		}
+
+	}
+
+	/**
+	 * Returns the figures recorded so far.
+	 *
+	 * @return - the figures of each collection and operation
+	 */
+	public static Collection<Stats> stats(){
+
+		List<Stats> list = new ArrayList<Stats>(stats.values());
+		list.sort((a, b) -> a.collectionName.equals(b.collectionName) ? a.operation.compareTo(b.operation) : a.collectionName.compareTo(b.collectionName));
+
+		return list;
+
+	}
+
+	/**
+	 * Returns the figures of one operation on one collection.
+	 *
+	 * @param collectionName - the collection
+	 * @param operation - the operation
+	 * @return - the figures, or null if the operation was not run
+	 */
+	public static Stats get(String collectionName, String operation){
+		return stats.get(collectionName + "." + operation);
+	}
+
+	/**
+	 * Forgets the figures recorded so far.
+	 */
+	public static void reset(){
+		stats.clear();
+	}
+
+	/**
+	 * Returns the shape of a filter: the filter as JSON, with every value
+	 * replaced by "?", so that it can be logged without exposing data.
+	 *
+	 * @param filter - the filter
+	 * @return - the shape
+	 */
+	public static String shape(Bson filter){
+		return redact(filter.toBsonDocument(BsonDocument.class, MongoDB.db().getCodecRegistry())).toJson();
+	}
+
+	/**
+	 * Replaces every value of a document by "?".
+	 *
+	 * @param document - the document
+	 * @return - a redacted copy
+	 */
+	static BsonDocument redact(BsonDocument document){
+		return redact((BsonValue) document).asDocument();
+	}
+
+	private static BsonValue redact(BsonValue value){
+
+		if (value.isDocument()){
+			BsonDocument redacted = new BsonDocument();
+			for (Map.Entry<String, BsonValue> entry : value.asDocument().entrySet()){
+				redacted.put(entry.getKey(), redact(entry.getValue()));
+			}
+			return redacted;
+		}
+
+		if (value.isArray()){
+			// the clauses of $and and $or are kept, lists of values are not
+			BsonArray redacted = new BsonArray();
+			for (BsonValue element : value.asArray()){
+				if (element.isDocument()){
+					redacted.add(redact(element));
+				}
+			}
+			if (redacted.isEmpty()){
+				redacted.add(REDACTED);
+			}
+			return redacted;
+		}
+
+		return REDACTED;
+
+	}
+
+}
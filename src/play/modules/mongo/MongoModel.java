@@ -1,11 +1,19 @@
 package play.modules.mongodb;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
+import play.libs.F;
+
 import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
 
 /**
  * This class provides the abstract declarations for all MongoModels.
@@ -15,6 +23,16 @@ import com.mongodb.client.model.CountOptions;
  */
 public class MongoModel {
 	
+	/**
+	 * The document the model was read from, see MongoSnapshot.
+	 */
+	transient RawBsonDocument _snapshot;
+	
+	/**
+	 * The projection the model was read with, if it was only partly read.
+	 */
+	transient BsonDocument _projection;
+	
     public ObjectId get_id() {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
@@ -43,6 +61,10 @@ public class MongoModel {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
     
+    public static long estimatedCount() {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
     public static FindCursor find(String query, Object... params) {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
@@ -55,6 +77,10 @@ public class MongoModel {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
     
+    public static <T extends MongoModel> T findById(Object id) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
     public static AggregateCursor aggregate(List<? extends Bson> pipeline) {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
@@ -63,6 +89,62 @@ public class MongoModel {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
     
+    public static List<MongoBatchResult> saveAll(Collection<? extends MongoModel> models) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static List<MongoBatchResult> saveAll(Collection<? extends MongoModel> models, int batchSize, boolean ordered) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static <T extends MongoModel> MongoTail<T> tail(Consumer<? super T> consumer) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static <T extends MongoModel> MongoTail<T> tail(Bson filter, Consumer<? super T> consumer) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static <T extends MongoModel> MongoParallelScan<T> parallelScan(int partitions, Consumer<? super T> consumer) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static <T extends MongoModel> MongoParallelScan<T> parallelScan(Bson filter, int partitions, Consumer<? super T> consumer) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static long update(String query, String update, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static long update(Bson filter, Bson update) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static long updateMany(String query, String update, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static long updateMany(Bson filter, Bson update) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static ObjectId upsert(String query, String update, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static ObjectId upsert(Bson filter, Bson update) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static <T extends MongoModel> T findAndModify(String query, String update, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static <T extends MongoModel> T findAndModify(Bson filter, Bson update, FindOneAndUpdateOptions options) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
     public void delete() {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
@@ -75,6 +157,54 @@ public class MongoModel {
     	throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
     
+    public <T extends MongoModel> CompletableFuture<T> saveQueued() {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public <T extends MongoModel> CompletableFuture<T> deleteQueued() {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static F.Promise<Long> countAsync() {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static F.Promise<Long> countAsync(String query, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static F.Promise<Long> countAsync(Bson filter) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static AsyncFindCursor findAsync(String query, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static AsyncFindCursor findAsync() {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static AsyncFindCursor findAsync(Bson filter, Bson sort) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static AsyncCursor aggregateAsync(List<? extends Bson> pipeline) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public <T extends MongoModel> F.Promise<T> saveAsync() {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public F.Promise<Long> deleteAsync() {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    public static F.Promise<Long> deleteAsync(String query, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
     public static void index(String indexString) {
     	throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
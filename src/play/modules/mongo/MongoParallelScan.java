@@ -0,0 +1,314 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+/**
+ * Reads a whole collection on several threads, for jobs such as backfills
+ * and exports. The collection is split into ranges of _id, which are read
+ * and decoded concurrently by a ForkJoinPool; each model is passed to the
+ * consumer on the thread of its range, so the consumer must be thread safe.
+ *
+ * The ranges are cut between the smallest and the largest _id by creation
+ * time, so they hold about as many models as the collection was written
+ * evenly. Ask for more partitions than threads to even out the work: idle
+ * threads take the remaining ranges. The @MongoReference fields are loaded
+ * for each batch of a range. The scan can be followed through
+ * getScanned() and getProgress(), and stopped with cancel().
+ */
+public class MongoParallelScan<T extends MongoModel> {
+
+	/**
+	 * The number of models fetched per batch by each range.
+	 */
+	private static final int BATCH_SIZE = 1000;
+
+	public final String collectionName;
+
+	private final Bson filter;
+	private final Class<T> clazz;
+	private final Consumer<? super T> consumer;
+	private final int parallelism;
+
+	private final AtomicLong scanned = new AtomicLong();
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+	private final CompletableFuture<Long> done = new CompletableFuture<Long>();
+
+	private volatile int partitions;
+	private volatile boolean cancelled;
+
+	/**
+	 * A range of _id, the lower bound included and the upper one excluded.
+	 * A null bound is open.
+	 */
+	private static class Range {
+
+		final ObjectId from;
+		final ObjectId to;
+
+		Range(ObjectId from, ObjectId to){
+			this.from = from;
+			this.to = to;
+		}
+
+	}
+
+	/**
+	 * Scans the ranges, splitting them in halves until each task has one.
+	 */
+	private class ScanTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Range> ranges;
+
+		ScanTask(List<Range> ranges){
+			this.ranges = ranges;
+		}
+
+		@Override
+		protected void compute(){
+
+			if (ranges.size() > 1){
+				int middle = ranges.size() / 2;
+				invokeAll(new ScanTask(ranges.subList(0, middle)), new ScanTask(ranges.subList(middle, ranges.size())));
+				return;
+			}
+
+			if (cancelled){
+				return;
+			}
+
+			try {
+				scan(ranges.get(0));
+				completed.incrementAndGet();
+			} catch (RuntimeException e) {
+				// the first error stops the other ranges
+				if (error.compareAndSet(null, e)){
+					cancelled = true;
+				}
+			}
+
+		}
+
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param collectionName - the collection
+	 * @param filter - the filter of the models to read, or null for all
+	 * @param clazz - the type of MongoModel
+	 * @param consumer - called with each model, from several threads
+	 * @param parallelism - the number of threads
+	 */
+	MongoParallelScan(String collectionName, Bson filter, Class<T> clazz, Consumer<? super T> consumer, int parallelism){
+		this.collectionName = collectionName;
+		this.filter = filter == null ? new BsonDocument() : filter;
+		this.clazz = clazz;
+		this.consumer = consumer;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Splits the collection and starts reading the ranges.
+	 *
+	 * @param partitions - the number of ranges wanted
+	 * @return - the scan
+	 */
+	MongoParallelScan<T> start(int partitions){
+
+		if (partitions < 1){
+			throw new IllegalArgumentException("partitions must be positive");
+		}
+
+		List<Range> ranges = split(partitions);
+		this.partitions = ranges.size();
+
+		if (ranges.isEmpty()){
+			done.complete(0L);
+			return this;
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(parallelism, ranges.size())));
+
+		CompletableFuture.runAsync(() -> new ScanTask(ranges).invoke(), pool).whenComplete((ignored, e) -> {
+			pool.shutdown();
+			RuntimeException failure = error.get();
+			if (failure != null){
+				done.completeExceptionally(failure);
+			} else if (e != null){
+				done.completeExceptionally(e);
+			} else if (cancelled){
+				done.completeExceptionally(new CancellationException("The scan of " + collectionName + " was cancelled"));
+			} else {
+				done.complete(scanned.get());
+			}
+		});
+
+		return this;
+
+	}
+
+	/**
+	 * Cuts the range between the smallest and the largest _id in equal
+	 * spans of creation time. The first and last ranges are left open.
+	 */
+	private List<Range> split(int partitions){
+
+		ObjectId min = bound(1);
+		ObjectId max = bound(-1);
+
+		List<Range> ranges = new ArrayList<Range>();
+
+		if (min == null){
+			return ranges;
+		}
+
+		long first = min.getTimestamp() & 0xFFFFFFFFL;
+		long span = (max.getTimestamp() & 0xFFFFFFFFL) - first + 1;
+
+		ObjectId from = null;
+
+		for (int i = 1; i < partitions; i++){
+			long timestamp = first + span * i / partitions;
+			ObjectId to = new ObjectId((int) timestamp, 0, (short) 0, 0);
+			if (from == null ? to.compareTo(min) > 0 : to.compareTo(from) > 0){
+				ranges.add(new Range(from, to));
+				from = to;
+			}
+		}
+
+		ranges.add(new Range(from, null));
+
+		return ranges;
+
+	}
+
+	/**
+	 * The smallest (1) or largest (-1) _id of the collection, or null if it is empty.
+	 */
+	private ObjectId bound(int direction){
+
+		Document document = MongoDB.collection(collectionName).find()
+				.sort(new Document("_id", direction))
+				.projection(new Document("_id", 1))
+				.first();
+
+		return document == null ? null : document.getObjectId("_id");
+
+	}
+
+	private void scan(Range range){
+
+		Document bounds = new Document();
+		if (range.from != null){
+			bounds.append("$gte", range.from);
+		}
+		if (range.to != null){
+			bounds.append("$lt", range.to);
+		}
+
+		Bson query = bounds.isEmpty() ? filter : new Document("$and", Arrays.asList(filter, new Document("_id", bounds)));
+
+		// only the query and its first batch are timed, not the consumer
+		MongoIterator<T> models = MongoMetrics.time(collectionName, "find", query, () -> new MongoIterator<T>(MongoDB.collection(collectionName, clazz).find(query).batchSize(BATCH_SIZE).iterator(), null, clazz, BATCH_SIZE), iterator -> 0);
+
+		try {
+			while (!cancelled && models.hasNext()){
+				consumer.accept(models.next());
+				scanned.incrementAndGet();
+			}
+		} finally {
+			models.close();
+		}
+
+	}
+
+	/**
+	 * Stops the scan. The ranges being read stop after their current model.
+	 */
+	public void cancel(){
+		cancelled = true;
+	}
+
+	public boolean isCancelled(){
+		return cancelled;
+	}
+
+	public boolean isDone(){
+		return done.isDone();
+	}
+
+	/**
+	 * The number of models passed to the consumer so far.
+	 *
+	 * @return - the number of models
+	 */
+	public long getScanned(){
+		return scanned.get();
+	}
+
+	/**
+	 * The number of ranges the collection was split into.
+	 *
+	 * @return - the number of ranges
+	 */
+	public int getPartitions(){
+		return partitions;
+	}
+
+	/**
+	 * The share of the ranges read so far.
+	 *
+	 * @return - from 0 to 1
+	 */
+	public double getProgress(){
+		int total = partitions;
+		return total == 0 ? 1 : (double) completed.get() / total;
+	}
+
+	/**
+	 * Waits for the end of the scan.
+	 *
+	 * @return - the number of models passed to the consumer
+	 * @throws CancellationException - if the scan was cancelled
+	 */
+	public long await(){
+		try {
+			return done.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a future completed at the end of the scan, e.g. to chain a
+	 * report after a backfill.
+	 *
+	 * @return - completes with the number of models passed to the consumer
+	 */
+	public CompletableFuture<Long> toFuture(){
+		return done;
+	}
+
+}
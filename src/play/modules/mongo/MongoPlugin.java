@@ -1,8 +1,21 @@
 package play.modules.mongodb;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import play.Logger;
+import play.Play;
 import play.PlayPlugin;
 import play.classloading.ApplicationClasses.ApplicationClass;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.mongodb.MongoException;
+
 /**
  * The plugin for the Mongo module.
  * 
@@ -16,4 +29,220 @@ public class MongoPlugin extends PlayPlugin {
 	public void enhance(ApplicationClass applicationClass) throws Exception {
 		enhancer.enhanceThisClass(applicationClass);
 	}
+	
+	@Override
+	public void onApplicationStart() {
+		// the application classes may have been reloaded
+		MongoMetadata.clear();
+		MongoQuery.clear();
+		MongoCache.reset();
+		MongoQueryCache.reset();
+		MongoCountCache.reset();
+		
+		// create the query caches up front, so that count() is cached before the first find()
+		for (Class clazz : Play.classloader.getAnnotatedClasses(MongoQueryCached.class)){
+			MongoQueryCache.of(MongoMetadata.of(clazz).collectionName(), clazz);
+		}
+		for (Class clazz : Play.classloader.getAnnotatedClasses(MongoCountCached.class)){
+			MongoCountCache.of(MongoMetadata.of(clazz).collectionName(), clazz);
+		}
+		
+		MongoDB.init();
+		
+		// open the connections named on the entities
+		MongoDB.route(Play.classloader.getAnnotatedClasses(MongoEntity.class));
+		
+		for (MongoConnection connection : MongoDB.connections().values()){
+			try {
+				connection.warmUp();
+			} catch (MongoException e) {
+				Logger.error(e, "Unable to reach the database %s, the connection will be retried on first use", connection.host);
+			}
+		}
+		
+		try {
+			MongoDB.createCappedCollections(Play.classloader.getAnnotatedClasses(MongoEntity.class));
+		} catch (MongoException e) {
+			Logger.error(e, "Unable to create the capped collections");
+		}
+		
+		// build the missing indexes in the background, or before serving requests if mongo.indexes=wait
+		String indexes = Play.configuration.getProperty("mongo.indexes", "background");
+		if (!indexes.equals("off")){
+			MongoIndexes.ensure(Play.classloader.getAnnotatedClasses(MongoEntity.class));
+			if (indexes.equals("wait")){
+				MongoIndexes.await();
+			}
+		}
+	}
+	
+	@Override
+	public void onApplicationStop() {
+		// nothing queued is lost
+		MongoWriteBatch.closeAll();
+		MongoTail.closeAll();
+		MongoDB.close();
+	}
+	
+	@Override
+	public String getStatus() {
+		
+		StringWriter sw = new StringWriter();
+		PrintWriter out = new PrintWriter(sw);
+		
+		out.println("Mongo:");
+		out.println("~~~~~~");
+		for (Map.Entry<String, MongoConnection> entry : MongoDB.connections().entrySet()){
+			String name = entry.getKey().equals("default") ? "" : " (" + entry.getKey() + ")";
+			out.println("Host" + name + ": " + entry.getValue().host);
+			out.println("Database" + name + ": " + entry.getValue().database);
+		}
+		
+		out.println();
+		out.println("Mongo operations:");
+		out.println("~~~~~~~~~~~~~~~~~");
+		out.println(String.format("%-30s %10s %8s %10s %10s %10s %10s", "Collection.operation", "Count", "Errors", "Documents", "Mean (ms)", "p95 (ms)", "Max (ms)"));
+		for (MongoMetrics.Stats stats : MongoMetrics.stats()){
+			out.println(String.format("%-30s %10d %8d %10d %10.1f %10.1f %10.1f", stats.collectionName + "." + stats.operation, stats.getCount(), stats.getErrors(), stats.getDocuments(), stats.getMeanMillis(), stats.getPercentile(95), stats.getMaxMillis()));
+		}
+		
+		Map<String, List<String>> suggestions = MongoQueryAdvisor.suggestions();
+		if (!suggestions.isEmpty()){
+			out.println();
+			out.println("Mongo suggested indexes:");
+			out.println("~~~~~~~~~~~~~~~~~~~~~~~~");
+			for (Map.Entry<String, List<String>> entry : suggestions.entrySet()){
+				out.println(entry.getKey() + ": " + String.join(", ", entry.getValue()));
+			}
+		}
+		
+		Collection<MongoCache> caches = MongoCache.caches();
+		Collection<MongoQueryCache> queryCaches = MongoQueryCache.caches();
+		Collection<MongoCountCache> countCaches = MongoCountCache.caches();
+		if (!caches.isEmpty() || !queryCaches.isEmpty() || !countCaches.isEmpty()){
+			out.println();
+			out.println("Mongo caches:");
+			out.println("~~~~~~~~~~~~~");
+			for (MongoCache cache : caches){
+				out.println(cache);
+			}
+			for (MongoQueryCache cache : queryCaches){
+				out.println("query " + cache);
+			}
+			for (MongoCountCache cache : countCaches){
+				out.println("count " + cache);
+			}
+		}
+		
+		Collection<MongoWriteBatch> batches = MongoWriteBatch.batches();
+		if (!batches.isEmpty()){
+			out.println();
+			out.println("Mongo write batches:");
+			out.println("~~~~~~~~~~~~~~~~~~~~");
+			for (MongoWriteBatch batch : batches){
+				out.println(batch);
+			}
+		}
+		
+		return sw.toString();
+		
+	}
+	
+	@Override
+	public JsonObject getJsonStatus() {
+		
+		JsonObject status = new JsonObject();
+		MongoConnection connection = MongoDB.connection();
+		status.addProperty("host", connection.host);
+		status.addProperty("database", connection.database);
+		
+		JsonObject connections = new JsonObject();
+		for (Map.Entry<String, MongoConnection> entry : MongoDB.connections().entrySet()){
+			JsonObject named = new JsonObject();
+			named.addProperty("host", entry.getValue().host);
+			named.addProperty("database", entry.getValue().database);
+			connections.add(entry.getKey(), named);
+		}
+		status.add("connections", connections);
+		
+		JsonArray operations = new JsonArray();
+		for (MongoMetrics.Stats stats : MongoMetrics.stats()){
+			
+			JsonObject operation = new JsonObject();
+			operation.addProperty("collection", stats.collectionName);
+			operation.addProperty("operation", stats.operation);
+			operation.addProperty("count", stats.getCount());
+			operation.addProperty("errors", stats.getErrors());
+			operation.addProperty("documents", stats.getDocuments());
+			operation.addProperty("totalMillis", stats.getTotalMillis());
+			operation.addProperty("meanMillis", stats.getMeanMillis());
+			operation.addProperty("p50Millis", stats.getPercentile(50));
+			operation.addProperty("p95Millis", stats.getPercentile(95));
+			operation.addProperty("p99Millis", stats.getPercentile(99));
+			operation.addProperty("maxMillis", stats.getMaxMillis());
+			
+			// the number of operations that took less than each bound
+			JsonObject histogram = new JsonObject();
+			long[] counts = stats.getHistogram();
+			for (int i = 0; i < MongoMetrics.BUCKETS.length; i++){
+				histogram.addProperty(String.valueOf(MongoMetrics.BUCKETS[i]), counts[i]);
+			}
+			histogram.addProperty("+Inf", counts[MongoMetrics.BUCKETS.length]);
+			operation.add("histogram", histogram);
+			
+			operations.add(operation);
+			
+		}
+		status.add("operations", operations);
+		
+		JsonObject suggestedIndexes = new JsonObject();
+		for (Map.Entry<String, List<String>> entry : MongoQueryAdvisor.suggestions().entrySet()){
+			JsonArray indexes = new JsonArray();
+			for (String index : entry.getValue()){
+				indexes.add(new JsonPrimitive(index));
+			}
+			suggestedIndexes.add(entry.getKey(), indexes);
+		}
+		status.add("suggestedIndexes", suggestedIndexes);
+		
+		JsonArray caches = new JsonArray();
+		for (MongoCache cache : MongoCache.caches()){
+			caches.add(cacheStatus("entity", cache.collectionName, cache.size(), cache.getHits(), cache.getMisses(), cache.getEvictions()));
+		}
+		for (MongoQueryCache cache : MongoQueryCache.caches()){
+			JsonObject cacheStatus = cacheStatus("query", cache.collectionName, cache.size(), cache.getHits(), cache.getMisses(), cache.getEvictions());
+			cacheStatus.addProperty("bytes", cache.getBytes());
+			caches.add(cacheStatus);
+		}
+		for (MongoCountCache cache : MongoCountCache.caches()){
+			caches.add(cacheStatus("count", cache.collectionName, cache.size(), cache.getHits(), cache.getMisses(), 0));
+		}
+		status.add("caches", caches);
+		
+		JsonArray batches = new JsonArray();
+		for (MongoWriteBatch batch : MongoWriteBatch.batches()){
+			JsonObject batchStatus = new JsonObject();
+			batchStatus.addProperty("collection", batch.collectionName);
+			batchStatus.addProperty("queued", batch.getQueued());
+			batchStatus.addProperty("batches", batch.getBatches());
+			batchStatus.addProperty("writes", batch.getWrites());
+			batchStatus.addProperty("errors", batch.getErrors());
+			batches.add(batchStatus);
+		}
+		status.add("writeBatches", batches);
+		
+		return status;
+		
+	}
+	
+	private JsonObject cacheStatus(String type, String collectionName, int size, long hits, long misses, long evictions) {
+		JsonObject status = new JsonObject();
+		status.addProperty("type", type);
+		status.addProperty("collection", collectionName);
+		status.addProperty("size", size);
+		status.addProperty("hits", hits);
+		status.addProperty("misses", misses);
+		status.addProperty("evictions", evictions);
+		return status;
+	}
 }
@@ -0,0 +1,389 @@
+package play.modules.mongodb;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * A compiled query string, such as "byNameAndColour" or
+ * "byTopSpeedGreaterThanOrColourIn". Query strings are parsed once
+ * and cached; each call only binds the parameters.
+ *
+ * The grammar is "by" followed by field names joined with "And" and "Or"
+ * ("And" binds tighter). Each field name may end with an operator:
+ * GreaterThan, GreaterThanEquals, LessThan, LessThanEquals, NotEqual,
+ * In, NotIn, Between (two parameters), IsNull and IsNotNull (no parameter).
+ * A field name without operator is an equality.
+ *
+ * Operators need the model class the query is compiled for: a name which
+ * is a mapped field, such as "loggedIn" or "isNull", is an equality, and a
+ * suffix is only taken for an operator if the name before it is a mapped
+ * field, e.g. "byLoggedInIn" is "loggedIn" $in. The names which are not
+ * mapped, such as the fields of a Map, fall back to the longest matching
+ * suffix. Without a model class, the query string is read as field names
+ * joined with "And", each an equality, so that "byLoggedIn" stays
+ * {loggedIn: value}.
+ */
+public class MongoQuery {
+
+	private static final int CACHE_SIZE = 1024;
+
+	private static final Map<String, MongoQuery> queries = new ConcurrentHashMap<String, MongoQuery>();
+	private static final Map<String, Order> orders = new ConcurrentHashMap<String, Order>();
+
+	/**
+	 * The operators, longest names first so that suffixes are matched greedily.
+	 */
+	enum Operator {
+
+		GREATER_THAN_EQUALS("GreaterThanEquals", "$gte", 1),
+		GREATER_THAN("GreaterThan", "$gt", 1),
+		LESS_THAN_EQUALS("LessThanEquals", "$lte", 1),
+		LESS_THAN("LessThan", "$lt", 1),
+		NOT_EQUAL("NotEqual", "$ne", 1),
+		IS_NOT_NULL("IsNotNull", "$ne", 0),
+		IS_NULL("IsNull", null, 0),
+		BETWEEN("Between", null, 2),
+		NOT_IN("NotIn", "$nin", 1),
+		IN("In", "$in", 1),
+		EQUALS("", null, 1);
+
+		final String suffix;
+		final String mongoOperator;
+		final int arity;
+
+		Operator(String suffix, String mongoOperator, int arity){
+			this.suffix = suffix;
+			this.mongoOperator = mongoOperator;
+			this.arity = arity;
+		}
+
+	}
+
+	private static class Clause {
+
+		final String key;
+		final Operator operator;
+
+		Clause(String key, Operator operator){
+			this.key = key;
+			this.operator = operator;
+		}
+
+	}
+
+	private static class Order {
+
+		final String[] keys;
+		final int[] directions;
+
+		Order(String[] keys, int[] directions){
+			this.keys = keys;
+			this.directions = directions;
+		}
+
+	}
+
+	/**
+	 * The clauses of each "Or" alternative.
+	 */
+	private final Clause[][] alternatives;
+	private final int parameterCount;
+
+	private MongoQuery(Clause[][] alternatives){
+
+		this.alternatives = alternatives;
+
+		int count = 0;
+		for (Clause[] clauses : alternatives){
+			for (Clause clause : clauses){
+				count += clause.operator.arity;
+			}
+		}
+		this.parameterCount = count;
+
+	}
+
+	/**
+	 * Returns the compiled form of a query string.
+	 *
+	 * @param query - the query string
+	 * @return - the compiled query
+	 */
+	public static MongoQuery compile(String query){
+		return compile(query, null);
+	}
+
+	/**
+	 * Returns the compiled form of a query string, whose field names are
+	 * checked against the mapped fields of a model class.
+	 *
+	 * @param query - the query string
+	 * @param clazz - the type of MongoModel, or null
+	 * @return - the compiled query
+	 */
+	public static MongoQuery compile(String query, Class<?> clazz){
+
+		String key = clazz == null ? query : clazz.getName() + ":" + query;
+		MongoQuery compiled = queries.get(key);
+
+		if (compiled == null){
+			compiled = parse(query, clazz == null ? null : MongoMetadata.of(clazz));
+			if (queries.size() < CACHE_SIZE){
+				queries.put(key, compiled);
+			}
+		}
+
+		return compiled;
+
+	}
+
+	/**
+	 * Forgets the compiled queries. Called when the application classes
+	 * are reloaded, as their fields may have changed.
+	 */
+	public static void clear(){
+		queries.clear();
+	}
+
+	/**
+	 * Creates a query object from the compiled query and parameter values.
+	 *
+	 * @param values - values for the query
+	 * @return - a BasicDBObject representing the query
+	 */
+	public BasicDBObject bind(Object[] values){
+
+		if (parameterCount > values.length){
+			throw new IllegalArgumentException("Not enough values for the keys provided");
+		}
+
+		int index = 0;
+		List<BasicDBObject> objects = new ArrayList<BasicDBObject>(alternatives.length);
+
+		for (Clause[] clauses : alternatives){
+
+			BasicDBObject object = new BasicDBObject();
+
+			for (Clause clause : clauses){
+				put(object, clause.key, condition(clause.operator, values, index));
+				index += clause.operator.arity;
+			}
+
+			objects.add(object);
+
+		}
+
+		if (objects.size() == 1){
+			return objects.get(0);
+		}
+
+		return new BasicDBObject("$or", objects);
+
+	}
+
+	/**
+	 * The number of parameters the query expects.
+	 *
+	 * @return - the number of parameters
+	 */
+	public int getParameterCount(){
+		return parameterCount;
+	}
+
+	/**
+	 * Creates an ordering object from an order string such as "byNameAnd-TopSpeed".
+	 * The order string is parsed once and cached.
+	 *
+	 * @param orderBy - the order string
+	 * @return - a BasicDBObject representing the ordering
+	 */
+	public static BasicDBObject order(String orderBy){
+
+		Order order = orders.get(orderBy);
+
+		if (order == null){
+
+			List<String> parts = split(orderBy.substring(2), "And");
+			String[] keys = new String[parts.size()];
+			int[] directions = new int[parts.size()];
+
+			for (int i = 0; i < keys.length; i++){
+				String part = parts.get(i);
+				directions[i] = 1;
+				if (part.charAt(0) == '-'){
+					directions[i] = -1;
+					part = part.substring(1);
+				}
+				keys[i] = fieldName(part);
+			}
+
+			order = new Order(keys, directions);
+			if (orders.size() < CACHE_SIZE){
+				orders.put(orderBy, order);
+			}
+
+		}
+
+		BasicDBObject object = new BasicDBObject();
+		for (int i = 0; i < order.keys.length; i++){
+			object.put(order.keys[i], order.directions[i]);
+		}
+
+		return object;
+
+	}
+
+	private static MongoQuery parse(String query, MongoMetadata metadata){
+
+		// without the mapped fields, names are not split on operators or Or
+		List<String> alternatives = metadata == null ? Arrays.asList(query.substring(2)) : split(query.substring(2), "Or");
+		Clause[][] compiled = new Clause[alternatives.size()][];
+
+		for (int i = 0; i < compiled.length; i++){
+
+			List<String> parts = split(alternatives.get(i), "And");
+			compiled[i] = new Clause[parts.size()];
+
+			for (int j = 0; j < parts.size(); j++){
+				compiled[i][j] = clause(parts.get(j), metadata);
+			}
+
+		}
+
+		return new MongoQuery(compiled);
+
+	}
+
+	private static Clause clause(String part, MongoMetadata metadata){
+
+		if (metadata == null || metadata.isMapped(fieldName(part))){
+			return new Clause(fieldName(part), Operator.EQUALS);
+		}
+
+		Clause fallback = null;
+
+		for (Operator operator : Operator.values()){
+
+			String suffix = operator.suffix;
+
+			if (suffix.length() > 0 && part.length() > suffix.length() && part.endsWith(suffix)){
+
+				Clause clause = new Clause(fieldName(part.substring(0, part.length() - suffix.length())), operator);
+
+				if (metadata.isMapped(clause.key)){
+					return clause;
+				}
+
+				if (fallback == null){
+					fallback = clause;
+				}
+
+			}
+
+		}
+
+		return fallback != null ? fallback : new Clause(fieldName(part), Operator.EQUALS);
+
+	}
+
+	private static Object condition(Operator operator, Object[] values, int index){
+
+		switch (operator){
+		case EQUALS:
+			return values[index];
+		case IS_NULL:
+			return null;
+		case IS_NOT_NULL:
+			return new BasicDBObject(operator.mongoOperator, null);
+		case BETWEEN:
+			return new BasicDBObject("$gte", values[index]).append("$lte", values[index + 1]);
+		case IN:
+		case NOT_IN:
+			return new BasicDBObject(operator.mongoOperator, list(values[index]));
+		default:
+			return new BasicDBObject(operator.mongoOperator, values[index]);
+		}
+
+	}
+
+	/**
+	 * Several conditions on the same key, such as a GreaterThan and a LessThan, are merged.
+	 */
+	private static void put(BasicDBObject object, String key, Object condition){
+
+		Object existing = object.get(key);
+
+		if (existing instanceof BasicDBObject && condition instanceof BasicDBObject){
+			((BasicDBObject) existing).putAll((Map) condition);
+		} else {
+			object.put(key, condition);
+		}
+
+	}
+
+	private static List<Object> list(Object value){
+
+		if (value instanceof Collection){
+			return new ArrayList<Object>((Collection<?>) value);
+		}
+
+		if (value instanceof Object[]){
+			return Arrays.asList((Object[]) value);
+		}
+
+		List<Object> list = new ArrayList<Object>();
+
+		if (value != null && value.getClass().isArray()){
+			for (int i = 0, length = Array.getLength(value); i < length; i++){
+				list.add(Array.get(value, i));
+			}
+		} else {
+			list.add(value);
+		}
+
+		return list;
+
+	}
+
+	/**
+	 * Splits a query string on a separator word. The separator must be
+	 * followed by an upper case letter (or '-'), so that field names 
+	 * such as "orderDate" are left alone.
+	 */
+	static List<String> split(String query, String separator){
+
+		List<String> parts = new ArrayList<String>();
+		int start = 0;
+		int index = query.indexOf(separator, 1);
+
+		while (index > 0){
+
+			int next = index + separator.length();
+
+			if (next < query.length() && (Character.isUpperCase(query.charAt(next)) || query.charAt(next) == '-')){
+				parts.add(query.substring(start, index));
+				start = next;
+			}
+
+			index = query.indexOf(separator, next);
+
+		}
+
+		parts.add(query.substring(start));
+
+		return parts;
+
+	}
+
+	static String fieldName(String part){
+		return (Character.toLowerCase(part.charAt(0)) + part.substring(1)).trim();
+	}
+
+}
@@ -0,0 +1,476 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.ConfigurationException;
+import play.exceptions.UnexpectedException;
+
+/**
+ * Finds the queries that have no index. Every distinct query shape (the
+ * filter keys and operators, and the sort keys) is explained once in the
+ * background. Shapes that scan the whole collection, or examine many more
+ * documents than they return, are logged with the index that would serve
+ * them, in the format of MongoDB.index().
+ *
+ * The advisor is meant for development and staging: it is enabled by
+ * default in dev mode only, and can be set with mongo.queryAdvisor=true|false.
+ */
+public class MongoQueryAdvisor {
+
+	/**
+	 * The maximum number of shapes kept, to bound memory if queries are
+	 * built from user input.
+	 */
+	private static final int MAX_SHAPES = 1000;
+
+	private static final ConcurrentHashMap<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+
+	private static volatile boolean enabled;
+	private static volatile double maxRatio = 10;
+
+	private static ExecutorService executor;
+
+	/**
+	 * A distinct query shape of a collection.
+	 */
+	public static class Shape {
+
+		public final String collectionName;
+		public final String operation;
+
+		/**
+		 * The filter, with every value replaced by "?".
+		 */
+		public final String filter;
+		public final String sort;
+
+		/**
+		 * The fields compared for equality, the sort fields and the fields
+		 * compared by range, which make up the suggested index in that order.
+		 */
+		public final List<String> equalities = new ArrayList<String>();
+		public final Map<String, Integer> sortKeys = new LinkedHashMap<String, Integer>();
+		public final List<String> ranges = new ArrayList<String>();
+
+		/**
+		 * Whether the query reads the whole collection in any order, which
+		 * no index can help.
+		 */
+		private boolean unfiltered;
+
+		private long count;
+		private boolean explained;
+		private boolean collectionScan;
+		private long docsExamined;
+		private long returned;
+
+		Shape(String collectionName, String operation, String filter, String sort){
+			this.collectionName = collectionName;
+			this.operation = operation;
+			this.filter = filter;
+			this.sort = sort;
+		}
+
+		public synchronized long getCount(){
+			return count;
+		}
+
+		public synchronized boolean isExplained(){
+			return explained;
+		}
+
+		public synchronized boolean isCollectionScan(){
+			return collectionScan;
+		}
+
+		public synchronized long getDocsExamined(){
+			return docsExamined;
+		}
+
+		public synchronized long getReturned(){
+			return returned;
+		}
+
+		/**
+		 * Whether the query scans the collection, or examines more than
+		 * mongo.queryAdvisor.ratio documents per document returned.
+		 *
+		 * @return - true if the query needs an index
+		 */
+		public synchronized boolean isFlagged(){
+			return explained && !unfiltered && (collectionScan || docsExamined > maxRatio * Math.max(returned, 1));
+		}
+
+		/**
+		 * The index that would serve the query: the equality fields, then the
+		 * sort fields, then the range fields.
+		 *
+		 * @return - an index string such as "onColourAndName", or null if the
+		 *           query has no field to index, e.g. an $or of different fields
+		 */
+		public String getSuggestedIndex(){
+			List<String> keys = indexKeys();
+			return keys.isEmpty() ? null : indexString(keys);
+		}
+
+		/**
+		 * The keys of the suggested index, descending ones starting with '-'.
+		 */
+		List<String> indexKeys(){
+
+			List<String> keys = new ArrayList<String>();
+
+			for (String field : equalities){
+				if (!keys.contains(field)){
+					keys.add(field);
+				}
+			}
+			for (Map.Entry<String, Integer> entry : sortKeys.entrySet()){
+				if (!keys.contains(entry.getKey())){
+					keys.add(entry.getValue() < 0 ? "-" + entry.getKey() : entry.getKey());
+				}
+			}
+			for (String field : ranges){
+				if (!keys.contains(field) && !sortKeys.containsKey(field)){
+					keys.add(field);
+				}
+			}
+
+			return keys;
+
+		}
+
+		synchronized void explained(boolean collectionScan, long docsExamined, long returned){
+			this.explained = true;
+			this.collectionScan = collectionScan;
+			this.docsExamined = docsExamined;
+			this.returned = returned;
+		}
+
+		@Override
+		public synchronized String toString(){
+			return String.format("%s %s %s%s: %d queries, %s", collectionName, operation, filter, sort == null ? "" : " sort " + sort, count,
+					!explained ? "not explained" : (collectionScan ? "collection scan, " : "") + docsExamined + " documents examined for " + returned + " returned");
+		}
+
+	}
+
+	/**
+	 * Reads the settings of the advisor from the configuration.
+	 *
+	 * @param configuration - the application configuration
+	 * @param prefix - the prefix of the module's keys, e.g. "mongo."
+	 */
+	public static void configure(Properties configuration, String prefix){
+
+		enabled = Boolean.parseBoolean(configuration.getProperty(prefix + "queryAdvisor", String.valueOf(Play.mode == null || Play.mode.isDev())));
+
+		String ratio = configuration.getProperty(prefix + "queryAdvisor.ratio", "10");
+		try {
+			maxRatio = Double.parseDouble(ratio.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException(prefix + "queryAdvisor.ratio must be a number, not " + ratio);
+		}
+
+	}
+
+	public static boolean isEnabled(){
+		return enabled;
+	}
+
+	/**
+	 * Records a query. A new shape is explained in the background, with the
+	 * values of this query.
+	 *
+	 * @param collectionName - the queried collection
+	 * @param operation - find or count
+	 * @param filter - the filter, or null
+	 * @param sort - the sort, or null
+	 */
+	static void record(String collectionName, String operation, Bson filter, Bson sort){
+
+		if (!enabled){
+			return;
+		}
+
+		BsonDocument filterDocument = filter == null ? new BsonDocument() : filter.toBsonDocument(BsonDocument.class, MongoDB.db().getCodecRegistry());
+		BsonDocument sortDocument = sort == null ? null : sort.toBsonDocument(BsonDocument.class, MongoDB.db().getCodecRegistry());
+
+		String filterShape = MongoMetrics.redact(filterDocument).toJson();
+		String sortShape = sortDocument == null || sortDocument.isEmpty() ? null : sortDocument.toJson();
+		String key = collectionName + " " + operation + " " + filterShape + " " + sortShape;
+
+		Shape shape = shapes.get(key);
+
+		if (shape == null){
+
+			if (shapes.size() >= MAX_SHAPES){
+				return;
+			}
+
+			shape = new Shape(collectionName, operation, filterShape, sortShape);
+			analyse(filterDocument, shape);
+			if (sortDocument != null){
+				for (Map.Entry<String, BsonValue> entry : sortDocument.entrySet()){
+					shape.sortKeys.put(entry.getKey(), entry.getValue().isNumber() ? entry.getValue().asNumber().intValue() : 1);
+				}
+			}
+
+			shape.unfiltered = filterDocument.isEmpty() && shape.sortKeys.isEmpty();
+
+			Shape existing = shapes.putIfAbsent(key, shape);
+			if (existing == null){
+				explainLater(shape, filterDocument, sortDocument);
+			} else {
+				shape = existing;
+			}
+
+		}
+
+		synchronized (shape) {
+			shape.count++;
+		}
+
+	}
+
+	/**
+	 * Sorts the fields of a filter into equalities and ranges. The fields
+	 * of $or and $nor clauses are left out, as one index cannot serve them.
+	 */
+	private static void analyse(BsonDocument filter, Shape shape){
+
+		for (Map.Entry<String, BsonValue> entry : filter.entrySet()){
+
+			String key = entry.getKey();
+			BsonValue value = entry.getValue();
+
+			if (key.equals("$and")){
+				for (BsonValue clause : value.asArray()){
+					if (clause.isDocument()){
+						analyse(clause.asDocument(), shape);
+					}
+				}
+			} else if (key.startsWith("$")){
+				continue;
+			} else if (value.isDocument() && !value.asDocument().isEmpty() && value.asDocument().keySet().iterator().next().startsWith("$")){
+				if (value.asDocument().size() == 1 && value.asDocument().containsKey("$eq")){
+					shape.equalities.add(key);
+				} else {
+					shape.ranges.add(key);
+				}
+			} else {
+				shape.equalities.add(key);
+			}
+
+		}
+
+	}
+
+	private static synchronized void explainLater(final Shape shape, final BsonDocument filter, final BsonDocument sort){
+
+		if (executor == null){
+			executor = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "mongo-query-advisor");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		executor.execute(() -> {
+			try {
+				explain(shape, filter, sort);
+			} catch (Exception e) {
+				Logger.warn(e, "Unable to explain %s", shape);
+			}
+		});
+
+	}
+
+	private static void explain(Shape shape, BsonDocument filter, BsonDocument sort){
+
+		Document command;
+
+		if (shape.operation.equals("count")){
+			command = new Document("count", shape.collectionName).append("query", filter);
+		} else {
+			command = new Document("find", shape.collectionName).append("filter", filter);
+			if (sort != null){
+				command.append("sort", sort);
+			}
+		}
+
+		Document explain = MongoDB.db(shape.collectionName).runCommand(new Document("explain", command).append("verbosity", "executionStats"));
+
+		Document queryPlanner = (Document) explain.get("queryPlanner");
+		Document executionStats = (Document) explain.get("executionStats");
+
+		boolean collectionScan = queryPlanner != null && hasStage(queryPlanner.get("winningPlan"), "COLLSCAN");
+		long docsExamined = executionStats == null ? 0 : ((Number) executionStats.get("totalDocsExamined")).longValue();
+		long returned = executionStats == null ? 0 : ((Number) executionStats.get("nReturned")).longValue();
+
+		shape.explained(collectionScan, docsExamined, returned);
+
+		if (shape.isFlagged()){
+			String index = shape.getSuggestedIndex();
+			Logger.warn("Mongo query without a suitable index: %s. %s", shape, index == null ? "No single index can serve it" : "Suggested index: " + index);
+		}
+
+	}
+
+	private static boolean hasStage(Object plan, String stage){
+
+		if (plan instanceof Document){
+			Document document = (Document) plan;
+			if (stage.equals(document.get("stage"))){
+				return true;
+			}
+			for (Object value : document.values()){
+				if (hasStage(value, stage)){
+					return true;
+				}
+			}
+		} else if (plan instanceof List){
+			for (Object value : (List<?>) plan){
+				if (hasStage(value, stage)){
+					return true;
+				}
+			}
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Waits until the shapes recorded so far are explained.
+	 */
+	public static void await(){
+
+		ExecutorService current;
+		synchronized (MongoQueryAdvisor.class) {
+			current = executor;
+		}
+
+		if (current != null){
+			try {
+				current.submit(() -> {}).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				throw new UnexpectedException(e);
+			}
+		}
+
+	}
+
+	/**
+	 * Returns the shapes recorded so far.
+	 *
+	 * @return - the shapes
+	 */
+	public static Collection<Shape> shapes(){
+		return new ArrayList<Shape>(shapes.values());
+	}
+
+	/**
+	 * Returns the indexes suggested for the flagged shapes, per collection.
+	 * An index whose keys start another suggested index is left out, as
+	 * the longer index serves both.
+	 *
+	 * @return - index strings, in the format of MongoDB.index()
+	 */
+	public static Map<String, List<String>> suggestions(){
+
+		Map<String, List<List<String>>> keysByCollection = new LinkedHashMap<String, List<List<String>>>();
+
+		for (Shape shape : shapes.values()){
+			List<String> keys = shape.indexKeys();
+			if (shape.isFlagged() && !keys.isEmpty()){
+				List<List<String>> collectionKeys = keysByCollection.get(shape.collectionName);
+				if (collectionKeys == null){
+					collectionKeys = new ArrayList<List<String>>();
+					keysByCollection.put(shape.collectionName, collectionKeys);
+				}
+				if (!collectionKeys.contains(keys)){
+					collectionKeys.add(keys);
+				}
+			}
+		}
+
+		Map<String, List<String>> suggestions = new LinkedHashMap<String, List<String>>();
+
+		for (Map.Entry<String, List<List<String>>> entry : keysByCollection.entrySet()){
+
+			List<String> indexes = new ArrayList<String>();
+
+			for (List<String> keys : entry.getValue()){
+
+				boolean covered = false;
+				for (List<String> other : entry.getValue()){
+					if (other != keys && other.size() > keys.size() && other.subList(0, keys.size()).equals(keys)){
+						covered = true;
+						break;
+					}
+				}
+
+				if (!covered){
+					indexes.add(indexString(keys));
+				}
+
+			}
+
+			suggestions.put(entry.getKey(), indexes);
+
+		}
+
+		return suggestions;
+
+	}
+
+	/**
+	 * Turns index keys into an index string such as "onColourAnd-TopSpeed".
+	 */
+	private static String indexString(List<String> keys){
+
+		StringBuilder index = new StringBuilder("on");
+
+		for (int i = 0; i < keys.size(); i++){
+			String key = keys.get(i);
+			if (i > 0){
+				index.append("And");
+			}
+			if (key.startsWith("-")){
+				index.append('-');
+				key = key.substring(1);
+			}
+			index.append(Character.toUpperCase(key.charAt(0))).append(key.substring(1));
+		}
+
+		return index.toString();
+
+	}
+
+	/**
+	 * Forgets the shapes recorded so far.
+	 */
+	public static void reset(){
+		shapes.clear();
+	}
+
+}
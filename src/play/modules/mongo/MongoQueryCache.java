@@ -0,0 +1,377 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import play.libs.Time;
+
+/**
+ * A cache of the results of the find() and count() queries on one
+ * collection. It is enabled by annotating a MongoEntity with @MongoQueryCached.
+ *
+ * Results are keyed by the query (filter, sort, skip, limit) and kept as
+ * raw documents, so each hit decodes new instances. Every write to the
+ * collection through the module empties the cache; the least recently
+ * used results are evicted once the cache holds more than maxSize bytes.
+ */
+public class MongoQueryCache {
+
+	/**
+	 * Approximate memory used by an entry besides its documents.
+	 */
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private static final MongoQueryCache DISABLED = new MongoQueryCache(null, 0, 0);
+
+	private static final Map<Class<?>, MongoQueryCache> byClass = new ConcurrentHashMap<Class<?>, MongoQueryCache>();
+	private static final Map<String, MongoQueryCache> byCollection = new ConcurrentHashMap<String, MongoQueryCache>();
+
+	public final String collectionName;
+	public final long maxSize;
+	public final long ttl;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private long size;
+	private long version;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private static class Entry {
+
+		final Object value;
+		final long size;
+		final long expires;
+
+		Entry(Object value, long size, long expires){
+			this.value = value;
+			this.size = size;
+			this.expires = expires;
+		}
+
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param collectionName - the cached collection
+	 * @param maxSize - the memory the results may use, in bytes
+	 * @param ttl - how long a result is kept, in milliseconds
+	 */
+	public MongoQueryCache(String collectionName, long maxSize, long ttl){
+		this.collectionName = collectionName;
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Returns the query cache of a collection if the model class is annotated
+	 * with @MongoQueryCached, creating it on first use.
+	 *
+	 * @param collectionName - the collection
+	 * @param clazz - the type of MongoModel
+	 * @return - the cache, or null if the class is not cached
+	 */
+	public static MongoQueryCache of(String collectionName, Class<?> clazz){
+
+		MongoQueryCache cache = byClass.get(clazz);
+
+		if (cache == null){
+
+			MongoQueryCached annotation = clazz.getAnnotation(MongoQueryCached.class);
+
+			if (annotation == null){
+				cache = DISABLED;
+			} else {
+				synchronized (byCollection) {
+					cache = byCollection.get(collectionName);
+					if (cache == null){
+						cache = new MongoQueryCache(collectionName, parseSize(annotation.maxSize()), Time.parseDuration(annotation.ttl()) * 1000L);
+						byCollection.put(collectionName, cache);
+					}
+				}
+			}
+
+			byClass.put(clazz, cache);
+
+		}
+
+		return cache == DISABLED ? null : cache;
+
+	}
+
+	/**
+	 * Returns the query cache of a collection, if one has been created.
+	 *
+	 * @param collectionName - the collection
+	 * @return - the cache, or null
+	 */
+	public static MongoQueryCache get(String collectionName){
+		return byCollection.get(collectionName);
+	}
+
+	/**
+	 * Returns all of the query caches created so far.
+	 *
+	 * @return - the caches
+	 */
+	public static Collection<MongoQueryCache> caches(){
+		return new ArrayList<MongoQueryCache>(byCollection.values());
+	}
+
+	/**
+	 * Empties the query cache of a collection, if there is one.
+	 *
+	 * @param collectionName - the collection
+	 */
+	public static void invalidate(String collectionName){
+		MongoQueryCache cache = byCollection.get(collectionName);
+		if (cache != null){
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Forgets all of the caches. Called when the application classes are reloaded.
+	 */
+	public static void reset(){
+		synchronized (byCollection) {
+			byClass.clear();
+			byCollection.clear();
+		}
+	}
+
+	/**
+	 * Parses a size such as "512KB", "10MB" or "1GB" into bytes.
+	 *
+	 * @param size - the size
+	 * @return - the number of bytes
+	 */
+	public static long parseSize(String size){
+
+		String value = size.trim().toUpperCase();
+		long unit = 1;
+
+		if (value.endsWith("KB")){
+			unit = 1024L;
+		} else if (value.endsWith("MB")){
+			unit = 1024L * 1024;
+		} else if (value.endsWith("GB")){
+			unit = 1024L * 1024 * 1024;
+		}
+
+		if (unit > 1){
+			value = value.substring(0, value.length() - 2).trim();
+		} else if (value.endsWith("B")){
+			value = value.substring(0, value.length() - 1).trim();
+		}
+
+		try {
+			return Long.parseLong(value) * unit;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid size pattern : " + size);
+		}
+
+	}
+
+	/**
+	 * Returns new instances of the models of a cached find() result.
+	 *
+	 * @param <T> - the type of MongoModel
+	 * @param key - the query key
+	 * @param clazz - the type of MongoModel
+	 * @return - the models, or null if the result is not cached
+	 */
+	public <T> List<T> getModels(String key, Class<T> clazz){
+
+		List<RawBsonDocument> documents = (List<RawBsonDocument>) lookup(key);
+
+		if (documents == null){
+			return null;
+		}
+
+		Codec<T> codec = MongoDB.db().getCodecRegistry().get(clazz);
+		List<T> models = new ArrayList<T>(documents.size());
+
+		for (RawBsonDocument document : documents){
+			models.add(document.decode(codec));
+		}
+
+		return models;
+
+	}
+
+	/**
+	 * Caches the models of a find() result, unless the collection was
+	 * written since the given version was read. Results larger than a
+	 * quarter of the cache are not kept.
+	 *
+	 * @param key - the query key
+	 * @param models - the models read from the database
+	 * @param version - the version read before the query
+	 */
+	public void putModels(String key, List<? extends MongoModel> models, long version){
+
+		CodecRegistry registry = MongoDB.db().getCodecRegistry();
+		List<RawBsonDocument> documents = new ArrayList<RawBsonDocument>(models.size());
+		long size = ENTRY_OVERHEAD + 2L * key.length();
+
+		for (MongoModel model : models){
+			RawBsonDocument document = new RawBsonDocument(model, (Codec) registry.get(model.getClass()));
+			size += ENTRY_OVERHEAD + document.getByteBuffer().remaining();
+			if (size > maxSize / 4){
+				return;
+			}
+			documents.add(document);
+		}
+
+		store(key, documents, size, version);
+
+	}
+
+	/**
+	 * Returns a cached count() result.
+	 *
+	 * @param key - the query key
+	 * @return - the count, or null if the result is not cached
+	 */
+	public Long getCount(String key){
+		return (Long) lookup(key);
+	}
+
+	/**
+	 * Caches a count() result, unless the collection was written since
+	 * the given version was read.
+	 *
+	 * @param key - the query key
+	 * @param count - the count read from the database
+	 * @param version - the version read before the query
+	 */
+	public void putCount(String key, long count, long version){
+		store(key, count, ENTRY_OVERHEAD + 2L * key.length(), version);
+	}
+
+	/**
+	 * The version of the cache, which changes every time it is emptied.
+	 *
+	 * @return - the version
+	 */
+	public synchronized long version(){
+		return version;
+	}
+
+	/**
+	 * Removes every result from the cache.
+	 */
+	public synchronized void clear(){
+		version++;
+		entries.clear();
+		size = 0;
+	}
+
+	private synchronized Object lookup(String key){
+
+		Entry entry = entries.get(key);
+
+		if (entry != null && entry.expires < System.currentTimeMillis()){
+			remove(key);
+			entry = null;
+		}
+
+		if (entry == null){
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return entry.value;
+
+	}
+
+	private synchronized void store(String key, Object value, long entrySize, long version){
+
+		if (version != this.version || entrySize > maxSize){
+			return;
+		}
+
+		remove(key);
+
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (size + entrySize > maxSize && eldest.hasNext()){
+			size -= eldest.next().getValue().size;
+			eldest.remove();
+			evictions++;
+		}
+
+		entries.put(key, new Entry(value, entrySize, System.currentTimeMillis() + ttl));
+		size += entrySize;
+
+	}
+
+	private void remove(String key){
+		Entry entry = entries.remove(key);
+		if (entry != null){
+			size -= entry.size;
+		}
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * The approximate memory used by the cached results.
+	 *
+	 * @return - the number of bytes
+	 */
+	public synchronized long getBytes(){
+		return size;
+	}
+
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+
+	/**
+	 * The share of lookups served from the cache.
+	 *
+	 * @return - a ratio between 0 and 1
+	 */
+	public synchronized double getHitRatio(){
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * Resets the hit, miss and eviction counters.
+	 */
+	public synchronized void resetStatistics(){
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return String.format("%s: %d results, %d/%d bytes, %d hits, %d misses, %d evictions", collectionName, entries.size(), size, maxSize, hits, misses, evictions);
+	}
+
+}
@@ -0,0 +1,29 @@
+package play.modules.mongodb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Keeps the results of the find() and count() queries of a MongoEntity
+ * in a MongoQueryCache. The results are dropped whenever the collection
+ * is written through the module.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface MongoQueryCached {
+
+	/**
+	 * How long a result stays in the cache, e.g. "30s", "10min" or "1h".
+	 * @return
+	 */
+	String ttl() default "1min";
+	
+	/**
+	 * The memory the cached results may use, e.g. "512KB", "10MB" or "1GB".
+	 * @return
+	 */
+	String maxSize() default "10MB";
+
+}
@@ -0,0 +1,18 @@
+package play.modules.mongodb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Stores a MongoModel field, or a collection of MongoModels, as the _id
+ * of the referenced models instead of embedding them. The references of
+ * the models returned by fetch() and first() are loaded by MongoReferences,
+ * with one query per referenced collection.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface MongoReference {
+
+}
@@ -0,0 +1,191 @@
+package play.modules.mongodb;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+
+import play.modules.mongodb.MongoMetadata.Property;
+import play.modules.mongodb.MongoMetadata.ValueType;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Loads the @MongoReference fields of models. When models are read, their
+ * references only hold the _id of the referenced models. resolve() collects
+ * the ids of a whole list of models and loads them with one $in query per
+ * referenced collection, so that a page of 100 cars and their drivers takes
+ * 2 queries rather than 101. Models found in a MongoCache are not queried.
+ *
+ * Only one level is loaded: the references of the referenced models keep
+ * only their _id until they are resolved themselves.
+ */
+public class MongoReferences {
+
+	/**
+	 * The maximum number of ids sent in one $in query.
+	 */
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * Loads the references of the given models.
+	 *
+	 * @param models - the models, which may be of different classes
+	 */
+	public static void resolve(Collection<? extends MongoModel> models){
+
+		Map<Class<?>, Set<ObjectId>> ids = new LinkedHashMap<Class<?>, Set<ObjectId>>();
+
+		for (MongoModel model : models){
+			if (model != null){
+				for (Property property : MongoMetadata.of(model.getClass()).references){
+					collect(property.type, property.get(model), ids);
+				}
+			}
+		}
+
+		if (ids.isEmpty()){
+			return;
+		}
+
+		Map<Class<?>, Map<ObjectId, Object>> loaded = new HashMap<Class<?>, Map<ObjectId, Object>>();
+
+		for (Map.Entry<Class<?>, Set<ObjectId>> entry : ids.entrySet()){
+			loaded.put(entry.getKey(), load(entry.getKey(), entry.getValue()));
+		}
+
+		for (MongoModel model : models){
+			if (model != null){
+				for (Property property : MongoMetadata.of(model.getClass()).references){
+					Object value = property.get(model);
+					Object replaced = replace(property.type, value, loaded);
+					if (replaced != value){
+						property.set(model, replaced);
+					}
+				}
+			}
+		}
+
+	}
+
+	private static void collect(ValueType type, Object value, Map<Class<?>, Set<ObjectId>> ids){
+
+		if (value == null){
+			return;
+		}
+
+		switch (type.kind){
+		case REFERENCE:
+			ObjectId id = MongoMetadata.of(value.getClass()).getId(value);
+			if (id != null){
+				Set<ObjectId> classIds = ids.get(value.getClass());
+				if (classIds == null){
+					classIds = new LinkedHashSet<ObjectId>();
+					ids.put(value.getClass(), classIds);
+				}
+				classIds.add(id);
+			}
+			break;
+		case COLLECTION:
+			for (Object element : (Collection<?>) value){
+				collect(type.element, element, ids);
+			}
+			break;
+		case ARRAY:
+			for (int i = 0, length = Array.getLength(value); i < length; i++){
+				collect(type.element, Array.get(value, i), ids);
+			}
+			break;
+		default:
+			break;
+		}
+
+	}
+
+	/**
+	 * Returns the loaded model in place of a stub. Collections and arrays
+	 * are updated in place. A reference to a model that no longer exists
+	 * keeps its stub, so that saving the referring model does not lose it.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object replace(ValueType type, Object value, Map<Class<?>, Map<ObjectId, Object>> loaded){
+
+		if (value == null){
+			return null;
+		}
+
+		switch (type.kind){
+		case REFERENCE:
+			Map<ObjectId, Object> models = loaded.get(value.getClass());
+			Object model = models == null ? null : models.get(MongoMetadata.of(value.getClass()).getId(value));
+			return model != null ? model : value;
+		case COLLECTION:
+			Collection collection = (Collection) value;
+			if (collection instanceof List){
+				List list = (List) collection;
+				for (int i = 0; i < list.size(); i++){
+					list.set(i, replace(type.element, list.get(i), loaded));
+				}
+			} else {
+				List<Object> elements = new ArrayList<Object>(collection.size());
+				for (Object element : collection){
+					elements.add(replace(type.element, element, loaded));
+				}
+				collection.clear();
+				collection.addAll(elements);
+			}
+			return value;
+		case ARRAY:
+			for (int i = 0, length = Array.getLength(value); i < length; i++){
+				Array.set(value, i, replace(type.element, Array.get(value, i), loaded));
+			}
+			return value;
+		default:
+			return value;
+		}
+
+	}
+
+	private static Map<ObjectId, Object> load(Class<?> clazz, Set<ObjectId> ids){
+
+		String collectionName = MongoMetadata.of(clazz).collectionName();
+		MongoCache cache = MongoCache.of(collectionName, clazz);
+
+		Map<ObjectId, Object> models = new HashMap<ObjectId, Object>();
+		List<ObjectId> missing = new ArrayList<ObjectId>();
+
+		for (ObjectId id : ids){
+			Object cached = cache == null ? null : cache.get(id, clazz);
+			if (cached != null){
+				models.put(id, cached);
+			} else {
+				missing.add(id);
+			}
+		}
+
+		for (int start = 0; start < missing.size(); start += BATCH_SIZE){
+
+			List<ObjectId> batch = missing.subList(start, Math.min(start + BATCH_SIZE, missing.size()));
+			long version = cache == null ? 0 : cache.version();
+
+			for (Object model : MongoDB.collection(collectionName, clazz).find(new BasicDBObject("_id", new BasicDBObject("$in", batch)))){
+				models.put(((MongoModel) model).get_id(), model);
+				if (cache != null){
+					cache.put((MongoModel) model, version);
+				}
+			}
+
+		}
+
+		return models;
+
+	}
+
+}
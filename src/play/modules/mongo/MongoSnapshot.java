@@ -0,0 +1,214 @@
+package play.modules.mongodb;
+
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Dirty checking for MongoModels. The codec keeps the document a model
+ * was read from; when the model is saved, its current state is compared
+ * with that document and only the changed paths are written.
+ *
+ * A model read with only() or exclude() keeps its projection too. Only the
+ * loaded paths are compared, so that the fields which were not loaded, and
+ * hold the values set by the constructor, are never written.
+ */
+class MongoSnapshot {
+
+	private static final BsonDocumentCodec DOCUMENT_CODEC = new BsonDocumentCodec();
+
+	/**
+	 * Whether a path was loaded by the projection of a model: not at all,
+	 * only some of its embedded fields, or entirely.
+	 */
+	private static final int NOT_LOADED = 0;
+	private static final int PARTLY_LOADED = 1;
+	private static final int LOADED = 2;
+
+	/**
+	 * Encodes the current state of a model.
+	 *
+	 * @param model - the model
+	 * @return - the document the model would be stored as
+	 */
+	static BsonDocument encode(MongoModel model){
+
+		BsonDocument document = new BsonDocument();
+		Codec codec = MongoDB.db().getCodecRegistry().get(model.getClass());
+		codec.encode(new BsonDocumentWriter(document), model, EncoderContext.builder().isEncodingCollectibleDocument(true).build());
+
+		return document;
+
+	}
+
+	/**
+	 * Returns the update that turns the stored document of a model into
+	 * its current state: a $set of the changed paths and an $unset of the
+	 * removed ones. Embedded documents are compared field by field.
+	 *
+	 * @param model - the model
+	 * @param current - the current state of the model, see encode()
+	 * @return - the update, empty if nothing changed, or null if the stored
+	 *           document is unknown and the model must be replaced
+	 */
+	static BsonDocument changes(MongoModel model, BsonDocument current){
+
+		RawBsonDocument snapshot = model._snapshot;
+
+		if (snapshot == null){
+			return null;
+		}
+
+		BsonDocument set = new BsonDocument();
+		BsonDocument unset = new BsonDocument();
+
+		BsonDocument stored = snapshot.decode(DOCUMENT_CODEC);
+		stored.remove("_id");
+		compare("", stored, current, model._projection, set, unset);
+
+		BsonDocument update = new BsonDocument();
+		if (!set.isEmpty()){
+			update.put("$set", set);
+		}
+		if (!unset.isEmpty()){
+			update.put("$unset", unset);
+		}
+
+		return update;
+
+	}
+
+	/**
+	 * Records the state of a model as stored in the database.
+	 *
+	 * @param model - the model
+	 * @param stored - the document the model is stored as
+	 */
+	static void take(MongoModel model, BsonDocument stored){
+		model._snapshot = new RawBsonDocument(stored, DOCUMENT_CODEC);
+	}
+
+	/**
+	 * Records that models were read with a projection, so that their saves
+	 * only write the loaded paths.
+	 *
+	 * @param models - the models read
+	 * @param projection - the projection of the query, or null
+	 */
+	static void project(Iterable<? extends MongoModel> models, BsonDocument projection){
+		if (projection != null){
+			for (MongoModel model : models){
+				if (model != null){
+					model._projection = projection;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets the stored state of a model, so that its next save replaces it.
+	 *
+	 * @param model - the model
+	 */
+	static void clear(MongoModel model){
+		model._snapshot = null;
+	}
+
+	private static void compare(String prefix, BsonDocument stored, BsonDocument current, BsonDocument projection, BsonDocument set, BsonDocument unset){
+
+		for (Map.Entry<String, BsonValue> entry : current.entrySet()){
+
+			String key = entry.getKey();
+
+			if (prefix.length() == 0 && key.equals("_id")){
+				continue;
+			}
+
+			String path = prefix + key;
+			int loaded = loaded(projection, path);
+
+			if (loaded == NOT_LOADED){
+				continue;
+			}
+
+			BsonValue before = stored.get(key);
+			BsonValue after = entry.getValue();
+
+			if (loaded == PARTLY_LOADED){
+				// only some of its fields were read, only those are compared
+				if (after.isDocument()){
+					compare(path + ".", before != null && before.isDocument() ? before.asDocument() : new BsonDocument(), after.asDocument(), projection, set, unset);
+				}
+			} else if (before != null && before.isDocument() && after.isDocument()){
+				compare(path + ".", before.asDocument(), after.asDocument(), projection, set, unset);
+			} else if (!after.equals(before)){
+				set.put(path, after);
+			}
+
+		}
+
+		for (String key : stored.keySet()){
+			if (!current.containsKey(key) && loaded(projection, prefix + key) == LOADED){
+				unset.put(prefix + key, new BsonString(""));
+			}
+		}
+
+	}
+
+	/**
+	 * How much of a path an inclusion or exclusion projection loaded.
+	 */
+	private static int loaded(BsonDocument projection, String path){
+
+		if (projection == null){
+			return LOADED;
+		}
+
+		boolean inclusion = false;
+		for (Map.Entry<String, BsonValue> field : projection.entrySet()){
+			if (!field.getKey().equals("_id") && included(field.getValue())){
+				inclusion = true;
+			}
+		}
+
+		int loaded = inclusion ? NOT_LOADED : LOADED;
+
+		for (Map.Entry<String, BsonValue> field : projection.entrySet()){
+
+			String name = field.getKey();
+
+			if (included(field.getValue()) != inclusion){
+				continue;
+			}
+
+			if (path.equals(name) || path.startsWith(name + ".")){
+				// the path itself, or one of its parents, is projected
+				return inclusion ? LOADED : NOT_LOADED;
+			}
+
+			if (name.startsWith(path + ".")){
+				// one of its embedded fields is projected
+				loaded = PARTLY_LOADED;
+			}
+
+		}
+
+		return loaded;
+
+	}
+
+	private static boolean included(BsonValue value){
+		if (value.isBoolean()){
+			return value.asBoolean().getValue();
+		}
+		return !value.isNumber() || value.asNumber().intValue() != 0;
+	}
+
+}
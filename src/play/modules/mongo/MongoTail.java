@@ -0,0 +1,251 @@
+package play.modules.mongodb;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import play.Logger;
+
+import com.mongodb.CursorType;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Follows a capped collection, as "tail -f" follows a file. The models
+ * inserted after the tail is started are decoded by the module's codec
+ * and handed to a consumer, on a daemon thread of their own.
+ *
+ * The consumer runs on the tailing thread, so the next batch is only
+ * fetched once the consumer is done with the current one: a slow consumer
+ * slows the tail down instead of filling memory. The filter is applied on
+ * the client, see MongoMatcher, so that the cursor stays open while no
+ * document matches. If the cursor dies, the tail is reopened from the _id
+ * of the last document seen, after a delay which only grows while opening
+ * it fails. A document which cannot be decoded is logged and skipped. The
+ * @MongoReference fields of each model are loaded before it is handed over.
+ * Tails are closed when the application stops.
+ */
+public class MongoTail<T extends MongoModel> implements Closeable {
+
+	/**
+	 * The delay before a dead cursor is reopened, doubled after each
+	 * failure up to MAX_RETRY_DELAY, in milliseconds.
+	 */
+	private static final long MIN_RETRY_DELAY = 100;
+	private static final long MAX_RETRY_DELAY = 10000;
+
+	private static final Set<MongoTail<?>> tails = ConcurrentHashMap.newKeySet();
+
+	public final String collectionName;
+
+	private final MongoMatcher matcher;
+	private final Codec<T> codec;
+	private final Consumer<? super T> consumer;
+	private final Thread thread;
+
+	private volatile ObjectId lastId;
+	private volatile MongoCursor<RawBsonDocument> cursor;
+	private volatile boolean closed;
+
+	/**
+	 * Constructor
+	 *
+	 * @param collectionName - the capped collection
+	 * @param filter - the filter of the models to follow, or null for all
+	 * @param clazz - the type of MongoModel
+	 * @param consumer - called with each new model
+	 */
+	MongoTail(String collectionName, Bson filter, Class<T> clazz, Consumer<? super T> consumer){
+		this.collectionName = collectionName;
+		this.matcher = new MongoMatcher(filter == null ? null : filter.toBsonDocument(BsonDocument.class, MongoDB.collection(collectionName).getCodecRegistry()));
+		this.codec = MongoDB.collection(collectionName, clazz).getCodecRegistry().get(clazz);
+		this.consumer = consumer;
+		this.thread = new Thread(this::run, "mongo-tail-" + collectionName);
+		this.thread.setDaemon(true);
+	}
+
+	MongoTail<T> start(){
+		tails.add(this);
+		thread.start();
+		return this;
+	}
+
+	private void run(){
+
+		long delay = MIN_RETRY_DELAY;
+		boolean started = false;
+
+		try {
+
+			while (!closed){
+
+				boolean failed = false;
+
+				try {
+
+					if (!started){
+						// only the models inserted from now on are followed
+						lastId = last();
+						started = true;
+					}
+
+					MongoCursor<RawBsonDocument> current = open();
+					cursor = current;
+
+					try {
+						while (!closed && current.hasNext()){
+							RawBsonDocument document = current.next();
+							BsonValue id = document.get("_id");
+							if (id != null && id.isObjectId()){
+								lastId = id.asObjectId().getValue();
+							}
+							delay = MIN_RETRY_DELAY;
+							if (matcher.matches(document)){
+								accept(document);
+							}
+						}
+					} finally {
+						cursor = null;
+						current.close();
+					}
+
+					// the cursor died, e.g. because the collection was empty or was dropped
+
+				} catch (RuntimeException e) {
+					if (closed){
+						break;
+					}
+					failed = true;
+					Logger.warn("Tail of %s failed, resuming after %s in %d ms: %s", collectionName, lastId, delay, e.getMessage());
+				}
+
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					break;
+				}
+
+				// only failures back off, a dead cursor is reopened straight away the next time
+				delay = failed ? Math.min(delay * 2, MAX_RETRY_DELAY) : MIN_RETRY_DELAY;
+
+			}
+
+		} finally {
+			tails.remove(this);
+		}
+
+	}
+
+	/**
+	 * The _id of the last document of the collection, or null if it is empty.
+	 */
+	private ObjectId last(){
+
+		Document last = MongoDB.collection(collectionName).find()
+				.sort(new Document("$natural", -1))
+				.projection(new Document("_id", 1))
+				.first();
+
+		return last == null ? null : last.getObjectId("_id");
+
+	}
+
+	/**
+	 * Opens a tailable cursor on the documents after the last one seen. The
+	 * filter is applied on the client: a tailable cursor whose query matches
+	 * nothing yet dies straight away. The server waits a while for new
+	 * documents before returning an empty batch.
+	 */
+	private MongoCursor<RawBsonDocument> open(){
+
+		Bson query = lastId == null ? new BsonDocument() : new Document("_id", new Document("$gt", lastId));
+
+		return MongoDB.collection(collectionName, RawBsonDocument.class).find(query)
+				.cursorType(CursorType.TailableAwait)
+				.noCursorTimeout(true)
+				.iterator();
+
+	}
+
+	private void accept(RawBsonDocument document){
+
+		T model;
+
+		try {
+			model = document.decode(codec);
+		} catch (RuntimeException e) {
+			// lastId is already past the document, it is not read again
+			Logger.error(e, "Tail of %s failed to decode document %s, skipped", collectionName, lastId);
+			return;
+		}
+
+		try {
+			MongoReferences.resolve(Collections.singletonList(model));
+			consumer.accept(model);
+		} catch (RuntimeException e) {
+			// the model is skipped, the tail goes on
+			Logger.error(e, "Tail of %s failed to handle model %s", collectionName, model.get_id());
+		}
+
+	}
+
+	/**
+	 * Returns the _id of the last model seen.
+	 *
+	 * @return - the _id, or null if no model has been seen yet
+	 */
+	public ObjectId getLastId(){
+		return lastId;
+	}
+
+	/**
+	 * Returns whether the tail is following its collection.
+	 *
+	 * @return - false once the tail is closed
+	 */
+	public boolean isRunning(){
+		return !closed && thread.isAlive();
+	}
+
+	/**
+	 * Stops following the collection. The consumer is not called anymore
+	 * once this returns, except for a model it is already handling.
+	 */
+	@Override
+	public void close(){
+
+		closed = true;
+		tails.remove(this);
+
+		MongoCursor<RawBsonDocument> current = cursor;
+		if (current != null){
+			try {
+				current.close();
+			} catch (RuntimeException e) {
+				// the tailing thread stops anyway
+			}
+		}
+
+		thread.interrupt();
+
+	}
+
+	/**
+	 * Closes the tails that are still running, when the application stops.
+	 */
+	public static void closeAll(){
+		for (MongoTail<?> tail : tails){
+			tail.close();
+		}
+	}
+
+}
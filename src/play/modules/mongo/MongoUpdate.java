@@ -0,0 +1,225 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * A compiled update string, such as "incViews" or "setNameAndColourAndIncVersion".
+ * Update strings are parsed once and cached; each call only binds the
+ * parameters.
+ *
+ * The grammar is a list of field names joined with "And". The first one
+ * starts with an operator, and each following one either starts with an
+ * operator or uses the operator before it. The operators are Set, Unset
+ * (no parameter), Inc, Mul, Min, Max, Push, AddToSet and Pull. Push and
+ * AddToSet given a collection or an array add each of its elements; Pull
+ * given a collection or an array removes each of them.
+ */
+public class MongoUpdate {
+
+	private static final int CACHE_SIZE = 1024;
+
+	private static final Map<String, MongoUpdate> updates = new ConcurrentHashMap<String, MongoUpdate>();
+
+	/**
+	 * The operators, longest names first so that prefixes are matched greedily.
+	 */
+	enum Operator {
+
+		ADD_TO_SET("AddToSet", "$addToSet", 1),
+		UNSET("Unset", "$unset", 0),
+		SET("Set", "$set", 1),
+		INC("Inc", "$inc", 1),
+		MUL("Mul", "$mul", 1),
+		MIN("Min", "$min", 1),
+		MAX("Max", "$max", 1),
+		PUSH("Push", "$push", 1),
+		PULL("Pull", "$pull", 1);
+
+		final String prefix;
+		final String mongoOperator;
+		final int arity;
+
+		Operator(String prefix, String mongoOperator, int arity){
+			this.prefix = prefix;
+			this.mongoOperator = mongoOperator;
+			this.arity = arity;
+		}
+
+	}
+
+	private static class Clause {
+
+		final String key;
+		final Operator operator;
+
+		Clause(String key, Operator operator){
+			this.key = key;
+			this.operator = operator;
+		}
+
+	}
+
+	private final Clause[] clauses;
+	private final int parameterCount;
+
+	private MongoUpdate(Clause[] clauses){
+
+		this.clauses = clauses;
+
+		int count = 0;
+		for (Clause clause : clauses){
+			count += clause.operator.arity;
+		}
+		this.parameterCount = count;
+
+	}
+
+	/**
+	 * Returns the compiled form of an update string.
+	 *
+	 * @param update - the update string
+	 * @return - the compiled update
+	 */
+	public static MongoUpdate compile(String update){
+
+		MongoUpdate compiled = updates.get(update);
+
+		if (compiled == null){
+			compiled = parse(update);
+			if (updates.size() < CACHE_SIZE){
+				updates.put(update, compiled);
+			}
+		}
+
+		return compiled;
+
+	}
+
+	/**
+	 * Creates an update object from the compiled update and parameter values.
+	 *
+	 * @param values - values for the update
+	 * @param offset - the index of the first value of the update, the values
+	 *                 before it being those of the query
+	 * @return - a BasicDBObject representing the update
+	 */
+	public BasicDBObject bind(Object[] values, int offset){
+
+		if (offset + parameterCount > values.length){
+			throw new IllegalArgumentException("Not enough values for the updates provided");
+		}
+
+		int index = offset;
+		BasicDBObject object = new BasicDBObject();
+
+		for (Clause clause : clauses){
+
+			BasicDBObject fields = (BasicDBObject) object.get(clause.operator.mongoOperator);
+			if (fields == null){
+				fields = new BasicDBObject();
+				object.put(clause.operator.mongoOperator, fields);
+			}
+
+			fields.put(clause.key, value(clause.operator, clause.operator.arity == 0 ? null : values[index]));
+			index += clause.operator.arity;
+
+		}
+
+		return object;
+
+	}
+
+	/**
+	 * The number of parameters the update expects.
+	 *
+	 * @return - the number of parameters
+	 */
+	public int getParameterCount(){
+		return parameterCount;
+	}
+
+	private static MongoUpdate parse(String update){
+
+		List<String> parts = MongoQuery.split(update, "And");
+		Clause[] compiled = new Clause[parts.size()];
+		Operator previous = null;
+
+		for (int i = 0; i < compiled.length; i++){
+
+			String part = parts.get(i);
+			part = Character.toUpperCase(part.charAt(0)) + part.substring(1);
+
+			Operator operator = operator(part);
+
+			if (operator != null){
+				part = part.substring(operator.prefix.length());
+				previous = operator;
+			} else if (previous == null){
+				throw new IllegalArgumentException("The update " + update + " must start with an operator, such as set or inc");
+			}
+
+			compiled[i] = new Clause(MongoQuery.fieldName(part), previous);
+
+		}
+
+		return new MongoUpdate(compiled);
+
+	}
+
+	/**
+	 * The operator a part starts with, if it is followed by a field name.
+	 */
+	private static Operator operator(String part){
+
+		for (Operator operator : Operator.values()){
+
+			String prefix = operator.prefix;
+
+			if (part.length() > prefix.length() && part.startsWith(prefix) && Character.isUpperCase(part.charAt(prefix.length()))){
+				return operator;
+			}
+
+		}
+
+		return null;
+
+	}
+
+	private static Object value(Operator operator, Object value){
+
+		switch (operator){
+		case UNSET:
+			return "";
+		case PUSH:
+		case ADD_TO_SET:
+			return isMany(value) ? new BasicDBObject("$each", list(value)) : value;
+		case PULL:
+			return isMany(value) ? new BasicDBObject("$in", list(value)) : value;
+		default:
+			return value;
+		}
+
+	}
+
+	private static boolean isMany(Object value){
+		return value instanceof Collection || value instanceof Object[];
+	}
+
+	private static List<Object> list(Object value){
+
+		if (value instanceof Collection){
+			return new ArrayList<Object>((Collection<?>) value);
+		}
+
+		return Arrays.asList((Object[]) value);
+
+	}
+
+}
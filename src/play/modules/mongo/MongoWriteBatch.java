@@ -0,0 +1,428 @@
+package play.modules.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.types.ObjectId;
+
+import play.Logger;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Group commit of the writes to one collection. It is enabled by
+ * annotating a MongoEntity with @MongoWriteBatched.
+ *
+ * The saves and deletes of concurrent threads are queued and sent by a
+ * background thread as one ordered bulk write, once maxSize writes are
+ * queued or the oldest one has waited maxDelay milliseconds. Each write
+ * completes its own future: save() and delete() wait for it, saveQueued()
+ * and deleteQueued() return it. Writes are applied in the order they were
+ * queued. A write which fails, e.g. on a duplicate key, only fails its own
+ * future: the writes queued after it are sent again without it.
+ *
+ * New models are given their _id when they are queued. Models are encoded
+ * when they are queued too, so later changes are not part of the write.
+ * The queue is drained when the application stops.
+ */
+public class MongoWriteBatch {
+
+	/**
+	 * The number of full batches that may be queued before the writers
+	 * wait for the queue to drain.
+	 */
+	private static final int MAX_QUEUED_BATCHES = 10;
+
+	/**
+	 * How long the queue may take to drain when the application stops,
+	 * in milliseconds.
+	 */
+	private static final long DRAIN_TIMEOUT = 30000;
+
+	private static final MongoWriteBatch DISABLED = new MongoWriteBatch(null, 0, 0);
+
+	private static final Map<Class<?>, MongoWriteBatch> byClass = new ConcurrentHashMap<Class<?>, MongoWriteBatch>();
+	private static final Map<String, MongoWriteBatch> byCollection = new ConcurrentHashMap<String, MongoWriteBatch>();
+
+	public final String collectionName;
+	public final int maxSize;
+	public final long maxDelay;
+
+	private final List<Write> queue = new ArrayList<Write>();
+	private Thread thread;
+	private boolean closed;
+
+	private long batches;
+	private long writes;
+	private long errors;
+
+	/**
+	 * A queued write and the future it completes.
+	 */
+	private static class Write {
+
+		final MongoModel model;
+		final WriteModel<BsonDocument> request;
+		final BsonDocument state;
+		final boolean insert;
+		final long queued = System.nanoTime();
+		final CompletableFuture<MongoModel> future = new CompletableFuture<MongoModel>();
+
+		Write(MongoModel model, WriteModel<BsonDocument> request, BsonDocument state, boolean insert){
+			this.model = model;
+			this.request = request;
+			this.state = state;
+			this.insert = insert;
+		}
+
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param collectionName - the written collection
+	 * @param maxSize - the maximum number of writes sent in one bulk write
+	 * @param maxDelay - how long a write may wait for others, in milliseconds
+	 */
+	public MongoWriteBatch(String collectionName, int maxSize, long maxDelay){
+		this.collectionName = collectionName;
+		this.maxSize = maxSize;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Returns the write batch of a collection if the model class is
+	 * annotated with @MongoWriteBatched, creating it on first use.
+	 *
+	 * @param collectionName - the collection
+	 * @param clazz - the type of MongoModel
+	 * @return - the write batch, or null if the writes are not batched
+	 */
+	public static MongoWriteBatch of(String collectionName, Class<?> clazz){
+
+		MongoWriteBatch batch = byClass.get(clazz);
+
+		if (batch == null){
+
+			MongoWriteBatched annotation = clazz.getAnnotation(MongoWriteBatched.class);
+
+			if (annotation == null){
+				batch = DISABLED;
+			} else {
+				synchronized (byCollection) {
+					batch = byCollection.get(collectionName);
+					if (batch == null){
+						if (annotation.maxSize() < 1){
+							throw new IllegalArgumentException("maxSize of @MongoWriteBatched must be positive on " + clazz.getName());
+						}
+						batch = new MongoWriteBatch(collectionName, annotation.maxSize(), annotation.maxDelay());
+						byCollection.put(collectionName, batch);
+					}
+				}
+			}
+
+			byClass.put(clazz, batch);
+
+		}
+
+		return batch == DISABLED ? null : batch;
+
+	}
+
+	/**
+	 * Returns all of the write batches created so far.
+	 *
+	 * @return - the write batches
+	 */
+	public static Collection<MongoWriteBatch> batches(){
+		return new ArrayList<MongoWriteBatch>(byCollection.values());
+	}
+
+	/**
+	 * Sends the queued writes of every collection, waits for them and stops
+	 * the background threads. Called when the application stops.
+	 */
+	public static void closeAll(){
+		synchronized (byCollection) {
+			for (MongoWriteBatch batch : byCollection.values()){
+				batch.close();
+			}
+			byClass.clear();
+			byCollection.clear();
+		}
+	}
+
+	/**
+	 * Queues the save of a model. A model without an _id is inserted, and
+	 * is given its _id straight away.
+	 *
+	 * @param model - the model
+	 * @return - completes with the model once it is written
+	 */
+	public CompletableFuture<MongoModel> save(MongoModel model){
+
+		boolean insert = model.get_id() == null;
+		if (insert){
+			model.set_id(new ObjectId());
+		}
+
+		BsonDocument current = MongoSnapshot.encode(model);
+
+		if (insert){
+			return queue(new Write(model, new InsertOneModel<BsonDocument>(current), current, true));
+		}
+
+		BsonDocument update = MongoSnapshot.changes(model, current);
+		BsonDocument filter = new BsonDocument("_id", new BsonObjectId(model.get_id()));
+
+		if (update == null){
+			return queue(new Write(model, new ReplaceOneModel<BsonDocument>(filter, current), current, false));
+		} else if (!update.isEmpty()){
+			return queue(new Write(model, new UpdateOneModel<BsonDocument>(filter, update), current, false));
+		}
+
+		// nothing changed
+		return CompletableFuture.completedFuture(model);
+
+	}
+
+	/**
+	 * Queues the delete of a model.
+	 *
+	 * @param model - the model
+	 * @return - completes with the model once it is deleted
+	 */
+	public CompletableFuture<MongoModel> delete(MongoModel model){
+		return queue(new Write(model, new DeleteOneModel<BsonDocument>(new BsonDocument("_id", new BsonObjectId(model.get_id()))), null, false));
+	}
+
+	private CompletableFuture<MongoModel> queue(Write write){
+
+		boolean inline;
+
+		synchronized (this) {
+
+			// the writers wait if the database falls behind
+			while (!closed && queue.size() >= maxSize * MAX_QUEUED_BATCHES){
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					if (write.insert){
+						write.model.set_id(null);
+					}
+					throw new IllegalStateException("Interrupted while waiting to queue a write to " + collectionName, e);
+				}
+			}
+
+			// once closed, writes are sent by the calling thread
+			inline = closed;
+
+			if (!inline){
+				queue.add(write);
+				if (thread == null){
+					thread = new Thread(this::run, "mongo-write-batch-" + collectionName);
+					thread.setDaemon(true);
+					thread.start();
+				}
+				notifyAll();
+			}
+
+		}
+
+		if (inline){
+			List<Write> single = new ArrayList<Write>();
+			single.add(write);
+			write(single);
+		}
+
+		return write.future;
+
+	}
+
+	private void run(){
+
+		while (true){
+
+			List<Write> batch;
+
+			synchronized (this) {
+
+				try {
+					while (queue.isEmpty() && !closed){
+						wait();
+					}
+					// wait for the batch to fill up, at most until the first write is due
+					while (!closed && queue.size() < maxSize){
+						long due = maxDelay - (System.nanoTime() - queue.get(0).queued) / 1000000;
+						if (due <= 0){
+							break;
+						}
+						wait(due);
+					}
+				} catch (InterruptedException e) {
+					closed = true;
+				}
+
+				if (queue.isEmpty()){
+					// closed and drained
+					notifyAll();
+					return;
+				}
+
+				int size = Math.min(queue.size(), maxSize);
+				batch = new ArrayList<Write>(queue.subList(0, size));
+				queue.subList(0, size).clear();
+				notifyAll();
+
+			}
+
+			write(batch);
+
+		}
+
+	}
+
+	/**
+	 * Sends a batch as ordered bulk writes and completes the futures. A
+	 * failed write stops the bulk write, so it is failed alone and the
+	 * writes after it are sent again, until the batch is drained.
+	 */
+	private void write(List<Write> batch){
+
+		List<WriteModel<BsonDocument>> requests = new ArrayList<WriteModel<BsonDocument>>(batch.size());
+		for (Write write : batch){
+			requests.add(write.request);
+		}
+
+		boolean[] failed = new boolean[batch.size()];
+		int sent = 0;
+
+		try {
+			while (sent < requests.size()){
+				List<WriteModel<BsonDocument>> remaining = requests.subList(sent, requests.size());
+				try {
+					// ordered, so that successive writes of the same model are applied in turn
+					MongoMetrics.time(collectionName, "batch", null, () -> MongoDB.collection(collectionName, BsonDocument.class).bulkWrite(remaining, new BulkWriteOptions().ordered(true)), result -> remaining.size());
+					sent = requests.size();
+				} catch (MongoBulkWriteException e) {
+					BulkWriteError error = e.getWriteErrors().get(0);
+					int index = sent + error.getIndex();
+					failed[index] = true;
+					fail(batch.get(index), new MongoWriteException(error, e.getServerAddress()));
+					// the writes after the error were not sent, they are sent again
+					sent = index + 1;
+				}
+			}
+		} catch (RuntimeException e) {
+			for (int i = sent; i < batch.size(); i++){
+				failed[i] = true;
+				fail(batch.get(i), e);
+			}
+		} finally {
+			synchronized (this) {
+				batches++;
+				writes += batch.size();
+			}
+		}
+
+		for (int i = 0; i < batch.size(); i++){
+
+			if (failed[i]){
+				continue;
+			}
+
+			Write write = batch.get(i);
+
+			if (write.state == null){
+				MongoSnapshot.clear(write.model);
+			} else {
+				MongoSnapshot.take(write.model, write.state);
+			}
+			MongoDB.invalidate(collectionName, write.model.get_id());
+
+			write.future.complete(write.model);
+
+		}
+
+	}
+
+	private void fail(Write write, RuntimeException e){
+
+		synchronized (this) {
+			errors++;
+		}
+
+		if (write.insert){
+			// the model was not written, it is new again
+			write.model.set_id(null);
+		}
+
+		Logger.warn("Batched write to %s failed: %s", collectionName, e.getMessage());
+		write.future.completeExceptionally(e);
+
+	}
+
+	/**
+	 * Sends the queued writes and waits for them, then stops the background
+	 * thread. Later writes are sent one at a time by the calling thread.
+	 */
+	public void close(){
+
+		Thread current;
+
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			current = thread;
+		}
+
+		if (current != null){
+			try {
+				current.join(DRAIN_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (current.isAlive()){
+				Logger.error("The batched writes to %s did not drain in %d ms", collectionName, DRAIN_TIMEOUT);
+			}
+		}
+
+	}
+
+	public synchronized int getQueued(){
+		return queue.size();
+	}
+
+	public synchronized long getBatches(){
+		return batches;
+	}
+
+	public synchronized long getWrites(){
+		return writes;
+	}
+
+	public synchronized long getErrors(){
+		return errors;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return String.format("%s: %d queued, %d writes in %d batches, %d errors (max size %d, max delay %d ms)", collectionName, queue.size(), writes, batches, errors, maxSize, maxDelay);
+	}
+
+}
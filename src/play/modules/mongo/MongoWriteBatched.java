@@ -0,0 +1,31 @@
+package play.modules.mongodb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Groups the saves and deletes of the models of a MongoEntity made by
+ * concurrent threads into bulk writes, see MongoWriteBatch. Suits many
+ * small independent writes, such as audit entries.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface MongoWriteBatched {
+
+	/**
+	 * The maximum number of writes sent in one bulk write. A batch is
+	 * sent as soon as it is full.
+	 * @return
+	 */
+	int maxSize() default 100;
+
+	/**
+	 * How long a write may wait for others before its batch is sent,
+	 * in milliseconds.
+	 * @return
+	 */
+	int maxDelay() default 10;
+
+}
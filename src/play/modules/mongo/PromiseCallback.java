@@ -0,0 +1,27 @@
+package play.modules.mongodb;
+
+import play.libs.F;
+
+import com.mongodb.async.SingleResultCallback;
+
+/**
+ * Redeems a Play promise with the result of an asynchronous driver operation.
+ */
+class PromiseCallback<T> implements SingleResultCallback<T> {
+
+	private final F.Promise<T> promise;
+	
+	PromiseCallback(F.Promise<T> promise){
+		this.promise = promise;
+	}
+	
+	@Override
+	public void onResult(T result, Throwable t) {
+		if (t != null){
+			promise.invokeWithException(t);
+		} else {
+			promise.invoke(result);
+		}
+	}
+	
+}